@@ -9,11 +9,14 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URLEncoder;
+import java.util.List;
 import java.util.Map;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLHandshakeException;
 
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -28,10 +31,14 @@ import android.util.Pair;
 import com.github.kevinsawicki.http.HttpRequest;
 import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
 import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.data.ChunkedProgressMonitor;
 import com.seafile.seadroid2.data.DataManager;
+import com.seafile.seadroid2.data.JsonStreamParser;
 import com.seafile.seadroid2.data.ProgressMonitor;
-import com.seafile.seadroid2.ssl.SSLTrustManager;
+import com.seafile.seadroid2.data.SeafDirent;
+import com.seafile.seadroid2.data.SeafRepo;
 import com.seafile.seadroid2.util.Utils;
 
 /**
@@ -44,6 +51,7 @@ public class SeafConnection {
     private static final String DEBUG_TAG = "SeafConnection";
     private static final int CONNECTION_TIMEOUT = 15000;
     private static final int READ_TIMEOUT = 30000;
+    private static final int HTTP_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
 
     private Account account;
 
@@ -55,6 +63,13 @@ public class SeafConnection {
         return account;
     }
 
+    /**
+     * Get the connection reuse counters of the account
+     */
+    public SeafConnectionPool.Stats getConnectionStats() {
+        return SeafConnectionPool.instance().getStats(account);
+    }
+
     private HttpRequest prepareApiGetRequest(String apiPath, Map<String, ?> params) throws IOException {
         HttpRequest req = HttpRequest.get(account.server + apiPath, params, false);
         setRequestCommon(req);
@@ -77,18 +92,8 @@ public class SeafConnection {
     }
 
     private HttpRequest prepareHttpsCheck(HttpRequest req) {
-        HttpURLConnection conn = req.getConnection();
-        if (conn instanceof HttpsURLConnection) {
-            // Tell HttpRequest to trust all hosts, and then the user will get a dialog
-            // where he needs to confirm the SSL certificate for the account,
-            // and the accepted certificate will be stored, so he is not prompted to accept later on.
-            // This is handled by SSLTrustManager and CertsManager
-            req.trustAllHosts();
-            HttpsURLConnection sconn = (HttpsURLConnection)conn;
-            sconn.setSSLSocketFactory(SSLTrustManager.instance().getSSLSocketFactory(account));
-        }
-
-        return req;
+        // reuse the keep-alive connections and SSL sessions of this account
+        return SeafConnectionPool.instance().prepare(account, req);
     }
 
     private HttpRequest prepareApiGetRequest(String apiPath) throws IOException {
@@ -254,6 +259,31 @@ public class SeafConnection {
         }
     }
 
+    /**
+     * Get the repos, parsed while the response is read. Only call if {@link JsonStreamParser#isSupported()}.
+     *
+     * @param copyTo the raw response is written to it as it is read, e.g. for caching
+     */
+    public List<SeafRepo> getReposStreaming(OutputStream copyTo) throws SeafException {
+        try {
+            HttpRequest req = prepareApiGetRequest("api2/repos/");
+            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+
+            ResponseStream in = new ResponseStream(req.stream());
+            try {
+                return JsonStreamParser.parseRepos(new TeeInputStream(in, copyTo));
+            } catch (IOException e) {
+                throw getParseException(in, e);
+            }
+        } catch (SeafException e) {
+            throw e;
+        } catch (HttpRequestException e) {
+            throw getSeafExceptionFromHttpRequestException(e);
+        } catch (IOException e) {
+            throw SeafException.networkException;
+        }
+    }
+
     public String getStarredFiles() throws SeafException {
         try {
             HttpRequest req = prepareApiGetRequest("api2/starredfiles/");
@@ -343,6 +373,7 @@ public class SeafConnection {
                 // local cache is valid
                 // Log.d(DEBUG_TAG, String.format("dir %s is cached", path));
                 content = null;
+                SeafConnectionPool.instance().release(req);
             } else {
                 /*Log.d(DEBUG_TAG,
                       String.format("dir %s will be downloaded from server, latest %s, local cache %s",
@@ -367,6 +398,84 @@ public class SeafConnection {
         }
     }
 
+    /**
+     * Same as {@link #getDirents(String, String, String)}, but the dirents are parsed while the
+     * response is read. Only call if {@link JsonStreamParser#isSupported()}.
+     *
+     * @return A non-null Pair of (dirID, dirents). If the local cache is up to date, the "dirents" is null.
+     */
+    public Pair<String, List<SeafDirent>> getDirentsStreaming(String repoID, String path, String cachedDirID)
+                                        throws SeafException {
+        try {
+            String apiPath = String.format("api2/repos/%s/dir/", repoID);
+            Map<String, Object> params = Maps.newHashMap();
+            params.put("p", encodeUriComponent(path));
+            if (cachedDirID != null) {
+                params.put("oid", cachedDirID);
+            }
+            HttpRequest req = prepareApiGetRequest(apiPath, params);
+            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+
+            String dirID = req.header("oid");
+            if (dirID == null) {
+                throw SeafException.unknownException;
+            }
+
+            List<SeafDirent> dirents = null;
+            if (dirID.equals(cachedDirID)) {
+                // local cache is valid
+                SeafConnectionPool.instance().release(req);
+            } else {
+                ResponseStream in = new ResponseStream(req.stream());
+                try {
+                    dirents = JsonStreamParser.parseDirents(in);
+                } catch (IOException e) {
+                    throw getParseException(in, e);
+                }
+            }
+
+            return new Pair<String, List<SeafDirent>>(dirID, dirents);
+
+        } catch (SeafException e) {
+            throw e;
+        } catch (UnsupportedEncodingException e) {
+            throw SeafException.encodingException;
+        } catch (HttpRequestException e) {
+            throw getSeafExceptionFromHttpRequestException(e);
+        } catch (IOException e) {
+            throw SeafException.networkException;
+        }
+    }
+
+    /**
+     * A response body which remembers if reading it failed, to tell a network error from
+     * a malformed response when the body is parsed while it is read
+     */
+    private static class ResponseStream extends ProxyInputStream {
+        private boolean failed;
+
+        ResponseStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        protected void handleIOException(IOException e) throws IOException {
+            failed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * @return the error to report for a response which could not be parsed while it was read
+     */
+    private static SeafException getParseException(ResponseStream in, IOException e) {
+        if (in.failed) {
+            return SeafException.networkException;
+        }
+        Log.d(DEBUG_TAG, "malformed response: " + e.getMessage());
+        return SeafException.illFormatException;
+    }
+
     private Pair<String, String> getDownloadLink(String repoID, String path) throws SeafException {
         try {
             String apiPath = String.format("api2/repos/%s/file/", repoID);
@@ -397,8 +506,11 @@ public class SeafConnection {
         }
     }
 
-    private File getFileFromLink(String dlink, String path, String localPath,
-                                 String oid, ProgressMonitor monitor)
+    /**
+     * @param copyTo if not null, the whole content of the file is also written to it, as it is received
+     */
+    private File getFileFromLink(String dlink, String repoID, String path, String localPath,
+                                 String oid, ProgressMonitor monitor, OutputStream copyTo)
                                     throws SeafException {
         if (dlink == null)
             return null;
@@ -410,8 +522,30 @@ public class SeafConnection {
             String quoted = dlink.substring(0, i) + "/" +
                     URLEncoder.encode(dlink.substring(i+1), "UTF-8");
 
+            // continue an interrupted download of the same version if there is one
+            File tmp = DataManager.getPartialTempFile(repoID, path, oid);
+            long offset = tmp.length();
+
             HttpRequest req = prepareApiFileGetRequest(quoted);
-            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            if (offset > 0) {
+                req.header("Range", "bytes=" + offset + "-");
+            }
+
+            if (offset > 0 && req.code() == HTTP_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // the partial file is no good, start over
+                Log.d(DEBUG_TAG, "Range not satisfiable, discard partial file of " + path);
+                tmp.delete();
+                offset = 0;
+                req = prepareApiFileGetRequest(quoted);
+            }
+
+            if (offset > 0 && req.code() == HttpURLConnection.HTTP_PARTIAL) {
+                Log.d(DEBUG_TAG, "Resume download of " + path + " at " + offset);
+            } else {
+                // the server ignored the range and sends the whole file
+                checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+                offset = 0;
+            }
 
             if (monitor != null) {
                 /*if (req.header(HttpRequest.HEADER_CONTENT_LENGTH) == null) {
@@ -419,24 +553,38 @@ public class SeafConnection {
                 }
                 Long size = Long.parseLong(req.header(HttpRequest.HEADER_CONTENT_LENGTH));*/
                 if (req.contentLength() > 0) {
-                    Long size =  Long.valueOf(req.contentLength());
+                    Long size =  Long.valueOf(offset + req.contentLength());
                     monitor.onProgressNotify(size);
                 };
             }
 
-            File tmp = DataManager.getTempFile(path, oid);
             // Log.d(DEBUG_TAG, "write to " + tmp.getAbsolutePath());
+            OutputStream fileOut;
             if (monitor == null) {
-                req.receive(tmp);
+                fileOut = new FileOutputStream(tmp, offset > 0);
             } else {
                 req.bufferSize(MonitoredFileOutputStream.BUFFER_SIZE);
-                req.receive(new MonitoredFileOutputStream(tmp, monitor));
+                fileOut = new MonitoredFileOutputStream(tmp, monitor, offset);
+            }
+            try {
+                OutputStream out = fileOut;
+                if (copyTo != null) {
+                    if (offset > 0) {
+                        // start with what an earlier attempt downloaded
+                        Files.copy(tmp, copyTo);
+                    }
+                    out = new TeeOutputStream(fileOut, copyTo);
+                }
+                req.receive(out);
+            } finally {
+                fileOut.close();
             }
 
             if (!tmp.renameTo(file)) {
                 Log.w(DEBUG_TAG, "Rename file error");
                 return null;
             }
+            DataManager.removePartialTempFile(repoID, path);
             return file;
 
         } catch (SeafException e) {
@@ -470,6 +618,22 @@ public class SeafConnection {
                                           String localPath,
                                           String cachedFileID,
                                           ProgressMonitor monitor) throws SeafException {
+        return getFile(repoID, path, localPath, cachedFileID, monitor, null);
+    }
+
+    /**
+     * Get the latest version of the file from server, and stream its content while it is downloaded
+     *
+     * @param copyTo if the file is downloaded, its content is also written to this stream as it
+     *               arrives. Nothing is written if the local cached version is up to date.
+     * @see #getFile(String, String, String, String, ProgressMonitor)
+     */
+    public Pair<String, File> getFile(String repoID,
+                                          String path,
+                                          String localPath,
+                                          String cachedFileID,
+                                          ProgressMonitor monitor,
+                                          OutputStream copyTo) throws SeafException {
         Pair<String, String> ret = getDownloadLink(repoID, path);
         String dlink = ret.first;
         String fileID = ret.second;
@@ -483,7 +647,7 @@ public class SeafConnection {
                   String.format("file %s will be downloaded from server, latest %s, local cache %s",
                                 path, fileID, cachedFileID != null ? cachedFileID : "null"));*/
 
-            File file = getFileFromLink(dlink, path, localPath, fileID, monitor);
+            File file = getFileFromLink(dlink, repoID, path, localPath, fileID, monitor, copyTo);
             if (file != null) {
                 return new Pair<String, File>(fileID, file);
             } else {
@@ -499,6 +663,7 @@ public class SeafConnection {
 
             req.form("password", passwd);
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            SeafConnectionPool.instance().release(req);
         } catch (SeafException e) {
             Log.d(DEBUG_TAG, "Set Password err: " + e.getCode());
             throw e;
@@ -570,10 +735,103 @@ public class SeafConnection {
         }
     }
 
+    /**
+     * Upload a new file in blocks of {@link #UPLOAD_CHUNK_SIZE} bytes.
+     *
+     * Each block is sent as a separate request carrying a Content-Range header, so the server
+     * keeps the bytes it has already received. If the transfer is interrupted, the next call
+     * asks the server how many bytes it has and continues from there instead of byte zero.
+     *
+     * @param committedOffset the offset recorded locally for a previous attempt, 0 if none
+     * @return the id of the uploaded file
+     */
+    public String uploadFileChunked(String repoID, String dir, String filePath,
+                                    long committedOffset, ChunkedProgressMonitor monitor)
+                                        throws SeafException {
+        File file = new File(filePath);
+        if (!file.exists()) {
+            throw new SeafException(SeafException.OTHER_EXCEPTION, "File not exists");
+        }
+
+        long offset = 0;
+        if (committedOffset > 0) {
+            // the server is authoritative, our own record could be stale
+            offset = getUploadedBytes(repoID, dir, file.getName());
+            if (offset > file.length()) {
+                offset = 0;
+            }
+        }
+
+        String url = getUploadLink(repoID, false);
+        while (true) {
+            long end = Math.min(offset + UPLOAD_CHUNK_SIZE, file.length());
+            String result;
+            try {
+                result = uploadChunk(url, dir, file, offset, end, monitor);
+            } catch (SeafException e) {
+                if (e == SeafException.userCancelledException) {
+                    throw e;
+                }
+                // do again, the upload link may have expired
+                url = getUploadLink(repoID, false);
+                result = uploadChunk(url, dir, file, offset, end, monitor);
+            }
+
+            offset = end;
+            if (monitor != null) {
+                monitor.onChunkCommitted(offset);
+            }
+
+            if (offset >= file.length()) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Ask the server how many bytes of a file from a previous interrupted chunked
+     * upload it has received.
+     *
+     * @return the number of bytes, or 0 if the server does not support resumable uploads
+     */
+    public long getUploadedBytes(String repoID, String dir, String fileName) throws SeafException {
+        try {
+            String apiPath = String.format("api/v2.1/repos/%s/file-uploaded-bytes/", repoID);
+            Map<String, Object> params = Maps.newHashMap();
+            params.put("parent_dir", encodeUriComponent(dir));
+            params.put("file_name", encodeUriComponent(fileName));
+            HttpRequest req = prepareApiGetRequest(apiPath, params);
+            if (req.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+                SeafConnectionPool.instance().release(req);
+                return 0;
+            }
+            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+
+            JSONObject obj = Utils.parseJsonObject(new String(req.bytes(), "UTF-8"));
+            if (obj == null) {
+                return 0;
+            }
+            return obj.optLong("uploadedBytes", 0);
+        } catch (SeafException e) {
+            throw e;
+        } catch (UnsupportedEncodingException e) {
+            throw SeafException.encodingException;
+        } catch (HttpRequestException e) {
+            throw getSeafExceptionFromHttpRequestException(e);
+        } catch (IOException e) {
+            throw SeafException.networkException;
+        }
+    }
+
     private static final String CRLF = "\r\n";
     private static final String TWO_HYPENS = "--";
     private static final String BOUNDARY = "----SeafileAndroidBound$_$";
 
+    /**
+     * Block size of chunked uploads
+     */
+    public static final long UPLOAD_CHUNK_SIZE = 4 * 1024 * 1024;
+
     /**
      * Upload a file to seafile httpserver
      */
@@ -647,7 +905,6 @@ public class SeafConnection {
             totalLen += end.length();
 
             req.contentLength(totalLen);
-            req.header("Connection", "close");
             req.header("Cache-Control", "no-cache");
             req.header("Content-Type", "multipart/form-data;boundary=" + BOUNDARY);
 
@@ -686,6 +943,69 @@ public class SeafConnection {
         }
     }
 
+    /**
+     * Upload the bytes [start, end) of a file to seafile httpserver as one block of a chunked upload
+     */
+    private String uploadChunk(String link, String dir, File file, long start, long end,
+                               ProgressMonitor monitor) throws SeafException {
+        try {
+            HttpRequest req = HttpRequest.post(link).followRedirects(true).connectTimeout(CONNECTION_TIMEOUT);
+
+            prepareHttpsCheck(req);
+
+            // the "parent_dir" param
+            StringBuilder builder = new StringBuilder();
+            builder.append(TWO_HYPENS + BOUNDARY + CRLF);
+            builder.append("Content-Disposition: form-data; name=\"parent_dir\"" + CRLF);
+            builder.append(CRLF);
+            builder.append(dir + CRLF);
+            byte[] dirParam = builder.toString().getBytes("UTF-8");
+
+            String l1 = TWO_HYPENS + BOUNDARY + CRLF;
+            String contentDisposition = "Content-Disposition: form-data; name=\"file\";filename=\"" + file.getName() + "\"" + CRLF;
+            byte[] l2 = contentDisposition.getBytes("UTF-8");
+            String l3 = "Content-Type: application/octet-stream" + CRLF;
+            String l4 = CRLF;
+            String tail = TWO_HYPENS + BOUNDARY + TWO_HYPENS + CRLF;
+
+            long totalLen = dirParam.length + l1.length() + l2.length + l3.length() + l4.length()
+                    + (end - start) + CRLF.length() + tail.length();
+
+            String encodedName = encodeUriComponent(file.getName());
+
+            req.contentLength((int) totalLen);
+            req.header("Cache-Control", "no-cache");
+            req.header("Content-Type", "multipart/form-data;boundary=" + BOUNDARY);
+            req.header("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + file.length());
+            req.header("Content-Disposition", "attachment; filename=\"" + encodedName + "\"");
+
+            req.send(dirParam);
+            req.send(l1);
+            req.send(l2);
+            req.send(l3);
+            req.send(l4);
+
+            req.bufferSize(MonitoredFileInputStream.BUFFER_SIZE);
+            req.send(new MonitoredFileInputStream(file, monitor, start, end - start));
+
+            req.send(CRLF);
+            req.send(tail);
+
+            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+
+            return new String(req.bytes(), "UTF-8");
+        } catch (IOException e) {
+            throw SeafException.networkException;
+        } catch (HttpRequestException e) {
+            if (e.getCause() instanceof MonitorCancelledException) {
+                Log.d(DEBUG_TAG, "upload is cancelled");
+                throw SeafException.userCancelledException;
+            } else {
+                throw getSeafExceptionFromHttpRequestException(e);
+            }
+        }
+    }
+
     public Pair<String, String> createNewDir(String repoID,
                                                  String parentDir,
                                                  String dirName) throws SeafException {
@@ -705,6 +1025,7 @@ public class SeafConnection {
 
             String newDirID = req.header("oid");
             if (newDirID == null) {
+                SeafConnectionPool.instance().release(req);
                 return null;
             }
 
@@ -742,6 +1063,7 @@ public class SeafConnection {
 
             String newDirID = req.header("oid");
             if (newDirID == null) {
+                SeafConnectionPool.instance().release(req);
                 return null;
             }
 
@@ -771,19 +1093,50 @@ public class SeafConnection {
         private static final long PROGRESS_UPDATE_INTERVAL = 1000;
         private ProgressMonitor monitor;
         private InputStream src;
+        private long offset;
+        private long remaining;
         private long bytesRead = 0;
         private long nextUpdate = System.currentTimeMillis() + PROGRESS_UPDATE_INTERVAL;
 
         public MonitoredFileInputStream(File file, ProgressMonitor monitor) throws IOException {
+            this(file, monitor, 0, file.length());
+        }
+
+        /**
+         * Only read <code>length</code> bytes starting at <code>offset</code>. The progress
+         * reported to the monitor includes the skipped offset.
+         */
+        public MonitoredFileInputStream(File file, ProgressMonitor monitor,
+                                        long offset, long length) throws IOException {
             this.src = new FileInputStream(file);
             this.monitor = monitor;
+            this.offset = offset;
+            this.remaining = length;
+
+            long toSkip = offset;
+            while (toSkip > 0) {
+                long skipped = src.skip(toSkip);
+                if (skipped <= 0) {
+                    throw new IOException("Could not seek to " + offset);
+                }
+                toSkip -= skipped;
+            }
         }
 
         @Override
         public int read(byte[] buffer) throws IOException {
-            int read = src.read(buffer);
+            return read(buffer, 0, buffer.length);
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = src.read(buffer, off, (int) Math.min(len, remaining));
             if (read != -1) {
                 bytesRead += read;
+                remaining -= read;
             }
 
             checkMonitor();
@@ -793,9 +1146,13 @@ public class SeafConnection {
 
         @Override
         public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
             int ret = src.read();
             if (ret != -1) {
                 ++bytesRead;
+                --remaining;
                 if (bytesRead % BUFFER_SIZE == 0) {
                     checkMonitor();
                 }
@@ -810,13 +1167,17 @@ public class SeafConnection {
         }
 
         private void checkMonitor() throws MonitorCancelledException {
+            if (monitor == null) {
+                return;
+            }
+
             if (monitor.isCancelled() ||
                 Thread.currentThread().isInterrupted()) {
                 throw new MonitorCancelledException();
             }
 
             if (System.currentTimeMillis() > nextUpdate) {
-                monitor.onProgressNotify(bytesRead);
+                monitor.onProgressNotify(offset + bytesRead);
                 nextUpdate = System.currentTimeMillis() + PROGRESS_UPDATE_INTERVAL;
             }
         }
@@ -835,8 +1196,17 @@ public class SeafConnection {
         private long nextUpdate = System.currentTimeMillis() + PROGRESS_UPDATE_INTERVAL;
 
         public MonitoredFileOutputStream(File file, ProgressMonitor monitor) throws IOException {
-            this.dst = new FileOutputStream(file);
+            this(file, monitor, 0);
+        }
+
+        /**
+         * Append to a partially downloaded file of <code>offset</code> bytes, the progress
+         * reported to the monitor includes these bytes.
+         */
+        public MonitoredFileOutputStream(File file, ProgressMonitor monitor, long offset) throws IOException {
+            this.dst = new FileOutputStream(file, offset > 0);
             this.monitor = monitor;
+            this.bytesWritten = offset;
         }
 
         @Override
@@ -896,6 +1266,7 @@ public class SeafConnection {
             req.form("p", path);
             req.form("type", isdir ? "d": "f");
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_CREATED);
+            SeafConnectionPool.instance().release(req);
 
             String result = req.header("Location");
             if (result == null) {
@@ -921,6 +1292,7 @@ public class SeafConnection {
             req.form("p", path);
 
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_CREATED);
+            SeafConnectionPool.instance().release(req);
 
         } catch (SeafException e) {
             throw e;
@@ -937,6 +1309,7 @@ public class SeafConnection {
             HttpRequest req = prepareApiDeleteRequest("api2/starredfiles/", params);
 
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            SeafConnectionPool.instance().release(req);
 
         } catch (SeafException e) {
             throw e;
@@ -961,6 +1334,7 @@ public class SeafConnection {
 
             String newDirID = req.header("oid");
             if (newDirID == null) {
+                SeafConnectionPool.instance().release(req);
                 return null;
             }
 
@@ -992,6 +1366,7 @@ public class SeafConnection {
 
             String newDirID = req.header("oid");
             if (newDirID == null) {
+                SeafConnectionPool.instance().release(req);
                 return null;
             }
 
@@ -1033,6 +1408,7 @@ public class SeafConnection {
             req.form("file_names", srcFn);
 
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            SeafConnectionPool.instance().release(req);
 
         } catch (SeafException e) {
             throw e;
@@ -1064,6 +1440,7 @@ public class SeafConnection {
             req.form("file_names", srcFn);
 
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            SeafConnectionPool.instance().release(req);
 
         } catch (SeafException e) {
             throw e;
@@ -1098,6 +1475,7 @@ public class SeafConnection {
 
             String newDirID = req.header("oid");
             if (newDirID == null) {
+                SeafConnectionPool.instance().release(req);
                 return null;
             }
 
@@ -1120,6 +1498,9 @@ public class SeafConnection {
         if (req.code() != expectedStatusCode) {
             Log.d(DEBUG_TAG, "HTTP request failed : " + req.url() + ", " + req.code() + ", " + req.message());
 
+            // give the connection back to the pool
+            SeafConnectionPool.instance().release(req);
+
             if (req.message() == null) {
                 throw SeafException.networkException;
             } else {
@@ -0,0 +1,168 @@
+package com.seafile.seadroid2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.util.Log;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
+import com.google.common.collect.Maps;
+import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.ssl.SSLSeafileSocketFactory;
+import com.seafile.seadroid2.ssl.SSLTrustManager;
+
+/**
+ * Shares keep-alive connections between the requests of an account.
+ * <p/>
+ * HttpURLConnection keeps idle connections in a process wide pool, keyed by the address
+ * <strong>and</strong> the SSLSocketFactory instance. Every request of an account is given the
+ * same factory from {@link SSLTrustManager#getSSLSocketFactory(Account)}, so its connections and
+ * SSL sessions can be reused. A connection only goes back to the pool once its response body
+ * has been read to the end, which is what {@link #release(HttpRequest)} is for.
+ */
+public final class SeafConnectionPool {
+    private static final String DEBUG_TAG = "SeafConnectionPool";
+
+    /**
+     * max idle connections kept per address
+     */
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+
+    /**
+     * unread response bodies larger than this are not worth draining, the connection is closed
+     */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static SeafConnectionPool instance;
+
+    private Map<Account, AtomicInteger> requestCounts = Maps.newHashMap();
+
+    private SeafConnectionPool() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+    }
+
+    public static synchronized SeafConnectionPool instance() {
+        if (instance == null) {
+            instance = new SeafConnectionPool();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Prepare a request of the account, so it can use a pooled connection.
+     */
+    public HttpRequest prepare(Account account, HttpRequest req) {
+        getRequestCount(account).incrementAndGet();
+
+        HttpURLConnection conn = req.getConnection();
+        if (conn instanceof HttpsURLConnection) {
+            // Tell HttpRequest to trust all hosts, and then the user will get a dialog
+            // where he needs to confirm the SSL certificate for the account,
+            // and the accepted certificate will be stored, so he is not prompted to accept later on.
+            // This is handled by SSLTrustManager and CertsManager
+            req.trustAllHosts();
+            HttpsURLConnection sconn = (HttpsURLConnection)conn;
+            sconn.setSSLSocketFactory(SSLTrustManager.instance().getSSLSocketFactory(account));
+        }
+
+        return req;
+    }
+
+    /**
+     * Consume what is left of the response of a request, so its connection can be reused.
+     * Call this for requests whose response body is not read.
+     */
+    public void release(HttpRequest req) {
+        InputStream in = null;
+        try {
+            in = req.stream();
+            byte[] buffer = new byte[1024];
+            int drained = 0;
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                drained += len;
+                if (drained > MAX_DRAIN_BYTES) {
+                    req.disconnect();
+                    return;
+                }
+            }
+        } catch (HttpRequestException e) {
+            // ignore, the connection is not reusable anyway
+        } catch (IOException e) {
+            // ignore, the connection is not reusable anyway
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private synchronized AtomicInteger getRequestCount(Account account) {
+        AtomicInteger count = requestCounts.get(account);
+        if (count == null) {
+            count = new AtomicInteger();
+            requestCounts.put(account, count);
+        }
+        return count;
+    }
+
+    /**
+     * Get the connection counters of an account
+     */
+    public Stats getStats(Account account) {
+        Stats stats = new Stats();
+        stats.requests = getRequestCount(account).get();
+
+        SSLSocketFactory factory = SSLTrustManager.instance().getSSLSocketFactory(account);
+        if (factory instanceof SSLSeafileSocketFactory) {
+            SSLSeafileSocketFactory sf = (SSLSeafileSocketFactory) factory;
+            stats.connections = sf.getSocketCount();
+            stats.fullHandshakes = sf.getFullHandshakeCount();
+            stats.resumedHandshakes = sf.getResumedHandshakeCount();
+        }
+
+        Log.d(DEBUG_TAG, account.getServer() + " " + stats);
+        return stats;
+    }
+
+    /**
+     * Connection counters of an account. Connections and handshakes are only counted for https.
+     */
+    public static class Stats {
+        public int requests;
+        public int connections;
+        public int fullHandshakes;
+        public int resumedHandshakes;
+
+        /**
+         * @return the share of requests served by an already open connection
+         */
+        public float getReuseRate() {
+            if (requests == 0) {
+                return 0;
+            }
+            return Math.max(0, requests - connections) / (float) requests;
+        }
+
+        @Override
+        public String toString() {
+            return "requests " + requests + " connections " + connections
+                    + " full handshakes " + fullHandshakes
+                    + " resumed handshakes " + resumedHandshakes
+                    + " reuse rate " + getReuseRate();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import android.text.TextUtils;
 
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.account.AccountManager;
+import com.seafile.seadroid2.cameraupload.MediaTranscoder;
 import com.seafile.seadroid2.data.DatabaseHelper;
 import com.seafile.seadroid2.util.Utils;
 import com.seafile.seadroid2.gesturelock.LockPatternUtils;
@@ -56,10 +57,15 @@ public final class SettingsManager {
     public static final String CAMERA_UPLOAD_ADVANCED_CATEGORY_KEY = "category_camera_upload_advanced_key";
     public static final String CAMERA_UPLOAD_ALLOW_DATA_PLAN_SWITCH_KEY = "allow_data_plan_switch_key";
     public static final String CAMERA_UPLOAD_ALLOW_VIDEOS_SWITCH_KEY = "allow_videos_upload_switch_key";
+    public static final String CAMERA_UPLOAD_DEDUP_SWITCH_KEY = "camera_upload_dedup_switch_key";
+    public static final String CAMERA_UPLOAD_TRANSCODE_SWITCH_KEY = "camera_upload_transcode_switch_key";
+    public static final String CAMERA_UPLOAD_TRANSCODE_DIMENSION_KEY = "camera_upload_transcode_dimension_key";
+    public static final String CAMERA_UPLOAD_TRANSCODE_QUALITY_KEY = "camera_upload_transcode_quality_key";
     public static final String CAMERA_UPLOAD_BUCKETS_KEY = "camera_upload_buckets_key";
     public static final String CAMERA_UPLOAD_CATEGORY_KEY = "category_camera_upload_key";
     public static final String CAMERA_UPLOAD_CUSTOM_BUCKETS_KEY = "camera_upload_buckets_switch_key";
     public static final String SHARED_PREF_CAMERA_UPLOAD_BUCKETS = PKG + ".camera.buckets";
+    public static final String SHARED_PREF_CAMERA_UPLOAD_LAST_FULL_SCAN = PKG + ".camera.lastFullScan";
 
     // About tab
     public static final String SETTINGS_ABOUT_VERSION_KEY = "settings_about_version_key";
@@ -68,6 +74,7 @@ public final class SettingsManager {
     // Cache
     public static final String SETTINGS_CACHE_SIZE_KEY = "settings_cache_info_key";
     public static final String SETTINGS_CLEAR_CACHE_KEY = "settings_clear_cache_key";
+    public static final String FOLDER_PREFETCH_SWITCH_KEY = "folder_prefetch_switch_key";
 
     // Sort files
     public static final String SORT_FILES_TYPE = "sort_files_type";
@@ -163,6 +170,47 @@ public final class SettingsManager {
         return settingsSharedPref.getBoolean(CAMERA_UPLOAD_ALLOW_VIDEOS_SWITCH_KEY, false);
     }
 
+    public boolean isCameraUploadDedupEnabled() {
+        return settingsSharedPref.getBoolean(CAMERA_UPLOAD_DEDUP_SWITCH_KEY, false);
+    }
+
+    public boolean isCameraUploadTranscodeEnabled() {
+        return settingsSharedPref.getBoolean(CAMERA_UPLOAD_TRANSCODE_SWITCH_KEY, false);
+    }
+
+    /**
+     * @return the maximum size in pixels of the longer side of a transcoded photo
+     */
+    public int getCameraUploadTranscodeDimension() {
+        return getIntPref(CAMERA_UPLOAD_TRANSCODE_DIMENSION_KEY, MediaTranscoder.DEFAULT_MAX_DIMENSION);
+    }
+
+    /**
+     * @return the JPEG quality of a transcoded photo, from 0 to 100
+     */
+    public int getCameraUploadTranscodeQuality() {
+        return getIntPref(CAMERA_UPLOAD_TRANSCODE_QUALITY_KEY, MediaTranscoder.DEFAULT_JPEG_QUALITY);
+    }
+
+    /**
+     * ListPreference only stores strings
+     */
+    private int getIntPref(String key, int defaultValue) {
+        String value = settingsSharedPref.getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public boolean isFolderPrefetchEnabled() {
+        return settingsSharedPref.getBoolean(FOLDER_PREFETCH_SWITCH_KEY, false);
+    }
+
     public void saveDataPlanAllowed(boolean isAllowed) {
         settingsSharedPref.edit().putBoolean(CAMERA_UPLOAD_ALLOW_DATA_PLAN_SWITCH_KEY, isAllowed).commit();
     }
@@ -190,6 +238,17 @@ public final class SettingsManager {
         return Arrays.asList(TextUtils.split(s, ","));
     }
 
+    /**
+     * @return the time of the last camera upload sync which scanned all media, 0 if none
+     */
+    public long getCameraUploadLastFullScan() {
+        return sharedPref.getLong(SHARED_PREF_CAMERA_UPLOAD_LAST_FULL_SCAN, 0);
+    }
+
+    public void saveCameraUploadLastFullScan(long timestamp) {
+        sharedPref.edit().putLong(SHARED_PREF_CAMERA_UPLOAD_LAST_FULL_SCAN, timestamp).commit();
+    }
+
     public int getSortFilesTypePref() {
         return sharedPref.getInt(SORT_FILES_TYPE, 0);
     }
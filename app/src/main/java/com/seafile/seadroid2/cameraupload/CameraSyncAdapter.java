@@ -11,13 +11,17 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SyncResult;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.provider.MediaStore;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
+import android.util.Pair;
 
-import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.SettingsManager;
@@ -28,16 +32,23 @@ import com.seafile.seadroid2.data.SeafDirent;
 import com.seafile.seadroid2.data.SeafRepo;
 import com.seafile.seadroid2.transfer.TaskState;
 import com.seafile.seadroid2.transfer.TransferService;
+import com.seafile.seadroid2.transfer.UploadStateListener;
 import com.seafile.seadroid2.transfer.UploadTaskInfo;
 import com.seafile.seadroid2.ui.activity.AccountsActivity;
 import com.seafile.seadroid2.ui.activity.SettingsActivity;
 import com.seafile.seadroid2.util.Utils;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Sync adapter for media upload.
@@ -53,6 +64,7 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
     private SettingsManager settingsMgr = SettingsManager.instance();
     private com.seafile.seadroid2.account.AccountManager manager;
     private CameraUploadDBHelper dbHelper;
+    private UploadedSet uploadedSet;
 
     private String targetRepoId;
     private String targetRepoName;
@@ -60,6 +72,42 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
 
     private final String BASE_DIR = "My Photos";
 
+    /**
+     * Syncs only scan the media added since the previous sync. All media are scanned again at
+     * least this often, to catch up on media the incremental scans missed.
+     */
+    private static final long FULL_SCAN_INTERVAL = 7 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * true if the current sync scans all media, not only the new ones
+     */
+    private boolean fullScan;
+
+    /**
+     * true once the server directories have been created in the current sync
+     */
+    private boolean directoriesCreated;
+
+    /**
+     * true if files whose content has already been uploaded to the target repo are skipped
+     */
+    private boolean contentDedup;
+
+    /**
+     * With content deduplication, at most this many files are hashed ahead of the uploads
+     */
+    private static final int MAX_PENDING_HASHES = 32;
+
+    /**
+     * While media are queued, uploaded files are recorded once at least this many are waiting
+     */
+    private static final int RECORD_BATCH_SIZE = 50;
+
+    /**
+     * Transcodes photos before they are uploaded, null if the user did not opt in
+     */
+    private MediaTranscoder transcoder;
+
     /**
      * Will be set to true if the current sync has been cancelled.
      */
@@ -70,7 +118,81 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
      */
     private List<Integer> tasksInProgress = new ArrayList<>();
 
-    TransferService txService = null;
+    /**
+     * The sync thread waits on it for uploads to finish. Guards the upload results below.
+     */
+    private final Object uploadLock = new Object();
+
+    /**
+     * Uploads of the current pass which have not finished yet
+     */
+    private final Set<Integer> pendingTasks = Sets.newHashSet();
+
+    /**
+     * The first error of an upload of the current pass, if any
+     */
+    private SeafException uploadError;
+
+    /**
+     * Number of files uploaded in the current pass
+     */
+    private int uploadedCount;
+
+    /**
+     * Content hashes of the files of the pending uploads, by task id
+     */
+    private final Map<Integer, String> uploadHashes = Maps.newHashMap();
+
+    /**
+     * Files uploaded, or found on the server, which are not recorded in our DB yet, with their
+     * content hash or null. They are recorded in batches on the sync thread, see {@link #recordUploads(int)}.
+     */
+    private final Map<File, String> finishedUploads = Maps.newLinkedHashMap();
+
+    /**
+     * Number of photos being transcoded, which are not handed over to the TransferService yet
+     */
+    private int pendingTranscodes;
+
+    /**
+     * The original media of the pending uploads of transcoded photos, by task id
+     */
+    private final Map<Integer, File> uploadSources = Maps.newHashMap();
+
+    /**
+     * The transcoded files of the pending uploads, by task id
+     */
+    private final Map<Integer, File> transcodedFiles = Maps.newHashMap();
+
+    /**
+     * While waiting, the states of the pending uploads are checked this often, in case an event was lost
+     */
+    private static final long UPLOAD_CHECK_INTERVAL = 30 * 1000;
+
+    private final UploadStateListener uploadListener = new UploadStateListener() {
+        // this will run in the main thread
+
+        @Override
+        public void onFileUploadProgress(int taskID) {
+        }
+
+        @Override
+        public void onFileUploaded(int taskID) {
+            onUploadDone(taskID);
+        }
+
+        @Override
+        public void onFileUploadCancelled(int taskID) {
+            onUploadDone(taskID);
+        }
+
+        @Override
+        public void onFileUploadFailed(int taskID) {
+            onUploadDone(taskID);
+        }
+    };
+
+    volatile TransferService txService = null;
 
     ServiceConnection mConnection = new ServiceConnection() {
         @Override
@@ -128,6 +250,10 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
         synchronized (this) {
             cancelled = true;
         }
+        synchronized (uploadLock) {
+            // wake up waitForUploads()
+            uploadLock.notifyAll();
+        }
     }
 
     private boolean isCancelled() {
@@ -239,6 +365,17 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
             dbHelper.cleanPhotoCache();
         }
 
+        long syncStart = System.currentTimeMillis();
+        fullScan = extras.getBoolean(ContentResolver.SYNC_EXTRAS_INITIALIZE)
+                || syncStart - settingsMgr.getCameraUploadLastFullScan() > FULL_SCAN_INTERVAL;
+        directoriesCreated = false;
+        uploadedSet = new UploadedSet(dbHelper);
+        contentDedup = settingsMgr.isCameraUploadDedupEnabled();
+        transcoder = settingsMgr.isCameraUploadTranscodeEnabled()
+                ? new MediaTranscoder(settingsMgr.getCameraUploadTranscodeDimension(),
+                        settingsMgr.getCameraUploadTranscodeQuality())
+                : null;
+
         if (!settingsMgr.checkCameraUploadNetworkAvailable()) {
             Log.d(DEBUG_TAG, "Not syncing because of data plan restriction.");
             // treat dataPlan abort the same way as a network connection error
@@ -299,12 +436,15 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
                 timeout -= 100;
             }
 
-            if (txService == null) {
+            TransferService service = txService;
+            if (service == null) {
                 Log.e(DEBUG_TAG, "TransferService did not come up in time, aborting sync");
                 syncResult.delayUntil = 60;
                 return;
             }
 
+            service.addUploadStateListener(uploadListener);
+
             uploadImages(syncResult, dataManager);
 
             if (settingsMgr.isVideosUploadAllowed()) {
@@ -315,6 +455,9 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
                 Log.i(DEBUG_TAG, "sync was cancelled.");
             } else {
                 Log.i(DEBUG_TAG, "sync finished successfully.");
+                if (fullScan) {
+                    settingsMgr.saveCameraUploadLastFullScan(syncStart);
+                }
             }
             Log.d(DEBUG_TAG, "syncResult: " + syncResult);
 
@@ -343,14 +486,22 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
             Log.e(DEBUG_TAG, "sync aborted because an unknown error", e);
             syncResult.stats.numParseExceptions++;
         } finally {
-            if (txService != null) {
+            // photos still being transcoded check txService under the lock
+            synchronized (uploadLock) {
+                // the uploads left are cancelled, give back the room of their transcoded files
+                releaseTranscodedFiles();
 
-                Log.d(DEBUG_TAG, "Cancelling remaining pending tasks (if any)");
-                txService.cancelUploadTasksByIds(tasksInProgress);
+                TransferService service = txService;
+                if (service != null) {
 
-                Log.d(DEBUG_TAG, "disconnecting from TransferService");
-                getContext().unbindService(mConnection);
-                txService = null;
+                    Log.d(DEBUG_TAG, "Cancelling remaining pending tasks (if any)");
+                    service.removeUploadStateListener(uploadListener);
+                    service.cancelUploadTasksByIds(tasksInProgress);
+
+                    Log.d(DEBUG_TAG, "disconnecting from TransferService");
+                    getContext().unbindService(mConnection);
+                    txService = null;
+                }
             }
         }
     }
@@ -359,9 +510,23 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
 
         Log.d(DEBUG_TAG, "Starting to upload images...");
 
-        if (isCancelled())
-            return;
+        uploadMedia(syncResult, dataManager, CameraUploadDBHelper.MEDIA_TYPE_IMAGE,
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                MediaStore.Images.ImageColumns.BUCKET_ID,
+                MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME);
+    }
+
+    private void uploadVideos(SyncResult syncResult, DataManager dataManager) throws SeafException, InterruptedException {
+
+        Log.d(DEBUG_TAG, "Starting to upload videos...");
 
+        uploadMedia(syncResult, dataManager, CameraUploadDBHelper.MEDIA_TYPE_VIDEO,
+                MediaStore.Video.Media.EXTERNAL_CONTENT_URI,
+                MediaStore.Video.VideoColumns.BUCKET_ID,
+                MediaStore.Video.VideoColumns.BUCKET_DISPLAY_NAME);
+    }
+
+    private List<String> getSelectedBuckets() {
         List<String> selectedBuckets = new ArrayList<>();
         if (bucketList.size() > 0) {
             selectedBuckets = bucketList;
@@ -372,110 +537,116 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
                     selectedBuckets.add(bucket.id);
             }
         }
+        return selectedBuckets;
+    }
 
-        String[] selectionArgs = selectedBuckets.toArray(new String[]{});
-        String selection = MediaStore.Images.ImageColumns.BUCKET_ID + " IN " + varArgs(selectedBuckets.size());
+    /**
+     * Upload the media of the selected buckets.
+     *
+     * Only the media added after the scan mark of a bucket, the newest media handled by a previous sync,
+     * are queried, unless this is a full scan. The marks are moved once all uploads have finished.
+     */
+    private void uploadMedia(SyncResult syncResult, DataManager dataManager, String mediaType, Uri uri,
+                             String bucketIdColumn, String bucketNameColumn) throws SeafException, InterruptedException {
 
-        Log.d(DEBUG_TAG, "ContentResolver selection='"+selection+"' selectionArgs='"+Arrays.deepToString(selectionArgs)+"'");
+        if (isCancelled())
+            return;
 
-        // fetch all new images from the ContentProvider since our last sync
-        Cursor cursor = contentResolver.query(
-                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                new String[]{
-                        MediaStore.Images.Media._ID,
-                        MediaStore.Images.Media.DATA,
-                        MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME
-                },
-                selection,
-                selectionArgs,
-                MediaStore.Images.ImageColumns.DATE_ADDED + " ASC"
-        );
+        tasksInProgress.clear();
+        synchronized (uploadLock) {
+            pendingTasks.clear();
+            uploadHashes.clear();
+            pendingTranscodes = 0;
+            uploadSources.clear();
+            releaseTranscodedFiles();
+            finishedUploads.clear();
+            uploadError = null;
+            uploadedCount = 0;
+        }
+        Map<String, Pair<Long, Long>> newMarks = Maps.newHashMap();
 
         try {
-            if (cursor == null) {
-                Log.e(DEBUG_TAG, "ContentResolver query failed!");
-                return;
-            }
-            Log.d(DEBUG_TAG, "i see " + cursor.getCount() + " new images.");
-            if (cursor.getCount() > 0) {
-                // create directories for media buckets
-                createDirectories(dataManager);
-
-                iterateCursor(syncResult, dataManager, cursor);
-
-                if (isCancelled())
-                    return;
-
-            }
+            queueMedia(syncResult, dataManager, mediaType, uri, bucketIdColumn, bucketNameColumn, newMarks);
+            waitForUploads();
         } finally {
-            if (cursor != null)
-                cursor.close();
+            // also keep what was uploaded before a cancellation or an error
+            recordUploads(1);
         }
-    }
-
-    private void uploadVideos(SyncResult syncResult, DataManager dataManager) throws SeafException, InterruptedException {
-
-        Log.d(DEBUG_TAG, "Starting to upload videos...");
+        checkUploadResult(syncResult);
 
         if (isCancelled())
             return;
 
-        List<String> selectedBuckets = new ArrayList<>();
-        if (bucketList.size() > 0) {
-            selectedBuckets = bucketList;
-        } else {
-            List<GalleryBucketUtils.Bucket> allBuckets = GalleryBucketUtils.getMediaBuckets(getContext());
-            for (GalleryBucketUtils.Bucket bucket: allBuckets) {
-                if (bucket.isCameraBucket)
-                    selectedBuckets.add(bucket.id);
-            }
+        for (Map.Entry<String, Pair<Long, Long>> entry : newMarks.entrySet()) {
+            dbHelper.saveScanMark(mediaType, entry.getKey(), entry.getValue().first, entry.getValue().second);
         }
+    }
 
-        String[] selectionArgs = selectedBuckets.toArray(new String[]{});
-        String selection = MediaStore.Video.VideoColumns.BUCKET_ID + " IN " + varArgs(selectedBuckets.size());
+    /**
+     * Hand over the new media of the selected buckets to the TransferService
+     *
+     * @param newMarks the scan marks to save once all uploads have finished, by bucket id
+     */
+    private void queueMedia(SyncResult syncResult, DataManager dataManager, String mediaType, Uri uri,
+                            String bucketIdColumn, String bucketNameColumn,
+                            Map<String, Pair<Long, Long>> newMarks) throws SeafException, InterruptedException {
 
-        Log.d(DEBUG_TAG, "ContentResolver selection='"+selection+"' selectionArgs='"+Arrays.deepToString(selectionArgs)+"'");
+        for (String bucketID : getSelectedBuckets()) {
+            if (isCancelled())
+                return;
 
-        // fetch all new videos from the ContentProvider since our last sync
-        Cursor cursor = contentResolver.query(
-                MediaStore.Video.Media.EXTERNAL_CONTENT_URI,
-                new String[]{
-                        MediaStore.Video.Media._ID,
-                        MediaStore.Video.Media.DATA,
-                        MediaStore.Video.VideoColumns.BUCKET_DISPLAY_NAME
-                },
-                selection,
-                selectionArgs,
-                MediaStore.Video.VideoColumns.DATE_ADDED + " ASC"
-        );
+            Pair<Long, Long> mark = fullScan ? null : dbHelper.getScanMark(mediaType, bucketID);
 
-        try {
-            if (cursor == null) {
-                Log.e(DEBUG_TAG, "ContentResolver query failed!");
-                return;
+            String selection = bucketIdColumn + " = ?";
+            String[] selectionArgs;
+            if (mark == null) {
+                selectionArgs = new String[] { bucketID };
+            } else {
+                selection += " AND (" + MediaStore.MediaColumns.DATE_ADDED + " > ? OR ("
+                        + MediaStore.MediaColumns.DATE_ADDED + " = ? AND " + MediaStore.MediaColumns._ID + " > ?))";
+                selectionArgs = new String[] { bucketID,
+                        String.valueOf(mark.first), String.valueOf(mark.first), String.valueOf(mark.second) };
             }
-            Log.d(DEBUG_TAG, "i see " + cursor.getCount() + " new videos.");
-            if (cursor.getCount() > 0) {
-                // create directories for media buckets
-                createDirectories(dataManager);
 
-                iterateCursor(syncResult, dataManager, cursor);
-
-                if (isCancelled())
+            Log.d(DEBUG_TAG, "ContentResolver selection='"+selection+"' selectionArgs='"+Arrays.deepToString(selectionArgs)+"'");
+
+            // fetch all new media of the bucket from the ContentProvider since our last sync
+            Cursor cursor = contentResolver.query(
+                    uri,
+                    new String[]{
+                            MediaStore.MediaColumns._ID,
+                            MediaStore.MediaColumns.DATA,
+                            MediaStore.MediaColumns.DATE_ADDED,
+                            bucketNameColumn
+                    },
+                    selection,
+                    selectionArgs,
+                    MediaStore.MediaColumns.DATE_ADDED + " ASC, " + MediaStore.MediaColumns._ID + " ASC"
+            );
+
+            try {
+                if (cursor == null) {
+                    Log.e(DEBUG_TAG, "ContentResolver query failed!");
                     return;
-
+                }
+                Log.d(DEBUG_TAG, "i see " + cursor.getCount() + " new " + mediaType + " in bucket " + bucketID);
+                if (cursor.getCount() > 0) {
+                    // create directories for media buckets
+                    if (!directoriesCreated) {
+                        createDirectories(dataManager);
+                        directoriesCreated = true;
+                    }
+
+                    Pair<Long, Long> newMark = iterateCursor(syncResult, dataManager, cursor, bucketNameColumn);
+                    if (newMark != null) {
+                        newMarks.put(bucketID, newMark);
+                    }
+                }
+            } finally {
+                if (cursor != null)
+                    cursor.close();
             }
-        } finally {
-            if (cursor != null)
-                cursor.close();
         }
-
-    }
-
-    private String varArgs(int count) {
-        String[] chars = new String[count];
-        Arrays.fill(chars, "?");
-        return "( " + Joiner.on(", ").join(chars) + " )";
     }
 
     /**
@@ -484,80 +655,214 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param syncResult
      * @param dataManager
      * @param cursor
+     * @return the (DATE_ADDED, _ID) of the last media, or null if the iteration has been cancelled
      * @throws SeafException
+     * @throws InterruptedException
      */
-    private void iterateCursor(SyncResult syncResult, DataManager dataManager, Cursor cursor) throws SeafException, InterruptedException {
+    private Pair<Long, Long> iterateCursor(SyncResult syncResult, DataManager dataManager, Cursor cursor,
+                                           String bucketNameColumn) throws SeafException, InterruptedException {
 
-        tasksInProgress.clear();
+        int idColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns._ID);
+        int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
+        int dateAddedColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATE_ADDED);
+        int bucketColumn = cursor.getColumnIndexOrThrow(bucketNameColumn);
 
-        // upload them one by one
-        while (!isCancelled() && cursor.moveToNext()) {
+        long lastDateAdded = 0;
+        long lastID = 0;
 
-            int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
-            int bucketColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME);
+        // files being hashed for deduplication, in the order of the cursor
+        LinkedList<HashJob> hashJobs = Lists.newLinkedList();
 
-            File file = new File(cursor.getString(dataColumn));
-            String bucketName = cursor.getString(bucketColumn);
+        try {
+            // upload them one by one
+            while (!isCancelled() && cursor.moveToNext()) {
 
-            // local file does not exist. some inconsistency in the Media Provider? Ignore and continue
-            if (!file.exists()) {
-                Log.d(DEBUG_TAG, "Skipping media "+file+" because it doesn't exist");
-                syncResult.stats.numSkippedEntries++;
-                continue;
-            }
+                lastDateAdded = cursor.getLong(dateAddedColumn);
+                lastID = cursor.getLong(idColumn);
 
-            // Ignore all media by Seafile. We don't want to upload our own cached files.
-            if (file.getAbsolutePath().startsWith(DataManager.getExternalRootDirectory())) {
-                Log.d(DEBUG_TAG, "Skipping media "+file+" because it's part of the Seadroid cache");
-                continue;
+                File file = new File(cursor.getString(dataColumn));
+                String bucketName = cursor.getString(bucketColumn);
+
+                // local file does not exist. some inconsistency in the Media Provider? Ignore and continue
+                if (!file.exists()) {
+                    Log.d(DEBUG_TAG, "Skipping media "+file+" because it doesn't exist");
+                    syncResult.stats.numSkippedEntries++;
+                    continue;
+                }
+
+                // Ignore all media by Seafile. We don't want to upload our own cached files.
+                if (file.getAbsolutePath().startsWith(DataManager.getExternalRootDirectory())) {
+                    Log.d(DEBUG_TAG, "Skipping media "+file+" because it's part of the Seadroid cache");
+                    continue;
+                }
+
+                recordUploads(RECORD_BATCH_SIZE);
+
+                if (uploadedSet.contains(file)) {
+                    Log.d(DEBUG_TAG, "Skipping media " + file + " because we have uploaded it in the past.");
+                    continue;
+                }
+
+                if (!contentDedup) {
+                    uploadFile(dataManager, file, bucketName, null);
+                    continue;
+                }
+
+                // the file is hashed in the background, and uploaded once its hash is known
+                hashJobs.add(new HashJob(file, bucketName));
+                if (hashJobs.size() > MAX_PENDING_HASHES) {
+                    uploadHashed(dataManager, hashJobs.removeFirst());
+                }
             }
 
-            if (dbHelper.isUploaded(file)) {
-                Log.d(DEBUG_TAG, "Skipping media " + file + " because we have uploaded it in the past.");
-                continue;
+            while (!isCancelled() && !hashJobs.isEmpty()) {
+                uploadHashed(dataManager, hashJobs.removeFirst());
             }
+        } finally {
+            for (HashJob job : hashJobs) {
+                job.hash.cancel(true);
+            }
+        }
 
-            uploadFile(dataManager, file, bucketName);
+        if (isCancelled()) {
+            return null;
         }
 
-        waitForUploads();
-        checkUploadResult(syncResult);
+        return new Pair<Long, Long>(lastDateAdded, lastID);
+    }
+
+    /**
+     * Upload a hashed file, unless a file with the same content has already been uploaded to the target repo
+     */
+    private void uploadHashed(DataManager dataManager, HashJob job) throws SeafException, InterruptedException {
+        String contentHash = null;
+        try {
+            contentHash = job.hash.get();
+        } catch (ExecutionException e) {
+            Log.w(DEBUG_TAG, "Could not hash " + job.file + ", uploading it anyway", e.getCause());
+        }
+
+        if (contentHash != null && dbHelper.isContentUploaded(targetRepoId, contentHash)) {
+            Log.d(DEBUG_TAG, "Skipping media " + job.file + " because its content has already been uploaded.");
+            synchronized (uploadLock) {
+                finishedUploads.put(job.file, contentHash);
+            }
+            return;
+        }
+
+        uploadFile(dataManager, job.file, job.bucketName, contentHash);
+    }
+
+    /**
+     * A media file waiting for its content hash
+     */
+    private static class HashJob {
+        final File file;
+        final String bucketName;
+        final Future<String> hash;
+
+        HashJob(File file, String bucketName) {
+            this.file = file;
+            this.bucketName = bucketName;
+            this.hash = ContentHasher.submit(file);
+        }
     }
 
+    /**
+     * Wait until all uploads of the current pass are done, or the sync is cancelled.
+     * The finished uploads are recorded in between, see {@link #recordUploads(int)}.
+     */
     private void waitForUploads() throws InterruptedException {
         Log.d(DEBUG_TAG, "wait for transfer service to finish our tasks");
-        WAITLOOP: while (!isCancelled()) {
-            Thread.sleep(100); // wait
-
-            for (int id: tasksInProgress) {
-                UploadTaskInfo info = txService.getUploadTaskInfo(id);
-                if (info.state == TaskState.INIT || info.state == TaskState.TRANSFERRING) {
-                    // there is still at least one task pending
-                    continue  WAITLOOP;
+        while (true) {
+            synchronized (uploadLock) {
+                if (isCancelled() || (pendingTasks.isEmpty() && pendingTranscodes == 0)) {
+                    return;
+                }
+                long deadline = Utils.now() + UPLOAD_CHECK_INTERVAL;
+                uploadLock.wait(UPLOAD_CHECK_INTERVAL);
+
+                TransferService service = txService;
+                if (isCancelled() || service == null) {
+                    return;
+                }
+
+                if (Utils.now() >= deadline) {
+                    // no event for a while, check that none was lost
+                    for (int id : Lists.newArrayList(pendingTasks)) {
+                        UploadTaskInfo info = service.getUploadTaskInfo(id);
+                        if (info == null || (info.state != TaskState.INIT && info.state != TaskState.TRANSFERRING)) {
+                            onUploadDone(id);
+                        }
+                    }
                 }
             }
-            break;
+            recordUploads(RECORD_BATCH_SIZE);
         }
     }
 
     /**
-     * Upload is finished. Go through task infos and mark files as uploaded in our DB
+     * Record the finished uploads in our DB in a single transaction, on the sync thread
+     *
+     * @param minCount do nothing unless at least this many uploads are waiting to be recorded
+     */
+    private void recordUploads(int minCount) {
+        Map<File, String> files;
+        synchronized (uploadLock) {
+            if (finishedUploads.isEmpty() || finishedUploads.size() < minCount) {
+                return;
+            }
+            files = Maps.newLinkedHashMap(finishedUploads);
+            finishedUploads.clear();
+        }
+
+        dbHelper.markAsUploaded(files, targetRepoId);
+        for (File file : files.keySet()) {
+            uploadedSet.add(file);
+        }
+    }
+
+    /**
+     * Note the result of an upload of the current pass. Called in the main thread when
+     * the TransferService reports the end of an upload.
+     */
+    private void onUploadDone(int taskID) {
+        synchronized (uploadLock) {
+            if (!pendingTasks.remove(taskID)) {
+                // not ours, or already handled
+                return;
+            }
+            String contentHash = uploadHashes.remove(taskID);
+            File source = uploadSources.remove(taskID);
+            if (transcodedFiles.containsKey(taskID)) {
+                transcoder.release(transcodedFiles.remove(taskID));
+            }
+
+            TransferService service = txService;
+            UploadTaskInfo info = service == null ? null : service.getUploadTaskInfo(taskID);
+            if (info != null && info.state == TaskState.FINISHED) {
+                File file = source != null ? source : new File(info.localFilePath);
+                finishedUploads.put(file, contentHash);
+                uploadedCount++;
+            } else if (uploadError == null) {
+                uploadError = (info != null && info.err != null) ? info.err : SeafException.unknownException;
+            }
+
+            uploadLock.notifyAll();
+        }
+    }
+
+    /**
+     * Upload is finished. Report the result of the uploads, the uploaded files are already recorded in our DB
      *
      * @param syncResult
      * @throws SeafException
      */
     private void checkUploadResult(SyncResult syncResult) throws SeafException {
-        for (int id: tasksInProgress) {
-            UploadTaskInfo info = txService.getUploadTaskInfo(id);
-            if (info.err != null) {
-                throw info.err;
-            }
-            if (info.state == TaskState.FINISHED) {
-                File file = new File(info.localFilePath);
-                dbHelper.markAsUploaded(file);
-                syncResult.stats.numInserts++;
-            } else {
-                throw SeafException.unknownException;
+        synchronized (uploadLock) {
+            syncResult.stats.numInserts += uploadedCount;
+            if (uploadError != null) {
+                throw uploadError;
             }
         }
     }
@@ -568,9 +873,12 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param dataManager Handle to the seafile server
      * @param file        the file to be uploaded
      * @param bucketName  the name of the media bucket
+     * @param contentHash the content hash of the file, or null if it is not known
      * @throws SeafException
+     * @throws InterruptedException
      */
-    private void uploadFile(DataManager dataManager, File file, String bucketName) throws SeafException {
+    private void uploadFile(DataManager dataManager, File file, String bucketName, String contentHash)
+            throws SeafException, InterruptedException {
 
         String serverPath = Utils.pathJoin(BASE_DIR, bucketName);
 
@@ -587,19 +895,125 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
          *
          * It would be cool if the API2 offered a way to query the hash of a remote file.
          * Currently, comparing the file size is the best we can do.
+         *
+         * A transcoded photo has another size than the original, and the size it will have is
+         * only known after transcoding it again. Those are compared by name alone.
          */
+        boolean transcode = transcoder != null && MediaTranscoder.canTranscode(file);
         for (SeafDirent dirent : list) {
-            if (dirent.name.equals(file.getName()) && dirent.size == file.length()) {
+            if (dirent.name.equals(file.getName()) && (transcode || dirent.size == file.length())) {
                 Log.d(DEBUG_TAG, "File " + file.getName() + " in bucket " + bucketName + " already exists on the server. Skipping.");
-                dbHelper.markAsUploaded(file);
+                synchronized (uploadLock) {
+                    finishedUploads.put(file, contentHash);
+                }
                 return;
             }
         }
 
         Log.d(DEBUG_TAG, "uploading file " + file.getName() + " to " + serverPath);
-        int taskID = txService.addUploadTask(dataManager.getAccount(), targetRepoId, targetRepoName,
-                serverPath, file.getAbsolutePath(), false, false);
-        tasksInProgress.add(taskID);
+        if (transcode) {
+            transcodeAndUpload(dataManager, file, serverPath, contentHash);
+        } else {
+            addUploadTask(dataManager, file, null, serverPath, contentHash);
+        }
+    }
+
+    /**
+     * Transcode a photo in the background, and upload the result.
+     * Blocks while too many transcoded files wait for their upload.
+     */
+    private void transcodeAndUpload(final DataManager dataManager, final File file, final String serverPath,
+                                    final String contentHash) throws InterruptedException {
+        final MediaTranscoder mediaTranscoder = transcoder;
+        mediaTranscoder.acquire();
+        synchronized (uploadLock) {
+            pendingTranscodes++;
+        }
+
+        MediaTranscoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                File transcoded = null;
+                boolean queued = false;
+                try {
+                    try {
+                        transcoded = mediaTranscoder.transcode(file);
+                    } catch (IOException e) {
+                        Log.w(DEBUG_TAG, "Could not transcode " + file + ", uploading the original", e);
+                    } catch (OutOfMemoryError e) {
+                        Log.w(DEBUG_TAG, "Could not transcode " + file + ", uploading the original", e);
+                    } catch (RuntimeException e) {
+                        Log.w(DEBUG_TAG, "Could not transcode " + file + ", uploading the original", e);
+                    }
+
+                    synchronized (uploadLock) {
+                        if (!isCancelled()) {
+                            // the slot is given back when the upload ends
+                            queued = addUploadTask(dataManager, file, transcoded, serverPath, contentHash);
+                        }
+                    }
+                } finally {
+                    synchronized (uploadLock) {
+                        pendingTranscodes--;
+                        if (!queued) {
+                            mediaTranscoder.release(transcoded);
+                        }
+                        uploadLock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete the transcoded files of the pending uploads and give back their slots.
+     * Must be called with {@link #uploadLock} held.
+     */
+    private void releaseTranscodedFiles() {
+        for (File transcoded : transcodedFiles.values()) {
+            transcoder.release(transcoded);
+        }
+        transcodedFiles.clear();
+    }
+
+    /**
+     * Hand over a media file to the TransferService
+     *
+     * @param transcoded the transcoded file to upload instead of the original, or null
+     * @return false if the TransferService is gone and the file was not handed over
+     */
+    private boolean addUploadTask(DataManager dataManager, File file, File transcoded, String serverPath,
+                                  String contentHash) {
+        synchronized (uploadLock) {
+            TransferService service = txService;
+            if (service == null) {
+                return false;
+            }
+
+            // the upload may end before we return, hold the lock so its result is not lost
+            String localPath = (transcoded != null ? transcoded : file).getAbsolutePath();
+            // the id of the upload already queued for the same file, if any, so it is followed instead
+            int taskID = service.addUploadTask(dataManager.getAccount(), targetRepoId, targetRepoName,
+                    serverPath, localPath, false, false);
+            if (pendingTasks.contains(taskID)) {
+                Log.d(DEBUG_TAG, "File " + file + " is already being uploaded");
+                if (transcoder != null && MediaTranscoder.canTranscode(file)) {
+                    transcoder.release(transcoded);
+                }
+                return true;
+            }
+            tasksInProgress.add(taskID);
+            pendingTasks.add(taskID);
+            if (contentHash != null) {
+                uploadHashes.put(taskID, contentHash);
+            }
+            uploadSources.put(taskID, file);
+            if (transcoder != null && MediaTranscoder.canTranscode(file)) {
+                // the room reserved for the transcoded file is given back when the upload ends
+                transcodedFiles.put(taskID, transcoded);
+            }
+            return true;
+        }
     }
 
     /**
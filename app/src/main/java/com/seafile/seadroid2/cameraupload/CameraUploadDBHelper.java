@@ -5,17 +5,20 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Pair;
 
 import com.seafile.seadroid2.SeadroidApplication;
 
 import java.io.File;
+import java.util.Map;
 
 public class CameraUploadDBHelper extends SQLiteOpenHelper {
     private static final String DEBUG_TAG = "CameraUploadDBHelper";
 
     // If you change the database schema, you must increment the database
     // version.
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 5;
     public static final String DATABASE_NAME = "photo.db";
     private static CameraUploadDBHelper dbHelper;
     private SQLiteDatabase database;
@@ -25,18 +28,35 @@ public class CameraUploadDBHelper extends SQLiteOpenHelper {
     private static final String PHOTOCACHE_COLUMN_ID = "id";
     private static final String PHOTOCACHE_COLUMN_FILE = "file";
     private static final String PHOTOCACHE_COLUMN_DATE_ADDED = "date_added";
+    private static final String PHOTOCACHE_COLUMN_REPO_ID = "repo_id";
+    private static final String PHOTOCACHE_COLUMN_CONTENT_HASH = "content_hash";
 
     private static final String SQL_CREATE_PHOTOCACHE_TABLE =
             "CREATE TABLE " + PHOTOCACHE_TABLE_NAME + " ("
                     + PHOTOCACHE_COLUMN_ID + " INTEGER PRIMARY KEY, "
                     + PHOTOCACHE_COLUMN_FILE + " TEXT NOT NULL, "
-                    + PHOTOCACHE_COLUMN_DATE_ADDED + " BIGINT NOT NULL);";
-
-    private static final String[] projection = {
-            PHOTOCACHE_COLUMN_ID,
-            PHOTOCACHE_COLUMN_FILE,
-            PHOTOCACHE_COLUMN_DATE_ADDED
-    };
+                    + PHOTOCACHE_COLUMN_DATE_ADDED + " BIGINT NOT NULL, "
+                    + PHOTOCACHE_COLUMN_REPO_ID + " TEXT, "
+                    + PHOTOCACHE_COLUMN_CONTENT_HASH + " TEXT);";
+
+    // ScanMark table, the newest media scanned in each bucket
+    private static final String SCANMARK_TABLE_NAME = "ScanMark";
+    private static final String SCANMARK_COLUMN_ID = "id";
+    private static final String SCANMARK_COLUMN_MEDIA_TYPE = "media_type";
+    private static final String SCANMARK_COLUMN_BUCKET_ID = "bucket_id";
+    private static final String SCANMARK_COLUMN_DATE_ADDED = "date_added";
+    private static final String SCANMARK_COLUMN_MEDIA_ID = "media_id";
+
+    public static final String MEDIA_TYPE_IMAGE = "image";
+    public static final String MEDIA_TYPE_VIDEO = "video";
+
+    private static final String SQL_CREATE_SCANMARK_TABLE =
+            "CREATE TABLE " + SCANMARK_TABLE_NAME + " ("
+                    + SCANMARK_COLUMN_ID + " INTEGER PRIMARY KEY, "
+                    + SCANMARK_COLUMN_MEDIA_TYPE + " TEXT NOT NULL, "
+                    + SCANMARK_COLUMN_BUCKET_ID + " TEXT NOT NULL, "
+                    + SCANMARK_COLUMN_DATE_ADDED + " BIGINT NOT NULL, "
+                    + SCANMARK_COLUMN_MEDIA_ID + " BIGINT NOT NULL);";
 
     public static synchronized CameraUploadDBHelper getInstance() {
         if (dbHelper == null) {
@@ -54,6 +74,13 @@ public class CameraUploadDBHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         createPhotoCacheTable(db);
+        createScanMarkTable(db);
+    }
+
+    private void createScanMarkTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_SCANMARK_TABLE);
+        db.execSQL("CREATE UNIQUE INDEX scanmark_type_bucket_index ON " + SCANMARK_TABLE_NAME
+                + " (" + SCANMARK_COLUMN_MEDIA_TYPE + ", " + SCANMARK_COLUMN_BUCKET_ID + ");");
     }
 
     private void createPhotoCacheTable(SQLiteDatabase db) {
@@ -62,11 +89,31 @@ public class CameraUploadDBHelper extends SQLiteOpenHelper {
                 + " (" + PHOTOCACHE_COLUMN_FILE + ");");
         db.execSQL("CREATE INDEX photo_account_index ON " + PHOTOCACHE_TABLE_NAME
                 + " (" + PHOTOCACHE_COLUMN_DATE_ADDED + ");");
+        createContentHashIndex(db);
+    }
+
+    private void createContentHashIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX photo_content_hash_index ON " + PHOTOCACHE_TABLE_NAME
+                + " (" + PHOTOCACHE_COLUMN_REPO_ID + ", " + PHOTOCACHE_COLUMN_CONTENT_HASH + ");");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion >= 3 && oldVersion < newVersion && newVersion == 5) {
+            // keep the uploaded photos
+            if (oldVersion < 4) {
+                createScanMarkTable(db);
+            }
+            db.execSQL("ALTER TABLE " + PHOTOCACHE_TABLE_NAME + " ADD COLUMN "
+                    + PHOTOCACHE_COLUMN_REPO_ID + " TEXT;");
+            db.execSQL("ALTER TABLE " + PHOTOCACHE_TABLE_NAME + " ADD COLUMN "
+                    + PHOTOCACHE_COLUMN_CONTENT_HASH + " TEXT;");
+            createContentHashIndex(db);
+            return;
+        }
+
         db.execSQL("DROP TABLE IF EXISTS " + PHOTOCACHE_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + SCANMARK_TABLE_NAME + ";");
         onCreate(db);
     }
 
@@ -75,18 +122,19 @@ public class CameraUploadDBHelper extends SQLiteOpenHelper {
         onUpgrade(db, oldVersion, newVersion);
     }
 
-    public boolean isUploaded(File file) {
-        String path = file.getAbsolutePath();
-        long modified = file.lastModified();
-
+    /**
+     * Check if a file with the same content has already been uploaded to a repo
+     */
+    public boolean isContentUploaded(String repoID, String contentHash) {
         Cursor c = database.query(
                 PHOTOCACHE_TABLE_NAME,
-                projection,
-                PHOTOCACHE_COLUMN_FILE + " = ? and " + PHOTOCACHE_COLUMN_DATE_ADDED + " = ?",
-                new String[] { path, Long.toString(modified) },
+                new String[] { PHOTOCACHE_COLUMN_ID },
+                PHOTOCACHE_COLUMN_REPO_ID + " = ? and " + PHOTOCACHE_COLUMN_CONTENT_HASH + " = ?",
+                new String[] { repoID, contentHash },
                 null,   // don't group the rows
                 null,   // don't filter by row groups
-                null    // The sort order
+                null,   // The sort order
+                "1"
         );
 
         int count = c.getCount();
@@ -94,18 +142,109 @@ public class CameraUploadDBHelper extends SQLiteOpenHelper {
         return count > 0;
     }
 
-    public void markAsUploaded(File file) {
-        String path = file.getAbsolutePath();
-        long modified = file.lastModified();
+    /**
+     * Record uploaded files in a single transaction, with the repo they were uploaded to
+     *
+     * @param files the files with their content hash from {@link ContentHasher}, or null if it
+     *              was not computed
+     */
+    public void markAsUploaded(Map<File, String> files, String repoID) {
+        String sql = "INSERT INTO " + PHOTOCACHE_TABLE_NAME + " ("
+                + PHOTOCACHE_COLUMN_FILE + ", " + PHOTOCACHE_COLUMN_DATE_ADDED + ", "
+                + PHOTOCACHE_COLUMN_REPO_ID + ", " + PHOTOCACHE_COLUMN_CONTENT_HASH + ") VALUES (?, ?, ?, ?);";
+
+        database.beginTransaction();
+        try {
+            SQLiteStatement stmt = database.compileStatement(sql);
+            try {
+                for (Map.Entry<File, String> entry : files.entrySet()) {
+                    stmt.clearBindings();
+                    stmt.bindString(1, entry.getKey().getAbsolutePath());
+                    stmt.bindLong(2, entry.getKey().lastModified());
+                    if (repoID != null) {
+                        stmt.bindString(3, repoID);
+                    }
+                    if (entry.getValue() != null) {
+                        stmt.bindString(4, entry.getValue());
+                    }
+                    stmt.executeInsert();
+                }
+            } finally {
+                stmt.close();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
 
-        ContentValues values = new ContentValues();
-        values.put(PHOTOCACHE_COLUMN_FILE, path);
-        values.put(PHOTOCACHE_COLUMN_DATE_ADDED, modified);
+    /**
+     * Add the hashes of the uploaded files directly in a directory to a set, see {@link UploadedSet}
+     */
+    void loadUploaded(String dir, LongHashSet hashes) {
+        String prefix = dir.endsWith("/") ? dir : dir + "/";
+        // a range instead of LIKE, so the index on the path is used.
+        // '0' is the character after '/'
+        String upperBound = prefix.substring(0, prefix.length() - 1) + "0";
 
-        database.insert(PHOTOCACHE_TABLE_NAME, null, values);
+        Cursor c = database.query(
+                PHOTOCACHE_TABLE_NAME,
+                new String[] { PHOTOCACHE_COLUMN_FILE, PHOTOCACHE_COLUMN_DATE_ADDED },
+                PHOTOCACHE_COLUMN_FILE + " >= ? and " + PHOTOCACHE_COLUMN_FILE + " < ?",
+                new String[] { prefix, upperBound },
+                null,   // don't group the rows
+                null,   // don't filter by row groups
+                null    // The sort order
+        );
+
+        while (c.moveToNext()) {
+            String path = c.getString(0);
+            if (path.indexOf('/', prefix.length()) != -1) {
+                // in a sub directory
+                continue;
+            }
+            hashes.add(UploadedSet.hash(path, c.getLong(1)));
+        }
+        c.close();
     }
 
     public void cleanPhotoCache() {
         database.delete(PHOTOCACHE_TABLE_NAME, null, null);
+        database.delete(SCANMARK_TABLE_NAME, null, null);
+    }
+
+    /**
+     * Get the newest media of a bucket handled by a previous sync
+     *
+     * @param mediaType {@link #MEDIA_TYPE_IMAGE} or {@link #MEDIA_TYPE_VIDEO}
+     * @return the (DATE_ADDED, _ID) of the media, or null if the bucket was never scanned
+     */
+    public Pair<Long, Long> getScanMark(String mediaType, String bucketID) {
+        Cursor c = database.query(
+                SCANMARK_TABLE_NAME,
+                new String[] { SCANMARK_COLUMN_DATE_ADDED, SCANMARK_COLUMN_MEDIA_ID },
+                SCANMARK_COLUMN_MEDIA_TYPE + " = ? and " + SCANMARK_COLUMN_BUCKET_ID + " = ?",
+                new String[] { mediaType, bucketID },
+                null,   // don't group the rows
+                null,   // don't filter by row groups
+                null    // The sort order
+        );
+
+        Pair<Long, Long> mark = null;
+        if (c.moveToFirst()) {
+            mark = new Pair<Long, Long>(c.getLong(0), c.getLong(1));
+        }
+        c.close();
+        return mark;
+    }
+
+    public void saveScanMark(String mediaType, String bucketID, long dateAdded, long mediaID) {
+        ContentValues values = new ContentValues();
+        values.put(SCANMARK_COLUMN_MEDIA_TYPE, mediaType);
+        values.put(SCANMARK_COLUMN_BUCKET_ID, bucketID);
+        values.put(SCANMARK_COLUMN_DATE_ADDED, dateAdded);
+        values.put(SCANMARK_COLUMN_MEDIA_ID, mediaID);
+
+        database.replace(SCANMARK_TABLE_NAME, null, values);
     }
 }
\ No newline at end of file
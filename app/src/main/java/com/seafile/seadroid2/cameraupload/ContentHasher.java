@@ -0,0 +1,99 @@
+package com.seafile.seadroid2.cameraupload;
+
+import android.os.Process;
+import android.support.v4.util.LruCache;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes the content hashes of media files, for the deduplication of camera uploads.
+ * <p/>
+ * A file is read in chunks on a single background thread of low priority, so hashing never
+ * competes with the UI or holds up the sync thread. The hash of an uploaded file is stored with
+ * its row in {@link CameraUploadDBHelper}; the hashes of files not uploaded yet are kept here,
+ * keyed by path, modification time and size, so a file is hashed only once.
+ */
+public class ContentHasher {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.sha1();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_CACHED_HASHES = 1000;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ContentHasher");
+        }
+    });
+
+    private static final LruCache<String, String> hashCache = new LruCache<String, String>(MAX_CACHED_HASHES);
+
+    private ContentHasher() {
+    }
+
+    private static String cacheKey(File file) {
+        return file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length();
+    }
+
+    /**
+     * Schedule the hashing of a file.
+     *
+     * @return the future hex encoded hash. Cancel it to stop reading the file.
+     */
+    public static Future<String> submit(final File file) {
+        return executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                String key = cacheKey(file);
+                String hash = hashCache.get(key);
+                if (hash == null) {
+                    hash = hash(file);
+                    hashCache.put(key, hash);
+                }
+                return hash;
+            }
+        });
+    }
+
+    /**
+     * Hash a file chunk by chunk. Gives up as soon as the thread is interrupted.
+     */
+    static String hash(File file) throws IOException {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("hashing of " + file + " cancelled");
+                }
+                hasher.putBytes(buffer, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return hasher.hash().toString();
+    }
+}
@@ -0,0 +1,218 @@
+package com.seafile.seadroid2.cameraupload;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Carries the EXIF metadata of a photo over to a re-encoded copy of it.
+ * <p/>
+ * The APP1 segment holding the EXIF data of the original is copied as is, with all its tags,
+ * maker notes and thumbnail. Only the pixel dimensions it records are set to those of the copy.
+ */
+class JpegExif {
+    private static final int SOI = 0xffd8;
+    private static final int EOI = 0xffd9;
+    private static final int SOS = 0xffda;
+    private static final int APP0 = 0xffe0;
+    private static final int APP1 = 0xffe1;
+    private static final int APP15 = 0xffef;
+
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    /**
+     * offset of the TIFF header in the segment: marker, length and EXIF header
+     */
+    private static final int TIFF_OFFSET = 4 + EXIF_HEADER.length;
+
+    private static final int TAG_IMAGE_WIDTH = 0x0100;
+    private static final int TAG_IMAGE_LENGTH = 0x0101;
+    private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    private static final int TAG_PIXEL_X_DIMENSION = 0xa002;
+    private static final int TAG_PIXEL_Y_DIMENSION = 0xa003;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    private JpegExif() {
+    }
+
+    /**
+     * Read the EXIF segment of a JPEG file, including its marker and length
+     *
+     * @return the segment, or null if the file has no EXIF data
+     */
+    static byte[] readSegment(File jpeg) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(jpeg)));
+        try {
+            if (in.readUnsignedShort() != SOI) {
+                return null;
+            }
+
+            while (true) {
+                int marker = in.readUnsignedShort();
+                if ((marker & 0xff00) != 0xff00 || marker == SOS || marker == EOI) {
+                    // the metadata segments come first
+                    return null;
+                }
+
+                int length = in.readUnsignedShort();
+                if (length < 2) {
+                    return null;
+                }
+
+                if (marker != APP1 || length - 2 < EXIF_HEADER.length) {
+                    IOUtils.skipFully(in, length - 2);
+                    continue;
+                }
+
+                byte[] segment = new byte[2 + length];
+                segment[0] = (byte) (marker >> 8);
+                segment[1] = (byte) marker;
+                segment[2] = (byte) (length >> 8);
+                segment[3] = (byte) length;
+                in.readFully(segment, 4, length - 2);
+                if (isExif(segment)) {
+                    return segment;
+                }
+                // XMP data are stored in an APP1 segment too
+            }
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isExif(byte[] segment) {
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (segment[4 + i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a JPEG image with the given EXIF segment instead of its own metadata segments
+     *
+     * @param jpeg the encoded image, e.g. by {@link android.graphics.Bitmap#compress}
+     * @param segment a segment returned by {@link #readSegment(File)}
+     */
+    static void write(byte[] jpeg, byte[] segment, OutputStream out) throws IOException {
+        if (jpeg.length < 2 || readShort(jpeg, 0, true) != SOI) {
+            throw new IOException("not a JPEG image");
+        }
+
+        // skip the APPn segments written by the encoder, e.g. the JFIF one
+        int pos = 2;
+        while (pos + 4 <= jpeg.length) {
+            int marker = readShort(jpeg, pos, true);
+            if (marker < APP0 || marker > APP15) {
+                break;
+            }
+            pos += 2 + readShort(jpeg, pos + 2, true);
+        }
+        if (pos > jpeg.length) {
+            throw new IOException("truncated JPEG image");
+        }
+
+        out.write(jpeg, 0, 2);
+        out.write(segment);
+        out.write(jpeg, pos, jpeg.length - pos);
+    }
+
+    /**
+     * Set the image dimensions recorded in an EXIF segment, in IFD0 and in the EXIF IFD.
+     * Tags which are missing are not added. A malformed segment is left as is.
+     */
+    static void setDimensions(byte[] segment, int width, int height) {
+        if (segment.length < TIFF_OFFSET + 8) {
+            return;
+        }
+
+        boolean bigEndian;
+        if (segment[TIFF_OFFSET] == 'M' && segment[TIFF_OFFSET + 1] == 'M') {
+            bigEndian = true;
+        } else if (segment[TIFF_OFFSET] == 'I' && segment[TIFF_OFFSET + 1] == 'I') {
+            bigEndian = false;
+        } else {
+            return;
+        }
+
+        long ifd0 = readInt(segment, TIFF_OFFSET + 4, bigEndian);
+        long exifIfd = setDimensions(segment, ifd0, TAG_IMAGE_WIDTH, TAG_IMAGE_LENGTH, width, height, bigEndian);
+        if (exifIfd > 0) {
+            setDimensions(segment, exifIfd, TAG_PIXEL_X_DIMENSION, TAG_PIXEL_Y_DIMENSION, width, height, bigEndian);
+        }
+    }
+
+    /**
+     * @return the offset of the EXIF IFD if the IFD points to one, 0 otherwise
+     */
+    private static long setDimensions(byte[] segment, long ifdOffset, int widthTag, int heightTag,
+                                      int width, int height, boolean bigEndian) {
+        if (ifdOffset <= 0 || TIFF_OFFSET + ifdOffset + 2 > segment.length) {
+            return 0;
+        }
+
+        int ifd = TIFF_OFFSET + (int) ifdOffset;
+
+        long exifIfd = 0;
+        int count = readShort(segment, ifd, bigEndian);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > segment.length) {
+                break;
+            }
+
+            int tag = readShort(segment, entry, bigEndian);
+            int type = readShort(segment, entry + 2, bigEndian);
+            if (tag == widthTag) {
+                writeValue(segment, entry, type, width, bigEndian);
+            } else if (tag == heightTag) {
+                writeValue(segment, entry, type, height, bigEndian);
+            } else if (tag == TAG_EXIF_IFD_POINTER) {
+                exifIfd = readInt(segment, entry + 8, bigEndian);
+            }
+        }
+        return exifIfd;
+    }
+
+    private static void writeValue(byte[] segment, int entry, int type, int value, boolean bigEndian) {
+        // values of up to 4 bytes are stored in the entry, left-justified
+        if (type == TYPE_SHORT) {
+            writeBytes(segment, entry + 8, value, 2, bigEndian);
+        } else if (type == TYPE_LONG) {
+            writeBytes(segment, entry + 8, value, 4, bigEndian);
+        }
+    }
+
+    private static int readShort(byte[] b, int pos, boolean bigEndian) {
+        int b0 = b[pos] & 0xff;
+        int b1 = b[pos + 1] & 0xff;
+        return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static long readInt(byte[] b, int pos, boolean bigEndian) {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            int shift = bigEndian ? (3 - i) * 8 : i * 8;
+            value |= (long) (b[pos + i] & 0xff) << shift;
+        }
+        return value;
+    }
+
+    private static void writeBytes(byte[] b, int pos, int value, int size, boolean bigEndian) {
+        for (int i = 0; i < size; i++) {
+            int shift = bigEndian ? (size - 1 - i) * 8 : i * 8;
+            b[pos + i] = (byte) (value >> shift);
+        }
+    }
+}
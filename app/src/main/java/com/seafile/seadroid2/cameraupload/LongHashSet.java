@@ -0,0 +1,90 @@
+package com.seafile.seadroid2.cameraupload;
+
+/**
+ * A set of longs, stored in a single array without boxing them.
+ * <p/>
+ * Open addressing with linear probing. The table is kept at most half full, so a lookup
+ * reads one or two slots of the array on average. 0 marks an empty slot, the value 0 itself
+ * is kept aside.
+ */
+class LongHashSet {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] table = new long[MIN_CAPACITY];
+    private int size;
+    private boolean hasZero;
+
+    /**
+     * @return false if the value was already in the set
+     */
+    boolean add(long value) {
+        if (value == 0) {
+            boolean added = !hasZero;
+            hasZero = true;
+            return added;
+        }
+
+        if ((size + 1) * 2 > table.length) {
+            resize(table.length * 2);
+        }
+
+        if (!insert(table, value)) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    boolean contains(long value) {
+        if (value == 0) {
+            return hasZero;
+        }
+
+        int mask = table.length - 1;
+        for (int i = index(value, mask); ; i = (i + 1) & mask) {
+            long slot = table[i];
+            if (slot == value) {
+                return true;
+            }
+            if (slot == 0) {
+                return false;
+            }
+        }
+    }
+
+    int size() {
+        return hasZero ? size + 1 : size;
+    }
+
+    private void resize(int capacity) {
+        long[] newTable = new long[capacity];
+        for (long value : table) {
+            if (value != 0) {
+                insert(newTable, value);
+            }
+        }
+        table = newTable;
+    }
+
+    /**
+     * @return false if the value was already in the table
+     */
+    private static boolean insert(long[] table, long value) {
+        int mask = table.length - 1;
+        for (int i = index(value, mask); ; i = (i + 1) & mask) {
+            long slot = table[i];
+            if (slot == value) {
+                return false;
+            }
+            if (slot == 0) {
+                table[i] = value;
+                return true;
+            }
+        }
+    }
+
+    private static int index(long value, int mask) {
+        // the values are hashes already, fold the high bits in
+        return (int) (value ^ (value >>> 32)) & mask;
+    }
+}
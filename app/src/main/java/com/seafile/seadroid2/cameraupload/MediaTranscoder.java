@@ -0,0 +1,186 @@
+package com.seafile.seadroid2.cameraupload;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.util.Log;
+
+import com.seafile.seadroid2.data.DataManager;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Re-encodes camera photos to a smaller JPEG before they are uploaded.
+ * <p/>
+ * Photos are scaled down to at most the configured number of pixels on their longer side and
+ * compressed with the configured JPEG quality, see {@link com.seafile.seadroid2.SettingsManager}. The EXIF segment of the original is copied over
+ * as is, see {@link JpegExif}. The transcoded file keeps the name of the original, in its own
+ * sub directory of the temp directory.
+ * <p/>
+ * Videos are out of scope and always uploaded as is: re-encoding them needs MediaCodec and
+ * MediaMuxer, which are only available from API 18.
+ * <p/>
+ * Transcoding runs on a small pool of background threads. At most {@link #MAX_TRANSCODED_FILES}
+ * transcoded files exist at a time: {@link #acquire()} blocks until one of them has been
+ * uploaded and given back with {@link #release(File)}.
+ */
+public class MediaTranscoder {
+    private static final String DEBUG_TAG = "MediaTranscoder";
+
+    public static final int DEFAULT_MAX_DIMENSION = 2048;
+    public static final int DEFAULT_JPEG_QUALITY = 85;
+
+    private static final int MAX_TRANSCODED_FILES = 4;
+    private static final int POOL_SIZE = 2;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "MediaTranscoder #" + count.getAndIncrement());
+        }
+    });
+
+    private final int maxDimension;
+    private final int jpegQuality;
+    private final File tempDir;
+    private final Semaphore slots = new Semaphore(MAX_TRANSCODED_FILES);
+    private final AtomicInteger fileCount = new AtomicInteger();
+
+    /**
+     * Left over transcoded files of a previous sync are deleted.
+     *
+     * @param maxDimension the maximum size of the longer side of a photo, in pixels
+     * @param jpegQuality  the JPEG quality, from 0 to 100
+     */
+    public MediaTranscoder(int maxDimension, int jpegQuality) {
+        this.maxDimension = maxDimension;
+        this.jpegQuality = jpegQuality;
+        tempDir = new File(DataManager.getExternalTempDirectory(), "camera-upload");
+        FileUtils.deleteQuietly(tempDir);
+    }
+
+    public static void execute(Runnable r) {
+        executor.execute(r);
+    }
+
+    /**
+     * Check if a file is a photo we can transcode
+     */
+    public static boolean canTranscode(File file) {
+        String name = file.getName().toLowerCase(Locale.US);
+        return name.endsWith(".jpg") || name.endsWith(".jpeg");
+    }
+
+    /**
+     * Reserve room for a transcoded file. Blocks while {@link #MAX_TRANSCODED_FILES} are on disk.
+     */
+    public void acquire() throws InterruptedException {
+        slots.acquire();
+    }
+
+    /**
+     * Delete a transcoded file once it is not needed anymore, and give back its room.
+     *
+     * @param transcoded the file returned by {@link #transcode(File)}, or null if it failed
+     */
+    public void release(File transcoded) {
+        if (transcoded != null) {
+            FileUtils.deleteQuietly(transcoded.getParentFile());
+        }
+        slots.release();
+    }
+
+    /**
+     * Transcode a photo. Must be called after {@link #acquire()}.
+     *
+     * @return the transcoded file, or null if the original is already small enough
+     * @throws IOException if the photo could not be decoded or written
+     */
+    public File transcode(File source) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(source.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("could not decode " + source);
+        }
+
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / sampleSize > maxDimension) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeFile(source.getAbsolutePath(), options);
+        if (bitmap == null) {
+            throw new IOException("could not decode " + source);
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        byte[] jpeg;
+        try {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream((int) Math.min(source.length(), Integer.MAX_VALUE));
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, jpegQuality, encoded)) {
+                throw new IOException("could not encode " + source);
+            }
+            jpeg = encoded.toByteArray();
+        } finally {
+            bitmap.recycle();
+        }
+
+        byte[] exif = JpegExif.readSegment(source);
+        if (exif != null) {
+            JpegExif.setDimensions(exif, width, height);
+        }
+
+        File dir = new File(tempDir, String.valueOf(fileCount.incrementAndGet()));
+        File target = new File(dir, source.getName());
+        try {
+            FileUtils.forceMkdir(dir);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+            try {
+                if (exif != null) {
+                    JpegExif.write(jpeg, exif, out);
+                } else {
+                    out.write(jpeg);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(dir);
+            throw e;
+        }
+
+        if (target.length() >= source.length()) {
+            // nothing gained
+            FileUtils.deleteQuietly(dir);
+            return null;
+        }
+
+        Log.d(DEBUG_TAG, "transcoded " + source + " from " + source.length() + " to " + target.length() + " bytes");
+        return target;
+    }
+}
@@ -0,0 +1,66 @@
+package com.seafile.seadroid2.cameraupload;
+
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * In-memory index of the media uploaded by camera upload, for membership checks without a
+ * database query per file.
+ * <p/>
+ * A file is identified by a 64 bit hash of its path and modification time, as stored in
+ * {@link CameraUploadDBHelper}. The hashes are kept unboxed in a {@link LongHashSet}, and
+ * computing one allocates nothing. The entries of a directory (a media bucket) are loaded with
+ * a single query the first time a file of that directory is checked.
+ */
+public class UploadedSet {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final CameraUploadDBHelper dbHelper;
+    private final Set<String> loadedDirs = Sets.newHashSet();
+    private final LongHashSet hashes = new LongHashSet();
+
+    public UploadedSet(CameraUploadDBHelper dbHelper) {
+        this.dbHelper = dbHelper;
+    }
+
+    /**
+     * FNV-1a over the characters of the path and the modification time, followed by the
+     * finalizer of MurmurHash3 so that all the bits of the result are mixed
+     */
+    static long hash(String path, long modified) {
+        long h = FNV_OFFSET_BASIS;
+        for (int i = 0; i < path.length(); i++) {
+            h ^= path.charAt(i);
+            h *= FNV_PRIME;
+        }
+        h ^= modified;
+        h *= FNV_PRIME;
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public synchronized boolean contains(File file) {
+        String dir = file.getParent();
+        if (dir != null && loadedDirs.add(dir)) {
+            dbHelper.loadUploaded(dir, hashes);
+        }
+
+        return hashes.contains(hash(file.getAbsolutePath(), file.lastModified()));
+    }
+
+    /**
+     * Record an uploaded file here, after it has been recorded in the database
+     */
+    public synchronized void add(File file) {
+        hashes.add(hash(file.getAbsolutePath(), file.lastModified()));
+    }
+}
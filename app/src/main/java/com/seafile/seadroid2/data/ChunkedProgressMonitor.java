@@ -0,0 +1,9 @@
+package com.seafile.seadroid2.data;
+
+/**
+ * Progress monitor of a chunked upload.
+ * Besides the transferred bytes, it is told every time the server has committed a block.
+ */
+public interface ChunkedProgressMonitor extends ProgressMonitor {
+    void onChunkCommitted(long committed);
+}
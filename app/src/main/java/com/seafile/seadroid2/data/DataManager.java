@@ -12,12 +12,19 @@ import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.account.AccountInfo;
 import com.seafile.seadroid2.util.Utils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.io.output.ProxyOutputStream;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
@@ -37,7 +44,7 @@ public class DataManager {
     private static SimpleDateFormat ptrDataFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
     private static Map<String, PasswordInfo> passwords = Maps.newHashMap();
-    private static Map<String, Long> direntsRefreshTimeMap = Maps.newHashMap();
+    private static Map<String, Long> direntsRefreshTimeMap = Maps.newConcurrentMap();
     public static final long REFRESH_EXPIRATION_MSECS = 10 * 60 * 1000; // 10 mins
     public static long repoRefreshTimeStamp = 0;
     
@@ -113,6 +120,56 @@ public class DataManager {
         return new File(p);
     }
 
+    private static File getPartialDownloadRecord(String repoID, String path) {
+        String filename = "partial-" + (repoID + path).hashCode();
+        return new File(getExternalTempDirectory() + "/" + filename);
+    }
+
+    /**
+     * Get the temp file a download of a file is written to. If a former download of the same
+     * version was interrupted, the returned file holds the bytes received so far and the download
+     * can be resumed from its length. A partial file of another version is discarded.
+     *
+     * @param oid the file id of the version to be downloaded
+     */
+    public static File getPartialTempFile(String repoID, String path, String oid) {
+        File tmp = getTempFile(path, oid);
+        File record = getPartialDownloadRecord(repoID, path);
+
+        String partialID = record.exists() ? Utils.readFile(record) : null;
+        if (oid.equals(partialID)) {
+            return tmp;
+        }
+
+        // the file has changed on the server since the partial download
+        if (partialID != null && partialID.length() >= 8) {
+            File stale = getTempFile(path, partialID);
+            if (stale.exists()) {
+                stale.delete();
+            }
+        }
+        if (tmp.exists()) {
+            tmp.delete();
+        }
+
+        try {
+            Utils.writeFile(record, oid);
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "Could not save partial download record of " + path);
+        }
+        return tmp;
+    }
+
+    /**
+     * Forget the partial download of a file, called when the download has completed.
+     */
+    public static void removePartialTempFile(String repoID, String path) {
+        File record = getPartialDownloadRecord(repoID, path);
+        if (record.exists()) {
+            record.delete();
+        }
+    }
+
     // Obtain a cache file for storing a directory with oid
     public static File getFileForDirentsCache(String oid) {
         return new File(getExternalCacheDirectory() + "/" + oid);
@@ -345,6 +402,11 @@ public class DataManager {
 
         File cache = getFileForReposCache();
         if (cache.exists()) {
+            if (JsonStreamParser.isSupported()) {
+                reposCache = parseReposFromFile(cache);
+                return reposCache;
+            }
+
             String json = Utils.readFile(cache);
             reposCache = parseRepos(json);
             return reposCache;
@@ -352,12 +414,30 @@ public class DataManager {
         return null;
     }
 
+    private List<SeafRepo> parseReposFromFile(File cache) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(cache);
+            return JsonStreamParser.parseRepos(in);
+        } catch (IOException e) {
+            Log.e(DEBUG_TAG, "parse json error");
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
     public List<SeafRepo> getReposFromServer() throws SeafException {
         // First decide if use cache
         if (!Utils.isNetworkOn()) {
             throw SeafException.networkException;
         }
 
+        if (JsonStreamParser.isSupported()) {
+            reposCache = getReposStreaming();
+            return reposCache;
+        }
+
         String json = sc.getRepos();
         //Log.d(DEBUG_TAG, "get repos from server " + json);
         if (json == null)
@@ -375,8 +455,69 @@ public class DataManager {
         return reposCache;
     }
 
-    public synchronized File getFile(String repoName, String repoID, String path,
+    /**
+     * Parse the repos from the response while it is written to the cache file
+     */
+    private List<SeafRepo> getReposStreaming() throws SeafException {
+        File cache = getFileForReposCache();
+        File tmp = new File(cache.getPath() + ".tmp");
+        CacheOutputStream out;
+        try {
+            out = new CacheOutputStream(new FileOutputStream(tmp));
+        } catch (IOException e) {
+            // can not write the cache, get the repos without it
+            return parseRepos(sc.getRepos());
+        }
+
+        boolean saved = false;
+        try {
+            List<SeafRepo> repos = sc.getReposStreaming(out);
+            out.close();
+            saved = !out.failed && tmp.renameTo(cache);
+            return repos;
+        } finally {
+            IOUtils.closeQuietly(out);
+            if (!saved) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * A cache file written while a response is read. Writing it may fail without failing
+     * the request: the cache is given up, and the response is read to the end.
+     */
+    private static class CacheOutputStream extends ProxyOutputStream {
+        private boolean failed;
+
+        CacheOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        protected void handleIOException(IOException e) {
+            Log.d(DEBUG_TAG, "could not write the cache: " + e.getMessage());
+            if (!failed) {
+                failed = true;
+                IOUtils.closeQuietly(out);
+                out = NullOutputStream.NULL_OUTPUT_STREAM;
+            }
+        }
+    }
+
+    public File getFile(String repoName, String repoID, String path,
                         ProgressMonitor monitor) throws SeafException {
+        return getFile(repoName, repoID, path, monitor, null);
+    }
+
+    /**
+     * Get a file, writing its content to a stream while it is downloaded
+     *
+     * @param copyTo receives the content of the file if it is downloaded, nothing is written
+     *               to it if the cached version is up to date
+     */
+    public synchronized File getFile(String repoName, String repoID, String path,
+                        ProgressMonitor monitor, OutputStream copyTo) throws SeafException {
 
         String cachedFileID = null;
         SeafCachedFile cf = getCachedFile(repoName, repoID, path);
@@ -388,7 +529,15 @@ public class DataManager {
             }
         }
 
-        Pair<String, File> ret = sc.getFile(repoID, path, localFile.getPath(), cachedFileID, monitor);
+        Pair<String, File> ret = null;
+        DownloadedFiles.onDownloadStarted(localFile.getPath());
+        try {
+            ret = sc.getFile(repoID, path, localFile.getPath(), cachedFileID, monitor, copyTo);
+        } finally {
+            // a failed download may have replaced the file too, before failing to record it
+            DownloadedFiles.onDownloadFinished(localFile.getPath(),
+                    ret == null || !ret.first.equals(cachedFileID));
+        }
 
         String fileID = ret.first;
         if (fileID.equals(cachedFileID)) {
@@ -401,7 +550,7 @@ public class DataManager {
         }
     }
 
-    private List<SeafDirent> parseDirents(String json) {
+    static List<SeafDirent> parseDirents(String json) {
         try {
             JSONArray array = Utils.parseJsonArray(json);
             if (array == null)
@@ -440,18 +589,63 @@ public class DataManager {
     }
 
     public List<SeafDirent> getCachedDirents(String repoID, String path) {
-        String json = null;
-        Pair<String, String> ret = dbHelper.getCachedDirents(repoID, path);
-        if (ret == null) {
+        String dirID = dbHelper.getCachedDirID(repoID, path);
+        if (dirID == null) {
             return null;
         }
 
-        json = ret.second;
-        if (json == null) {
-            return null;
+        return getCachedDirents(repoID, path, dirID);
+    }
+
+    /**
+     * Get the cached dirents of a directory if they are of the given dir id,
+     * from memory if the directory has been listed recently
+     */
+    private List<SeafDirent> getCachedDirents(String repoID, String path, String dirID) {
+        DirentsLruCache memCache = DirentsLruCache.instance();
+        List<SeafDirent> dirents = memCache.get(repoID, path, dirID);
+        if (dirents != null) {
+            return dirents;
         }
 
-        return parseDirents(json);
+        dirents = dbHelper.getDirents(repoID, path, dirID);
+        memCache.put(repoID, path, dirID, dirents);
+        return dirents;
+    }
+
+    /**
+     * Get a page of the cached dirents of a directory, sorted and filtered by the database
+     *
+     * @param type only return dirents of this type, or null for all
+     * @param orderBy one of the DIRENT_ORDER_BY constants of {@link DatabaseHelper}
+     * @param offset index of the first dirent
+     * @param limit max number of dirents, or -1 for all
+     */
+    public List<SeafDirent> getCachedDirents(String repoID, String path, SeafDirent.DirentType type,
+                                             String orderBy, int offset, int limit) {
+        return dbHelper.getCachedDirents(repoID, path, type, orderBy, offset, limit);
+    }
+
+    public int getCachedDirentCount(String repoID, String path) {
+        return dbHelper.getCachedDirentCount(repoID, path);
+    }
+
+    public int getCachedDirentCount(String repoID, String path, SeafDirent.DirentType type) {
+        return dbHelper.getCachedDirentCount(repoID, path, type);
+    }
+
+    /**
+     * @return true if the dirents of a directory are cached, whatever their dir id
+     */
+    public boolean hasCachedDirents(String repoID, String path) {
+        return dbHelper.getCachedDirID(repoID, path) != null;
+    }
+
+    /**
+     * @return the dir id of the cached dirents of a directory, or null if it is not cached
+     */
+    public String getCachedDirID(String repoID, String path) {
+        return dbHelper.getCachedDirID(repoID, path);
     }
 
     /**
@@ -465,28 +659,83 @@ public class DataManager {
      * In the second case, the local cache may still be valid.
      */
     public List<SeafDirent> getDirentsFromServer(String repoID, String path) throws SeafException {
-        Pair<String, String> cache = dbHelper.getCachedDirents(repoID, path);
-        String cachedDirID = null;
-        if (cache != null) {
-            cachedDirID = cache.first;
+        String cachedDirID = dbHelper.getCachedDirID(repoID, path);
+        Pair<String, List<SeafDirent>> ret = fetchDirents(repoID, path, cachedDirID);
+        if (cachedDirID != null && ret.first.equals(cachedDirID)) {
+            // local cache still valid
+            return getCachedDirents(repoID, path, cachedDirID);
         }
-        Pair<String, String> ret = sc.getDirents(repoID, path, cachedDirID);
-        if (ret == null) {
+        return ret.second;
+    }
+
+    /**
+     * Check the cached dirents of a directory against the server, without reading them when they
+     * are up to date
+     *
+     * @return the new dirents, saved to the cache, or null if the cached dirents are up to date
+     */
+    public List<SeafDirent> revalidateDirents(String repoID, String path) throws SeafException {
+        String cachedDirID = dbHelper.getCachedDirID(repoID, path);
+        Pair<String, List<SeafDirent>> ret = fetchDirents(repoID, path, cachedDirID);
+        if (cachedDirID != null && ret.first.equals(cachedDirID)) {
             return null;
         }
 
+        if (ret.second == null) {
+            throw SeafException.illFormatException;
+        }
+        return ret.second;
+    }
+
+    /**
+     * Get the dirents of a directory from the server, and save them to the cache
+     *
+     * @return a two tuple of (dirID, dirents). The dirents are null if the dir id is still
+     * cachedDirID, or if they could not be parsed.
+     */
+    private Pair<String, List<SeafDirent>> fetchDirents(String repoID, String path, String cachedDirID)
+            throws SeafException {
+        if (JsonStreamParser.isSupported()) {
+            Pair<String, List<SeafDirent>> ret = sc.getDirentsStreaming(repoID, path, cachedDirID);
+            if (!ret.first.equals(cachedDirID)) {
+                saveDirents(repoID, path, ret.first, ret.second);
+            }
+            return ret;
+        }
+
+        Pair<String, String> ret = sc.getDirents(repoID, path, cachedDirID);
         String dirID = ret.first;
-        String content;
+        if (dirID.equals(cachedDirID)) {
+            return new Pair<String, List<SeafDirent>>(dirID, null);
+        }
 
-        if (cache != null && dirID.equals(cachedDirID)) {
-            // local cache still valid
-            content = cache.second;
-        } else {
-            content = ret.second;
-            dbHelper.saveDirents(repoID, path, dirID, content);
+        List<SeafDirent> dirents = parseDirents(ret.second);
+        saveDirents(repoID, path, dirID, dirents);
+        return new Pair<String, List<SeafDirent>>(dirID, dirents);
+    }
+
+    /**
+     * Get the dirents of a directory whose dir id is already known, e.g. from the dirent in its parent.
+     * The cached dirents are used without a server round trip if they are of that dir id.
+     */
+    public List<SeafDirent> getDirents(String repoID, String path, String dirID) throws SeafException {
+        if (dirID != null) {
+            List<SeafDirent> dirents = getCachedDirents(repoID, path, dirID);
+            if (dirents != null) {
+                return dirents;
+            }
         }
 
-        return parseDirents(content);
+        return getDirentsFromServer(repoID, path);
+    }
+
+    private void saveDirents(String repoID, String path, String dirID, List<SeafDirent> dirents) {
+        if (dirents == null) {
+            return;
+        }
+
+        dbHelper.saveDirents(repoID, path, dirID, dirents);
+        DirentsLruCache.instance().put(repoID, path, dirID, dirents);
     }
 
     public List<SeafStarredFile> getStarredFiles() throws SeafException {
@@ -548,6 +797,17 @@ public class DataManager {
         uploadFileCommon(repoName, repoID, dir, filePath, monitor, true, isCopyToLocal);
     }
 
+    /**
+     * Upload a new file in blocks, continuing a previous interrupted upload if possible.
+     *
+     * @param committedOffset the number of bytes committed by a previous attempt, 0 if none
+     */
+    public void uploadFileChunked(String repoName, String repoID, String dir, String filePath,
+            long committedOffset, ChunkedProgressMonitor monitor, boolean isCopyToLocal) throws SeafException {
+        String newFileID = sc.uploadFileChunked(repoID, dir, filePath, committedOffset, monitor);
+        onFileUploaded(repoName, repoID, dir, filePath, newFileID, false, isCopyToLocal);
+    }
+
     private void uploadFileCommon(String repoName, String repoID, String dir,
                                   String filePath, ProgressMonitor monitor,
                                   boolean isUpdate, boolean isCopyToLocal) throws SeafException {
@@ -558,6 +818,11 @@ public class DataManager {
             newFileID  = sc.uploadFile(repoID, dir, filePath, monitor);
         }
 
+        onFileUploaded(repoName, repoID, dir, filePath, newFileID, isUpdate, isCopyToLocal);
+    }
+
+    private void onFileUploaded(String repoName, String repoID, String dir, String filePath,
+                                String newFileID, boolean isUpdate, boolean isCopyToLocal) {
         if (newFileID == null || newFileID.length() == 0) {
             return;
         }
@@ -578,6 +843,16 @@ public class DataManager {
         }
         // Update file cache entry
         addCachedFile(repoName, repoID, path, newFileID, fileInRepo);
+
+        // Update the entry in the dirents cache, so the file is listed until the dir is refreshed
+        SeafDirent dirent = new SeafDirent();
+        dirent.id = newFileID;
+        dirent.type = SeafDirent.DirentType.FILE;
+        dirent.name = srcFile.getName();
+        dirent.size = srcFile.length();
+        dirent.mtime = Utils.now() / 1000;
+        dbHelper.saveCachedDirent(repoID, dir, dirent);
+        DirentsLruCache.instance().invalidate(repoID, dir);
     }
 
     public void createNewDir(String repoID, String parentDir, String dirName) throws SeafException {
@@ -591,7 +866,7 @@ public class DataManager {
 
         // The response is the dirents of the parentDir after creating
         // the new dir. We save it to avoid request it again
-        dbHelper.saveDirents(repoID, parentDir, newDirID, response);
+        saveDirents(repoID, parentDir, newDirID, parseDirents(response));
     }
 
     public void createNewFile(String repoID, String parentDir, String fileName) throws SeafException {
@@ -605,7 +880,7 @@ public class DataManager {
 
         // The response is the dirents of the parentDir after creating
         // the new file. We save it to avoid request it again
-        dbHelper.saveDirents(repoID, parentDir, newDirID, response);
+        saveDirents(repoID, parentDir, newDirID, parseDirents(response));
     }
 
     public File getLocalCachedFile(String repoName, String repoID, String filePath, String fileID) {
@@ -636,7 +911,10 @@ public class DataManager {
 
     public void rename(String repoID, String path, String newName, boolean isdir) throws SeafException {
         Pair<String, String> ret = sc.rename(repoID, path, newName, isdir);
+        invalidateDirentsCache(repoID, path, isdir);
         if (ret == null) {
+            // the new name is listed once the dir is refreshed
+            dbHelper.removeCachedDirent(repoID, Utils.getParentPath(path), Utils.fileNameFromPath(path));
             return;
         }
 
@@ -645,12 +923,15 @@ public class DataManager {
 
         // The response is the dirents of the parentDir after renaming the
         // file/folder. We save it to avoid request it again.
-        dbHelper.saveDirents(repoID, Utils.getParentPath(path), newDirID, response);
+        saveDirents(repoID, Utils.getParentPath(path), newDirID, parseDirents(response));
     }
 
     public void delete(String repoID, String path, boolean isdir) throws SeafException{
         Pair<String, String> ret = sc.delete(repoID, path, isdir);
+        invalidateDirentsCache(repoID, path, isdir);
         if (ret == null){
+            // no new listing, drop the entry from the cached one
+            dbHelper.removeCachedDirent(repoID, Utils.getParentPath(path), Utils.fileNameFromPath(path));
             return;
         }
 
@@ -659,13 +940,14 @@ public class DataManager {
 
         // The response is the dirents of the parentDir after deleting the
         // file/folder. We save it to avoid request it again
-        dbHelper.saveDirents(repoID, Utils.getParentPath(path), newDirID, response);
+        saveDirents(repoID, Utils.getParentPath(path), newDirID, parseDirents(response));
     }
 
     public void copy(String srcRepoId, String srcDir, String srcFn,
                      String dstRepoId, String dstDir) throws SeafException {
         sc.copy(srcRepoId, srcDir, srcFn, dstRepoId, dstDir);
-        
+        DirentsLruCache.instance().invalidate(dstRepoId, dstDir);
+
         // After copying, we need to refresh the destination list
         getDirentsFromServer(dstRepoId, dstDir);
     }
@@ -680,6 +962,10 @@ public class DataManager {
             ret = sc.move(srcRepoId, srcPath, dstRepoId, dstDir);
         }
 
+        // the moved folders are no longer under srcDir
+        DirentsLruCache.instance().invalidateTree(srcRepoId, srcDir);
+        DirentsLruCache.instance().invalidate(dstRepoId, dstDir);
+
         // After moving, we need to refresh the destination list
         getDirentsFromServer(dstRepoId, dstDir);
 
@@ -695,7 +981,18 @@ public class DataManager {
 
         // The response is the list of dst after moving the
         // file/folder. We save it to avoid request it again
-        dbHelper.saveDirents(dstRepoId, dstDir, newDirID, response);
+        saveDirents(dstRepoId, dstDir, newDirID, parseDirents(response));
+    }
+
+    /**
+     * Forget the in-memory dirents of the parent of a changed file or folder, and of the folder itself
+     */
+    private void invalidateDirentsCache(String repoID, String path, boolean isdir) {
+        DirentsLruCache memCache = DirentsLruCache.instance();
+        memCache.invalidate(repoID, Utils.getParentPath(path));
+        if (isdir) {
+            memCache.invalidateTree(repoID, path);
+        }
     }
 
     private static class PasswordInfo {
@@ -8,8 +8,8 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
-import android.util.Pair;
 
 import com.google.common.collect.Lists;
 import com.seafile.seadroid2.SeadroidApplication;
@@ -18,7 +18,7 @@ import com.seafile.seadroid2.account.Account;
 public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String DEBUG_TAG = "DatabaseHelper";
     // If you change the database schema, you must increment the database version.
-    public static final int DATABASE_VERSION = 6;
+    public static final int DATABASE_VERSION = 8;
     public static final String DATABASE_NAME = "data.db";
 
     // FileCache table
@@ -52,7 +52,49 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String DIRENTS_CACHE_COLUMN_REPO_ID = "repo_id";
     private static final String DIRENTS_CACHE_COLUMN_PATH = "path";
     private static final String DIRENTS_CACHE_COLUMN_DIR_ID = "dir_id";
-    private static final String DIRENTS_CACHE_COLUMN_CONTENT = "content";
+
+    // Dirent table, the entries of the directories in DirentsCache
+    private static final String DIRENT_TABLE_NAME = "Dirent";
+
+    private static final String DIRENT_COLUMN_ID = "id";
+    private static final String DIRENT_COLUMN_REPO_ID = "repo_id";
+    private static final String DIRENT_COLUMN_PARENT_PATH = "parent_path";
+    private static final String DIRENT_COLUMN_NAME = "name";
+    private static final String DIRENT_COLUMN_TYPE = "type";
+    private static final String DIRENT_COLUMN_SIZE = "size";
+    private static final String DIRENT_COLUMN_MTIME = "mtime";
+    private static final String DIRENT_COLUMN_OBJ_ID = "obj_id";
+
+    private static final String DIRENT_TYPE_DIR = "dir";
+    private static final String DIRENT_TYPE_FILE = "file";
+
+    /**
+     * folders first, then by name
+     */
+    public static final String DIRENT_ORDER_BY_NAME =
+            DIRENT_COLUMN_TYPE + ", " + DIRENT_COLUMN_NAME + " COLLATE NOCASE";
+    /**
+     * folders first, then the most recently modified first
+     */
+    public static final String DIRENT_ORDER_BY_MTIME =
+            DIRENT_COLUMN_TYPE + ", " + DIRENT_COLUMN_MTIME + " DESC";
+    /**
+     * folders first, then by name in reverse order
+     */
+    public static final String DIRENT_ORDER_BY_NAME_DESC =
+            DIRENT_COLUMN_TYPE + ", " + DIRENT_COLUMN_NAME + " COLLATE NOCASE DESC";
+    /**
+     * folders first, then the least recently modified first
+     */
+    public static final String DIRENT_ORDER_BY_MTIME_ASC =
+            DIRENT_COLUMN_TYPE + ", " + DIRENT_COLUMN_MTIME;
+
+    private static final String[] DIRENT_PROJECTION = {
+        DIRENT_COLUMN_NAME,
+        DIRENT_COLUMN_TYPE,
+        DIRENT_COLUMN_SIZE,
+        DIRENT_COLUMN_MTIME,
+        DIRENT_COLUMN_OBJ_ID };
 
     private static final String SQL_CREATE_FILECACHE_TABLE =
         "CREATE TABLE " + FILECACHE_TABLE_NAME + " ("
@@ -82,8 +124,28 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         + DIRENTS_CACHE_COLUMN_ID + " INTEGER PRIMARY KEY, "
         + DIRENTS_CACHE_COLUMN_REPO_ID + " TEXT NOT NULL, "
         + DIRENTS_CACHE_COLUMN_PATH + " TEXT NOT NULL, "
-        + DIRENTS_CACHE_COLUMN_DIR_ID + " TEXT NOT NULL, "
-        + DIRENTS_CACHE_COLUMN_CONTENT + " TEXT NOT NULL);";
+        + DIRENTS_CACHE_COLUMN_DIR_ID + " TEXT NOT NULL);";
+
+    private static final String SQL_CREATE_DIRENT_TABLE =
+        "CREATE TABLE " + DIRENT_TABLE_NAME + " ("
+        + DIRENT_COLUMN_ID + " INTEGER PRIMARY KEY, "
+        + DIRENT_COLUMN_REPO_ID + " TEXT NOT NULL, "
+        + DIRENT_COLUMN_PARENT_PATH + " TEXT NOT NULL, "
+        + DIRENT_COLUMN_NAME + " TEXT NOT NULL, "
+        + DIRENT_COLUMN_TYPE + " TEXT NOT NULL, "
+        + DIRENT_COLUMN_SIZE + " INTEGER NOT NULL, "
+        + DIRENT_COLUMN_MTIME + " INTEGER NOT NULL, "
+        + DIRENT_COLUMN_OBJ_ID + " TEXT NOT NULL);";
+
+    private static final String SQL_INSERT_DIRENT =
+        "INSERT OR REPLACE INTO " + DIRENT_TABLE_NAME + " ("
+        + DIRENT_COLUMN_REPO_ID + ", "
+        + DIRENT_COLUMN_PARENT_PATH + ", "
+        + DIRENT_COLUMN_NAME + ", "
+        + DIRENT_COLUMN_TYPE + ", "
+        + DIRENT_COLUMN_SIZE + ", "
+        + DIRENT_COLUMN_MTIME + ", "
+        + DIRENT_COLUMN_OBJ_ID + ") VALUES (?, ?, ?, ?, ?, ?, ?);";
 
     // Use only single dbHelper to prevent multi-thread issue and db is closed exception
     // Reference http://stackoverflow.com/questions/2493331/what-are-the-best-practices-for-sqlite-on-android
@@ -107,6 +169,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         createFileCacheTable(db);
         createRepoDirTable(db);
         createDirentsCacheTable(db);
+        createDirentTable(db);
         createStarredFilesCacheTable(db);
     }
 
@@ -148,6 +211,33 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(sql);
     }
 
+    private void createDirentTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_DIRENT_TABLE);
+
+        String sql;
+        sql = String.format("CREATE UNIQUE INDEX repo_parent_name_index ON %s (%s, %s, %s)",
+                            DIRENT_TABLE_NAME,
+                            DIRENT_COLUMN_REPO_ID,
+                            DIRENT_COLUMN_PARENT_PATH,
+                            DIRENT_COLUMN_NAME);
+        db.execSQL(sql);
+        sql = String.format("CREATE INDEX repo_parent_type_mtime_index ON %s (%s, %s, %s, %s)",
+                            DIRENT_TABLE_NAME,
+                            DIRENT_COLUMN_REPO_ID,
+                            DIRENT_COLUMN_PARENT_PATH,
+                            DIRENT_COLUMN_TYPE,
+                            DIRENT_COLUMN_MTIME);
+        db.execSQL(sql);
+        // pages of a listing sorted by name are read from this index, without sorting the directory
+        sql = String.format("CREATE INDEX repo_parent_type_name_index ON %s (%s, %s, %s, %s COLLATE NOCASE)",
+                            DIRENT_TABLE_NAME,
+                            DIRENT_COLUMN_REPO_ID,
+                            DIRENT_COLUMN_PARENT_PATH,
+                            DIRENT_COLUMN_TYPE,
+                            DIRENT_COLUMN_NAME);
+        db.execSQL(sql);
+    }
+
     private void createStarredFilesCacheTable(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_STARRED_FILECACHE_TABLE);
 
@@ -174,6 +264,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + FILECACHE_TABLE_NAME + ";");
         db.execSQL("DROP TABLE IF EXISTS " + REPODIR_TABLE_NAME + ";");
         db.execSQL("DROP TABLE IF EXISTS " + DIRENTS_CACHE_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + DIRENT_TABLE_NAME + ";");
         db.execSQL("DROP TABLE IF EXISTS " + STARRED_FILECACHE_TABLE_NAME + ";");
         onCreate(db);
     }
@@ -428,17 +519,75 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         database.insert(STARRED_FILECACHE_TABLE_NAME, null, values);
     }
 
-    public void saveDirents(String repoID, String path, String dirID, String content) {
-        removeCachedDirents(repoID, path);
-        // Create a new map of values, where column names are the keys
-        ContentValues values = new ContentValues();
-        values.put(DIRENTS_CACHE_COLUMN_REPO_ID, repoID);
-        values.put(DIRENTS_CACHE_COLUMN_PATH, path);
-        values.put(DIRENTS_CACHE_COLUMN_DIR_ID, dirID);
-        values.put(DIRENTS_CACHE_COLUMN_CONTENT, content);
+    /**
+     * Replace the cached entries of a directory
+     */
+    public void saveDirents(String repoID, String path, String dirID, List<SeafDirent> dirents) {
+        database.beginTransaction();
+        try {
+            removeCachedDirents(repoID, path);
+
+            ContentValues values = new ContentValues();
+            values.put(DIRENTS_CACHE_COLUMN_REPO_ID, repoID);
+            values.put(DIRENTS_CACHE_COLUMN_PATH, path);
+            values.put(DIRENTS_CACHE_COLUMN_DIR_ID, dirID);
+            database.insert(DIRENTS_CACHE_TABLE_NAME, null, values);
+
+            SQLiteStatement stmt = database.compileStatement(SQL_INSERT_DIRENT);
+            try {
+                for (SeafDirent dirent : dirents) {
+                    bindDirent(stmt, repoID, path, dirent);
+                    stmt.executeInsert();
+                }
+            } finally {
+                stmt.close();
+            }
 
-        // Insert the new row, returning the primary key value of the new row
-        database.insert(DIRENTS_CACHE_TABLE_NAME, null, values);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private static void bindDirent(SQLiteStatement stmt, String repoID, String parentPath, SeafDirent dirent) {
+        stmt.clearBindings();
+        stmt.bindString(1, repoID);
+        stmt.bindString(2, parentPath);
+        stmt.bindString(3, dirent.name);
+        stmt.bindString(4, dirent.isDir() ? DIRENT_TYPE_DIR : DIRENT_TYPE_FILE);
+        stmt.bindLong(5, dirent.size);
+        stmt.bindLong(6, dirent.mtime);
+        stmt.bindString(7, dirent.id);
+    }
+
+    /**
+     * Add or update a single entry of a cached directory. Nothing is done if the directory is not cached.
+     * <p/>
+     * The dir id of the directory is kept, so the next listing from the server still replaces the entries.
+     */
+    public void saveCachedDirent(String repoID, String parentPath, SeafDirent dirent) {
+        if (getCachedDirID(repoID, parentPath) == null) {
+            return;
+        }
+
+        SQLiteStatement stmt = database.compileStatement(SQL_INSERT_DIRENT);
+        try {
+            bindDirent(stmt, repoID, parentPath, dirent);
+            stmt.executeInsert();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Remove a single entry of a cached directory. The dir id of the directory is kept, like
+     * {@link #saveCachedDirent(String, String, SeafDirent)} does.
+     */
+    public void removeCachedDirent(String repoID, String parentPath, String name) {
+        String whereClause = String.format("%s = ? and %s = ? and %s = ?",
+            DIRENT_COLUMN_REPO_ID, DIRENT_COLUMN_PARENT_PATH, DIRENT_COLUMN_NAME);
+
+        database.delete(DIRENT_TABLE_NAME, whereClause, new String[] { repoID, parentPath, name });
     }
 
     public void removeCachedDirents(String repoID, String path) {
@@ -446,6 +595,11 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             DIRENTS_CACHE_COLUMN_REPO_ID, DIRENTS_CACHE_COLUMN_PATH);
 
         database.delete(DIRENTS_CACHE_TABLE_NAME, whereClause, new String[] { repoID, path });
+
+        whereClause = String.format("%s = ? and %s = ?",
+            DIRENT_COLUMN_REPO_ID, DIRENT_COLUMN_PARENT_PATH);
+
+        database.delete(DIRENT_TABLE_NAME, whereClause, new String[] { repoID, path });
     }
 
     private void removeStarredFiles(Account account) {
@@ -455,24 +609,31 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         database.delete(STARRED_FILECACHE_TABLE_NAME, whereClause, new String[] { account.getSignature() });
     }
 
-    public String getDirents(String repoID, String path, String dirID) {
-        Pair<String, String> ret = getCachedDirents(repoID, path);
-        if (ret == null) {
+    /**
+     * Get the cached entries of a directory if they are of the given dir id
+     *
+     * @return null if the directory is not cached, or its cache is out of date
+     */
+    public List<SeafDirent> getDirents(String repoID, String path, String dirID) {
+        String cachedDirID = getCachedDirID(repoID, path);
+        if (cachedDirID == null) {
             return null;
         }
 
-        if (dirID != null && !ret.first.equals(dirID)) {
+        if (dirID != null && !cachedDirID.equals(dirID)) {
             // cache is out of date
             return null;
         }
 
-        return ret.second;
+        return getCachedDirents(repoID, path, null, DIRENT_ORDER_BY_NAME, 0, -1);
     }
 
-    public Pair<String, String> getCachedDirents(String repoID, String path) {
+    /**
+     * @return the dir id of a cached directory, or null if it is not cached
+     */
+    public String getCachedDirID(String repoID, String path) {
         String[] projection = {
-            DIRENTS_CACHE_COLUMN_DIR_ID,
-            DIRENTS_CACHE_COLUMN_CONTENT
+            DIRENTS_CACHE_COLUMN_DIR_ID
         };
 
         String selectClause = String.format("%s = ? and %s = ?",
@@ -496,9 +657,92 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
 
         String dirID = cursor.getString(0);
-        String content = cursor.getString(1);
         cursor.close();
 
-        return new Pair<String, String>(dirID, content);
+        return dirID;
+    }
+
+    /**
+     * Get a page of the cached entries of a directory
+     *
+     * @param type only return entries of this type, or null for all
+     * @param orderBy one of the DIRENT_ORDER_BY constants
+     * @param offset index of the first entry
+     * @param limit max number of entries, or -1 for all
+     */
+    public List<SeafDirent> getCachedDirents(String repoID, String path, SeafDirent.DirentType type,
+                                             String orderBy, int offset, int limit) {
+        String selectClause = String.format("%s = ? and %s = ?",
+                                            DIRENT_COLUMN_REPO_ID,
+                                            DIRENT_COLUMN_PARENT_PATH);
+        String[] selectArgs = { repoID, path };
+        if (type != null) {
+            selectClause += String.format(" and %s = ?", DIRENT_COLUMN_TYPE);
+            selectArgs = new String[] { repoID, path,
+                    type == SeafDirent.DirentType.DIR ? DIRENT_TYPE_DIR : DIRENT_TYPE_FILE };
+        }
+
+        String limitClause = limit < 0 ? null : offset + "," + limit;
+
+        Cursor cursor = database.query(
+            DIRENT_TABLE_NAME,
+            DIRENT_PROJECTION,
+            selectClause,
+            selectArgs,
+            null,   // don't group the rows
+            null,   // don't filter by row groups
+            orderBy,
+            limitClause);
+
+        List<SeafDirent> dirents = Lists.newArrayListWithCapacity(cursor.getCount());
+        cursor.moveToFirst();
+        while (!cursor.isAfterLast()) {
+            dirents.add(cursorToDirent(cursor));
+            cursor.moveToNext();
+        }
+        cursor.close();
+
+        return dirents;
+    }
+
+    /**
+     * @return the number of cached entries of a directory
+     */
+    public int getCachedDirentCount(String repoID, String path) {
+        String sql = String.format("SELECT COUNT(*) FROM %s WHERE %s = ? and %s = ?",
+                                   DIRENT_TABLE_NAME,
+                                   DIRENT_COLUMN_REPO_ID,
+                                   DIRENT_COLUMN_PARENT_PATH);
+        Cursor cursor = database.rawQuery(sql, new String[] { repoID, path });
+        int count = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        cursor.close();
+        return count;
+    }
+
+    /**
+     * @return the number of cached entries of a directory of the given type
+     */
+    public int getCachedDirentCount(String repoID, String path, SeafDirent.DirentType type) {
+        String sql = String.format("SELECT COUNT(*) FROM %s WHERE %s = ? and %s = ? and %s = ?",
+                                   DIRENT_TABLE_NAME,
+                                   DIRENT_COLUMN_REPO_ID,
+                                   DIRENT_COLUMN_PARENT_PATH,
+                                   DIRENT_COLUMN_TYPE);
+        Cursor cursor = database.rawQuery(sql, new String[] { repoID, path,
+                type == SeafDirent.DirentType.DIR ? DIRENT_TYPE_DIR : DIRENT_TYPE_FILE });
+        int count = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        cursor.close();
+        return count;
+    }
+
+    private SeafDirent cursorToDirent(Cursor cursor) {
+        SeafDirent dirent = new SeafDirent();
+        dirent.name = cursor.getString(0);
+        dirent.type = DIRENT_TYPE_DIR.equals(cursor.getString(1))
+                ? SeafDirent.DirentType.DIR : SeafDirent.DirentType.FILE;
+        dirent.size = cursor.getLong(2);
+        dirent.mtime = cursor.getLong(3);
+        dirent.id = cursor.getString(4);
+        return dirent;
     }
 }
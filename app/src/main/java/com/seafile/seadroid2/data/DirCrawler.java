@@ -0,0 +1,170 @@
+package com.seafile.seadroid2.data;
+
+import android.util.Log;
+import com.seafile.seadroid2.SeafException;
+import com.seafile.seadroid2.util.Utils;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Walks the folder tree of a repo, listing up to {@link #MAX_PARALLEL_LISTINGS} directories at a time.
+ * <p/>
+ * Files are reported as soon as their directory has been listed, so they can be transferred
+ * while the rest of the tree is still being crawled. A sub-directory whose dir id matches the
+ * dirents cache is read from the cache, without a round trip to the server.
+ */
+public class DirCrawler {
+    private static final String DEBUG_TAG = "DirCrawler";
+
+    public static final int MAX_PARALLEL_LISTINGS = 4;
+
+    public interface CrawlListener {
+        /**
+         * Called on the crawling thread for every file found
+         */
+        void onFileFound(String dirPath, SeafDirent dirent);
+
+        /**
+         * Called on the crawling thread each time a directory has been listed
+         */
+        void onProgress(int listedDirs, int foundDirs, int foundFiles);
+    }
+
+    private final DataManager dataManager;
+    private final String repoID;
+    private final CrawlListener listener;
+
+    private volatile boolean cancelled;
+
+    private int listedDirs;
+    private int foundDirs;
+    private int foundFiles;
+
+    public DirCrawler(DataManager dataManager, String repoID, CrawlListener listener) {
+        this.dataManager = dataManager;
+        this.repoID = repoID;
+        this.listener = listener;
+    }
+
+    /**
+     * Stop crawling, directories being listed are abandoned
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Crawl a directory, blocking until it is done
+     *
+     * @param dirPath the directory to start from
+     * @param dirents the already known dirents of dirPath to crawl, or null to list dirPath
+     * @param recurse false to only report the files directly in dirPath
+     * @return the number of files found
+     * @throws SeafException if listing a directory failed
+     */
+    public int crawl(String dirPath, List<SeafDirent> dirents, boolean recurse) throws SeafException {
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_PARALLEL_LISTINGS);
+        CompletionService<Listing> completionService = new ExecutorCompletionService<Listing>(executor);
+        int pending = 0;
+
+        try {
+            if (dirents == null) {
+                foundDirs++;
+                completionService.submit(new ListDirTask(dirPath, null));
+                pending++;
+            } else {
+                pending += addDirents(completionService, dirPath, dirents, recurse);
+            }
+
+            while (pending > 0 && !cancelled) {
+                Listing listing = completionService.take().get();
+                pending--;
+                listedDirs++;
+
+                if (listing.dirents != null) {
+                    pending += addDirents(completionService, listing.path, listing.dirents, recurse);
+                }
+                listener.onProgress(listedDirs, foundDirs, foundFiles);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SeafException.userCancelledException;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SeafException) {
+                throw (SeafException) e.getCause();
+            }
+            Log.e(DEBUG_TAG, "failed to list dir", e.getCause());
+            throw SeafException.unknownException;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Log.d(DEBUG_TAG, String.format("crawled %s: %d dirs, %d files", dirPath, listedDirs, foundFiles));
+        return foundFiles;
+    }
+
+    /**
+     * Report the files of a listed directory and queue its sub-directories
+     *
+     * @return the number of directories queued
+     */
+    private int addDirents(CompletionService<Listing> completionService, String dirPath,
+                           List<SeafDirent> dirents, boolean recurse) {
+        int queued = 0;
+        for (SeafDirent dirent : dirents) {
+            if (cancelled) {
+                break;
+            }
+
+            if (dirent.isDir()) {
+                if (recurse) {
+                    foundDirs++;
+                    completionService.submit(new ListDirTask(Utils.pathJoin(dirPath, dirent.name), dirent.id));
+                    queued++;
+                }
+            } else {
+                foundFiles++;
+                listener.onFileFound(dirPath, dirent);
+            }
+        }
+        return queued;
+    }
+
+    private static class Listing {
+        final String path;
+        final List<SeafDirent> dirents;
+
+        Listing(String path, List<SeafDirent> dirents) {
+            this.path = path;
+            this.dirents = dirents;
+        }
+    }
+
+    private class ListDirTask implements Callable<Listing> {
+        private final String path;
+        private final String dirID;
+
+        ListDirTask(String path, String dirID) {
+            this.path = path;
+            this.dirID = dirID;
+        }
+
+        @Override
+        public Listing call() throws SeafException {
+            if (cancelled) {
+                return new Listing(path, null);
+            }
+            return new Listing(path, dataManager.getDirents(repoID, path, dirID));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.seafile.seadroid2.data;
+
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory cache of recently listed directories, so going back to a folder does not query and
+ * rebuild its dirents from the database.
+ * <p/>
+ * An entry is only returned for the dir id it was stored with, so a directory changed on the
+ * server is never served from here. The cache is bounded by the estimated memory of the dirents.
+ */
+public class DirentsLruCache {
+    private static final String DEBUG_TAG = "DirentsLruCache";
+
+    /**
+     * share of the max heap the cache may use
+     */
+    private static final int HEAP_FRACTION = 16;
+
+    /**
+     * estimated fixed memory of a SeafDirent, besides its strings
+     */
+    private static final int DIRENT_OVERHEAD_BYTES = 64;
+
+    private static DirentsLruCache instance;
+
+    private final LruCache<String, Entry> cache;
+
+    /**
+     * counted here rather than by the LruCache, which takes an out of date entry for a hit
+     */
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    private DirentsLruCache(int maxBytes) {
+        cache = new LruCache<String, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.bytes;
+            }
+        };
+    }
+
+    public static synchronized DirentsLruCache instance() {
+        if (instance == null) {
+            int maxBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+            instance = new DirentsLruCache(maxBytes);
+        }
+
+        return instance;
+    }
+
+    private static String key(String repoID, String path) {
+        return repoID + path;
+    }
+
+    /**
+     * @return a copy of the cached dirents, or null if the directory is not cached with this dir id
+     */
+    public List<SeafDirent> get(String repoID, String path, String dirID) {
+        Entry entry = cache.get(key(repoID, path));
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        if (!entry.dirID.equals(dirID)) {
+            // out of date
+            cache.remove(key(repoID, path));
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return Lists.newArrayList(entry.dirents);
+    }
+
+    public void put(String repoID, String path, String dirID, List<SeafDirent> dirents) {
+        if (dirID == null || dirents == null) {
+            return;
+        }
+
+        cache.put(key(repoID, path), new Entry(dirID, Lists.newArrayList(dirents)));
+    }
+
+    /**
+     * Forget a directory
+     */
+    public void invalidate(String repoID, String path) {
+        cache.remove(key(repoID, path));
+    }
+
+    /**
+     * Forget a directory and all the directories below it
+     */
+    public void invalidateTree(String repoID, String path) {
+        String prefix = key(repoID, path.endsWith("/") ? path : path + "/");
+        for (String key : cache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                cache.remove(key);
+            }
+        }
+        invalidate(repoID, path);
+    }
+
+    public int hitCount() {
+        return hitCount.get();
+    }
+
+    public int missCount() {
+        return missCount.get();
+    }
+
+    public int evictionCount() {
+        return cache.evictionCount();
+    }
+
+    /**
+     * @return the estimated bytes of the cached dirents
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    public void logStats() {
+        Log.d(DEBUG_TAG, String.format("hits %d misses %d evictions %d size %d/%d",
+                hitCount(), missCount(), evictionCount(), size(), cache.maxSize()));
+    }
+
+    private static class Entry {
+        final String dirID;
+        final List<SeafDirent> dirents;
+        final int bytes;
+
+        Entry(String dirID, List<SeafDirent> dirents) {
+            this.dirID = dirID;
+            this.dirents = dirents;
+
+            int bytes = 0;
+            for (SeafDirent dirent : dirents) {
+                bytes += DIRENT_OVERHEAD_BYTES;
+                bytes += 2 * (dirent.name == null ? 0 : dirent.name.length());
+                bytes += 2 * (dirent.id == null ? 0 : dirent.id.length());
+            }
+            this.bytes = Math.max(1, bytes);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.seafile.seadroid2.data;
+
+import android.support.v4.util.LruCache;
+import android.os.Process;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.seafile.seadroid2.SeafException;
+import com.seafile.seadroid2.SettingsManager;
+import com.seafile.seadroid2.util.Utils;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the sub-directories the user is likely to open next, so they are shown without waiting
+ * for the server.
+ * <p/>
+ * The directories opened most often are remembered. When a directory is shown, those of its
+ * sub-directories which have been opened before are listed in the background, most opened first.
+ * If speculative prefetch is turned on in the settings, the first {@link #MAX_SPECULATIVE_DIRS}
+ * sub-directories by name follow.
+ * <p/>
+ * Prefetching is cheap for the user:
+ * <ul>
+ * <li>it runs on a single thread of background priority</li>
+ * <li>it only runs on unmetered networks, checked before each request</li>
+ * <li>requests and the estimated bytes received are limited per {@link #BUDGET_PERIOD_MILLI}</li>
+ * <li>a sub-directory whose cached dirents are of the dir id found in its parent is skipped,
+ * without any request</li>
+ * <li>each new directory shown cancels the prefetch of the previous one, and so does
+ * {@link #cancel()} when the user leaves the directory</li>
+ * </ul>
+ */
+public class DirentsPrefetcher {
+    private static final String DEBUG_TAG = "DirentsPrefetcher";
+
+    /**
+     * number of directories whose open count is remembered
+     */
+    private static final int MAX_TRACKED_DIRS = 256;
+
+    /**
+     * max most opened sub-directories prefetched per directory shown
+     */
+    private static final int MAX_PREFETCH_DIRS = 3;
+
+    /**
+     * max sub-directories prefetched speculatively per directory shown
+     */
+    private static final int MAX_SPECULATIVE_DIRS = 10;
+
+    private static final long BUDGET_PERIOD_MILLI = 60 * 60 * 1000;
+    private static final int MAX_REQUESTS_PER_PERIOD = 100;
+    private static final long MAX_BYTES_PER_PERIOD = 2 * 1024 * 1024;
+
+    /**
+     * estimated size of a dirent in a listing, besides its name
+     */
+    private static final int DIRENT_JSON_BYTES = 100;
+
+    private static DirentsPrefetcher instance;
+
+    private final LruCache<String, Integer> openCounts = new LruCache<String, Integer>(MAX_TRACKED_DIRS);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private Future<?> current;
+
+    private long budgetPeriodStart;
+    private int requestsUsed;
+    private long bytesUsed;
+
+    private DirentsPrefetcher() {
+    }
+
+    public static synchronized DirentsPrefetcher instance() {
+        if (instance == null) {
+            instance = new DirentsPrefetcher();
+        }
+        return instance;
+    }
+
+    private static String key(String repoID, String path) {
+        return repoID + path;
+    }
+
+    /**
+     * Called when the user opens a directory
+     */
+    public synchronized void onDirOpened(String repoID, String path) {
+        Integer count = openCounts.get(key(repoID, path));
+        openCounts.put(key(repoID, path), count == null ? 1 : count + 1);
+    }
+
+    private synchronized int getOpenCount(String repoID, String path) {
+        Integer count = openCounts.get(key(repoID, path));
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Prefetch the sub-directories of a directory, if the network is not metered
+     */
+    public synchronized void prefetch(final DataManager dataManager, final String repoID, final String path) {
+        cancel();
+
+        if (Utils.isActiveNetworkMetered()) {
+            return;
+        }
+
+        final boolean speculative = SettingsManager.instance().isFolderPrefetchEnabled();
+        current = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                prefetchChildren(dataManager, repoID, path, speculative);
+            }
+        });
+    }
+
+    /**
+     * Stop prefetching, e.g. when the user leaves the directory
+     */
+    public synchronized void cancel() {
+        if (current != null) {
+            current.cancel(true);
+            current = null;
+        }
+    }
+
+    /**
+     * Take a request from the budget
+     *
+     * @return false if the budget of the period is used up
+     */
+    private synchronized boolean takeRequest() {
+        long now = Utils.now();
+        if (now - budgetPeriodStart >= BUDGET_PERIOD_MILLI) {
+            budgetPeriodStart = now;
+            requestsUsed = 0;
+            bytesUsed = 0;
+        }
+
+        if (requestsUsed >= MAX_REQUESTS_PER_PERIOD || bytesUsed >= MAX_BYTES_PER_PERIOD) {
+            return false;
+        }
+        requestsUsed++;
+        return true;
+    }
+
+    private synchronized void chargeBytes(List<SeafDirent> dirents) {
+        for (SeafDirent dirent : dirents) {
+            bytesUsed += DIRENT_JSON_BYTES + dirent.name.length();
+        }
+    }
+
+    /**
+     * @return the sub-directories to prefetch, in order
+     */
+    private List<SeafDirent> getCandidates(List<SeafDirent> dirs, final String repoID, final String path,
+                                           boolean speculative) {
+        List<SeafDirent> opened = Lists.newArrayList();
+        for (SeafDirent dir : dirs) {
+            if (getOpenCount(repoID, Utils.pathJoin(path, dir.name)) > 0) {
+                opened.add(dir);
+            }
+        }
+
+        Collections.sort(opened, new Comparator<SeafDirent>() {
+            @Override
+            public int compare(SeafDirent lhs, SeafDirent rhs) {
+                return getOpenCount(repoID, Utils.pathJoin(path, rhs.name))
+                        - getOpenCount(repoID, Utils.pathJoin(path, lhs.name));
+            }
+        });
+
+        List<SeafDirent> candidates = Lists.newArrayList(opened.subList(0, Math.min(MAX_PREFETCH_DIRS, opened.size())));
+        if (speculative) {
+            for (SeafDirent dir : dirs.subList(0, Math.min(MAX_SPECULATIVE_DIRS, dirs.size()))) {
+                if (!candidates.contains(dir)) {
+                    candidates.add(dir);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private void prefetchChildren(DataManager dataManager, String repoID, String path, boolean speculative) {
+        List<SeafDirent> dirs = dataManager.getCachedDirents(repoID, path, SeafDirent.DirentType.DIR,
+                DatabaseHelper.DIRENT_ORDER_BY_NAME, 0, -1);
+
+        for (SeafDirent dir : getCandidates(dirs, repoID, path, speculative)) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+
+            String childPath = Utils.pathJoin(path, dir.name);
+            if (dir.id != null && dir.id.equals(dataManager.getCachedDirID(repoID, childPath))) {
+                // already cached at this version
+                continue;
+            }
+
+            if (Utils.isActiveNetworkMetered()) {
+                Log.d(DEBUG_TAG, "paused on a metered network");
+                return;
+            }
+
+            if (!takeRequest()) {
+                Log.d(DEBUG_TAG, "budget used up");
+                return;
+            }
+
+            try {
+                List<SeafDirent> dirents = dataManager.getDirents(repoID, childPath, dir.id);
+                if (dirents != null) {
+                    chargeBytes(dirents);
+                    dataManager.setDirsRefreshTimeStamp(repoID, childPath);
+                }
+            } catch (SeafException e) {
+                Log.d(DEBUG_TAG, "failed to prefetch " + childPath + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.seafile.seadroid2.data;
+
+import com.google.common.collect.Maps;
+import com.seafile.seadroid2.util.Utils;
+
+import java.util.Map;
+
+/**
+ * The cached files replaced by a download lately, or being replaced now.
+ * <p/>
+ * A download is written to a temporary file which is then renamed to the cached file. The file
+ * monitor sees the rename at once, before it is told about the download, and must not take it
+ * for a change made by the user.
+ */
+public class DownloadedFiles {
+    /**
+     * how long after a download the changes of the file are still taken for the download
+     */
+    private static final long GRACE_PERIOD_MILLI = 10000;
+
+    /**
+     * local path -> time the download finished, {@link Long#MAX_VALUE} while it runs
+     */
+    private static final Map<String, Long> downloads = Maps.newConcurrentMap();
+
+    private DownloadedFiles() {
+    }
+
+    static void onDownloadStarted(String localPath) {
+        downloads.put(localPath, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param replaced false if the cached file was up to date and has not been touched
+     */
+    static void onDownloadFinished(String localPath, boolean replaced) {
+        if (replaced) {
+            downloads.put(localPath, Utils.now());
+        } else {
+            downloads.remove(localPath);
+        }
+    }
+
+    /**
+     * @return true if the file is being downloaded, or was downloaded less than
+     * {@link #GRACE_PERIOD_MILLI} ago
+     */
+    public static boolean isReplacedByDownload(String localPath) {
+        Long finished = downloads.get(localPath);
+        if (finished == null) {
+            return false;
+        }
+        if (finished == Long.MAX_VALUE || Utils.now() - finished < GRACE_PERIOD_MILLI) {
+            return true;
+        }
+        downloads.remove(localPath);
+        return false;
+    }
+}
@@ -0,0 +1,267 @@
+package com.seafile.seadroid2.data;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.google.common.collect.Lists;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+
+/**
+ * Parses API responses while they are read, into model objects, without building the body
+ * as a String or a JSONArray first.
+ * <p/>
+ * android.util.JsonReader is only available since Honeycomb. Check {@link #isSupported()} and
+ * fall back to the org.json parsers on older devices.
+ * <p/>
+ * The parsers read through {@link Reader}, so they can be run on the JVM with another
+ * implementation of the same API.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public final class JsonStreamParser {
+
+    private JsonStreamParser() {
+    }
+
+    /**
+     * The calls of android.util.JsonReader the parsers use
+     */
+    interface Reader extends Closeable {
+        void beginArray() throws IOException;
+        void endArray() throws IOException;
+        void beginObject() throws IOException;
+        void endObject() throws IOException;
+        boolean hasNext() throws IOException;
+        String nextName() throws IOException;
+        boolean nextIsNull() throws IOException;
+        String nextString() throws IOException;
+        long nextLong() throws IOException;
+        boolean nextBoolean() throws IOException;
+        void skipValue() throws IOException;
+    }
+
+    private static class AndroidReader implements Reader {
+        private final JsonReader reader;
+
+        AndroidReader(InputStream in) throws IOException {
+            reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        }
+
+        @Override
+        public void beginArray() throws IOException {
+            reader.beginArray();
+        }
+
+        @Override
+        public void endArray() throws IOException {
+            reader.endArray();
+        }
+
+        @Override
+        public void beginObject() throws IOException {
+            reader.beginObject();
+        }
+
+        @Override
+        public void endObject() throws IOException {
+            reader.endObject();
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            return reader.hasNext();
+        }
+
+        @Override
+        public String nextName() throws IOException {
+            return reader.nextName();
+        }
+
+        @Override
+        public boolean nextIsNull() throws IOException {
+            return reader.peek() == JsonToken.NULL;
+        }
+
+        @Override
+        public String nextString() throws IOException {
+            return reader.nextString();
+        }
+
+        @Override
+        public long nextLong() throws IOException {
+            return reader.nextLong();
+        }
+
+        @Override
+        public boolean nextBoolean() throws IOException {
+            return reader.nextBoolean();
+        }
+
+        @Override
+        public void skipValue() throws IOException {
+            reader.skipValue();
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Parse a json array of dirents, e.g. the response of api2/repos/{repo_id}/dir/
+     */
+    public static List<SeafDirent> parseDirents(InputStream in) throws IOException {
+        return parseDirents(new AndroidReader(in));
+    }
+
+    /**
+     * Parse a json array of dirents, and close the reader
+     */
+    static List<SeafDirent> parseDirents(Reader reader) throws IOException {
+        try {
+            List<SeafDirent> dirents = Lists.newArrayList();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                SeafDirent dirent = readDirent(reader);
+                if (dirent != null)
+                    dirents.add(dirent);
+            }
+            reader.endArray();
+            return dirents;
+        } catch (IllegalStateException e) {
+            // unexpected token
+            throw new IOException(e.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parse a json array of repos, e.g. the response of api2/repos/
+     */
+    public static List<SeafRepo> parseRepos(InputStream in) throws IOException {
+        return parseRepos(new AndroidReader(in));
+    }
+
+    /**
+     * Parse a json array of repos, and close the reader
+     */
+    static List<SeafRepo> parseRepos(Reader reader) throws IOException {
+        try {
+            List<SeafRepo> repos = Lists.newArrayList();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                SeafRepo repo = readRepo(reader);
+                if (repo != null)
+                    repos.add(repo);
+            }
+            reader.endArray();
+            return repos;
+        } catch (IllegalStateException e) {
+            // unexpected token
+            throw new IOException(e.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the dirent, or null if a mandatory field is missing
+     */
+    private static SeafDirent readDirent(Reader reader) throws IOException {
+        SeafDirent dirent = new SeafDirent();
+        String type = null;
+        boolean hasMtime = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.nextIsNull()) {
+                reader.skipValue();
+            } else if (name.equals("id")) {
+                dirent.id = reader.nextString();
+            } else if (name.equals("name")) {
+                dirent.name = reader.nextString();
+            } else if (name.equals("mtime")) {
+                dirent.mtime = reader.nextLong();
+                hasMtime = true;
+            } else if (name.equals("type")) {
+                type = reader.nextString();
+            } else if (name.equals("size")) {
+                dirent.size = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (dirent.id == null || dirent.name == null || type == null || !hasMtime) {
+            return null;
+        }
+
+        if (type.equals("file")) {
+            dirent.type = SeafDirent.DirentType.FILE;
+        } else {
+            dirent.type = SeafDirent.DirentType.DIR;
+            dirent.size = 0;
+        }
+        return dirent;
+    }
+
+    /**
+     * @return the repo, or null if a mandatory field is missing
+     */
+    private static SeafRepo readRepo(Reader reader) throws IOException {
+        SeafRepo repo = new SeafRepo();
+        String type = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.nextIsNull()) {
+                reader.skipValue();
+            } else if (name.equals("id")) {
+                repo.id = reader.nextString();
+            } else if (name.equals("name")) {
+                repo.name = reader.nextString();
+            } else if (name.equals("owner")) {
+                repo.owner = reader.nextString();
+            } else if (name.equals("permission")) {
+                repo.permission = reader.nextString();
+            } else if (name.equals("mtime")) {
+                repo.mtime = reader.nextLong();
+            } else if (name.equals("encrypted")) {
+                repo.encrypted = reader.nextBoolean();
+            } else if (name.equals("root")) {
+                repo.root = reader.nextString();
+            } else if (name.equals("size")) {
+                repo.size = reader.nextLong();
+            } else if (name.equals("type")) {
+                type = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (repo.id == null || repo.name == null || repo.permission == null || type == null) {
+            return null;
+        }
+
+        repo.isGroupRepo = type.equals("grepo");
+        repo.isPersonalRepo = type.equals("repo");
+        repo.isSharedRepo = type.equals("srepo");
+        return repo;
+    }
+}
@@ -0,0 +1,68 @@
+package com.seafile.seadroid2.data;
+
+import com.seafile.seadroid2.util.PinyinUtils;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Locale;
+
+/**
+ * The key by which an item is sorted by name, computed once per item instead of once per comparison.
+ * <p/>
+ * Names starting with a latin character come first, compared by the collator of the current locale.
+ * Names starting with a chinese character come after them, compared by their pinyin.
+ */
+class NameSortKey implements Comparable<NameSortKey> {
+    private final String name;
+    private final Locale locale;
+    private final boolean chinese;
+    private final CollationKey key;
+
+    private NameSortKey(String name, Locale locale, boolean chinese, CollationKey key) {
+        this.name = name;
+        this.locale = locale;
+        this.chinese = chinese;
+        this.key = key;
+    }
+
+    static boolean isChinese(String name) {
+        if (name.length() == 0) {
+            return false;
+        }
+        int unicode = name.codePointAt(0);
+        return 19968 < unicode && unicode < 40869;
+    }
+
+    /**
+     * @param cached the key computed last for the item, may be null
+     * @return the cached key if it is still valid for the name and the collator, a new one otherwise
+     */
+    static NameSortKey get(NameSortKey cached, String name, Collator collator, Locale locale) {
+        if (cached != null && cached.name.equals(name) && cached.locale.equals(locale)) {
+            return cached;
+        }
+
+        boolean chinese = isChinese(name);
+        String str;
+        if (chinese) {
+            StringBuilder sb = new StringBuilder(name.length() * 6);
+            PinyinUtils.appendPinyin(name, sb);
+            str = sb.toString().trim().toLowerCase();
+        } else {
+            str = name.toLowerCase();
+        }
+        return new NameSortKey(name, locale, chinese, collator.getCollationKey(str));
+    }
+
+    @Override
+    public int compareTo(NameSortKey another) {
+        if (chinese != another.chinese) {
+            return chinese ? 1 : -1;
+        }
+        return key.compareTo(another.key);
+    }
+
+    static int compareMTime(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+}
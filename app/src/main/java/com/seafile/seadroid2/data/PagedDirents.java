@@ -0,0 +1,239 @@
+package com.seafile.seadroid2.data;
+
+import android.os.AsyncTask;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.seafile.seadroid2.util.ConcurrentAsyncTask;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The cached dirents of a directory, read from the database a page at a time as they are accessed.
+ * <p/>
+ * Folders come first, then files, each sorted by the database. Only the {@link #MAX_PAGES} pages
+ * accessed last are kept in memory, so opening a folder and scrolling through it cost the same
+ * whatever its size. Sorting again queries the visible pages in the new order instead of sorting
+ * the whole directory, see {@link #sortedBy(String)}.
+ * <p/>
+ * Pages are read in the background, with the pages next to them. Until its page is loaded a dirent
+ * is a placeholder, see {@link #isPlaceholder(SeafDirent)}, and the {@link Listener} is told when
+ * it can be shown. Must only be used from the main thread.
+ */
+public class PagedDirents extends AbstractList<SeafDirent> {
+    private static final String DEBUG_TAG = "PagedDirents";
+
+    public static final int PAGE_SIZE = 100;
+    private static final int MAX_PAGES = 8;
+
+    /**
+     * One thread, so pages are read in the order they are needed
+     */
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    public interface Listener {
+        /**
+         * Pages have been loaded, the placeholders shown can be replaced
+         */
+        void onPagesLoaded();
+
+        /**
+         * The directory has fewer dirents than when it was counted, it must be listed again
+         */
+        void onListingChanged();
+    }
+
+    private final DataManager dataManager;
+    private final String repoID;
+    private final String path;
+    private final String orderBy;
+    private final int dirCount;
+    private final int fileCount;
+
+    private final SeafDirent dirPlaceholder = newPlaceholder(SeafDirent.DirentType.DIR);
+    private final SeafDirent filePlaceholder = newPlaceholder(SeafDirent.DirentType.FILE);
+
+    /**
+     * pages of folders have even keys, pages of files odd keys
+     */
+    private final LruCache<Integer, List<SeafDirent>> pages = new LruCache<Integer, List<SeafDirent>>(MAX_PAGES);
+
+    /**
+     * keys of the pages being read
+     */
+    private final Set<Integer> loading = Sets.newHashSet();
+
+    /**
+     * the dirent accessed last, pages too far from it are not read anymore once their turn comes
+     */
+    private volatile int lastLocation;
+
+    private Listener listener;
+    private boolean changed;
+
+    /**
+     * @param orderBy one of the DIRENT_ORDER_BY constants of {@link DatabaseHelper}
+     */
+    public PagedDirents(DataManager dataManager, String repoID, String path, String orderBy) {
+        this(dataManager, repoID, path, orderBy,
+                dataManager.getCachedDirentCount(repoID, path, SeafDirent.DirentType.DIR),
+                dataManager.getCachedDirentCount(repoID, path, SeafDirent.DirentType.FILE));
+    }
+
+    private PagedDirents(DataManager dataManager, String repoID, String path, String orderBy,
+                         int dirCount, int fileCount) {
+        this.dataManager = dataManager;
+        this.repoID = repoID;
+        this.path = path;
+        this.orderBy = orderBy;
+        this.dirCount = dirCount;
+        this.fileCount = fileCount;
+    }
+
+    private static SeafDirent newPlaceholder(SeafDirent.DirentType type) {
+        SeafDirent placeholder = new SeafDirent();
+        placeholder.id = "";
+        placeholder.name = "";
+        placeholder.type = type;
+        return placeholder;
+    }
+
+    /**
+     * @return the same directory in another order. Nothing is read until its dirents are accessed.
+     */
+    public PagedDirents sortedBy(String orderBy) {
+        PagedDirents sorted = new PagedDirents(dataManager, repoID, path, orderBy, dirCount, fileCount);
+        sorted.setListener(listener);
+        return sorted;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public String getRepoID() {
+        return repoID;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return true if the dirent stands for one whose page is not loaded yet
+     */
+    public boolean isPlaceholder(SeafDirent dirent) {
+        return dirent == dirPlaceholder || dirent == filePlaceholder;
+    }
+
+    /**
+     * Read all the dirents at once, for actions on the whole directory. Blocks while the database is queried.
+     */
+    public List<SeafDirent> loadAll() {
+        List<SeafDirent> dirents = Lists.newArrayListWithCapacity(size());
+        dirents.addAll(dataManager.getCachedDirents(repoID, path, SeafDirent.DirentType.DIR, orderBy, 0, -1));
+        dirents.addAll(dataManager.getCachedDirents(repoID, path, SeafDirent.DirentType.FILE, orderBy, 0, -1));
+        return dirents;
+    }
+
+    @Override
+    public int size() {
+        return dirCount + fileCount;
+    }
+
+    @Override
+    public SeafDirent get(int location) {
+        if (location < 0 || location >= size()) {
+            throw new IndexOutOfBoundsException("Invalid index " + location + ", size is " + size());
+        }
+        lastLocation = location;
+
+        boolean isDir = location < dirCount;
+        int index = isDir ? location : location - dirCount;
+        int page = index / PAGE_SIZE;
+        int key = page * 2 + (isDir ? 0 : 1);
+        SeafDirent placeholder = isDir ? dirPlaceholder : filePlaceholder;
+
+        List<SeafDirent> dirents = pages.get(key);
+        // read ahead in both directions, the list may be scrolled either way
+        load(page, isDir);
+        load(page + 1, isDir);
+        load(page - 1, isDir);
+        if (dirents == null) {
+            return placeholder;
+        }
+
+        int offset = index - page * PAGE_SIZE;
+        if (offset >= dirents.size()) {
+            // the directory has been updated since it was counted
+            Log.d(DEBUG_TAG, "dirent " + location + " of " + path + " is gone");
+            if (!changed) {
+                changed = true;
+                if (listener != null) {
+                    listener.onListingChanged();
+                }
+            }
+            return placeholder;
+        }
+        return dirents.get(offset);
+    }
+
+    /**
+     * Read a page in the background unless it is loaded or being loaded
+     */
+    private void load(int page, boolean isDir) {
+        int count = isDir ? dirCount : fileCount;
+        if (page < 0 || page * PAGE_SIZE >= count) {
+            return;
+        }
+
+        int key = page * 2 + (isDir ? 0 : 1);
+        if (pages.get(key) != null || loading.contains(key)) {
+            return;
+        }
+        loading.add(key);
+        ConcurrentAsyncTask.executeOnExecutor(executor, new LoadPageTask(page, isDir));
+    }
+
+    private class LoadPageTask extends AsyncTask<Void, Void, List<SeafDirent>> {
+        private final int page;
+        private final boolean isDir;
+
+        LoadPageTask(int page, boolean isDir) {
+            this.page = page;
+            this.isDir = isDir;
+        }
+
+        @Override
+        protected List<SeafDirent> doInBackground(Void... params) {
+            // skip the pages flung past, they are read again if they are shown
+            int first = page * PAGE_SIZE + (isDir ? 0 : dirCount);
+            if (lastLocation < first - PAGE_SIZE || lastLocation >= first + 2 * PAGE_SIZE) {
+                return null;
+            }
+            return dataManager.getCachedDirents(repoID, path,
+                    isDir ? SeafDirent.DirentType.DIR : SeafDirent.DirentType.FILE,
+                    orderBy, page * PAGE_SIZE, PAGE_SIZE);
+        }
+
+        @Override
+        protected void onPostExecute(List<SeafDirent> dirents) {
+            int key = page * 2 + (isDir ? 0 : 1);
+            loading.remove(key);
+            if (dirents == null) {
+                return;
+            }
+
+            pages.put(key, dirents);
+            if (listener != null) {
+                listener.onPagesLoaded();
+            }
+        }
+    }
+}
@@ -5,8 +5,6 @@ import java.text.Collator;
 import java.util.Comparator;
 import java.util.Locale;
 
-import com.seafile.seadroid2.SeadroidApplication;
-import com.seafile.seadroid2.util.PinyinUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -27,6 +25,8 @@ public class SeafDirent implements SeafItem, Serializable {
     public long size;    // size of file, 0 if type is dir
     public long mtime;   // last modified timestamp
 
+    transient NameSortKey sortKey;
+
 
     static SeafDirent fromJson(JSONObject obj) {
         SeafDirent dirent = new SeafDirent();
@@ -79,7 +79,7 @@ public class SeafDirent implements SeafItem, Serializable {
 
         @Override
         public int compare(SeafDirent itemA, SeafDirent itemB) {
-            return (int) (itemA.mtime - itemB.mtime);
+            return NameSortKey.compareMTime(itemA.mtime, itemB.mtime);
         }
     }
 
@@ -87,32 +87,14 @@ public class SeafDirent implements SeafItem, Serializable {
      * SeafDirent name comparator class
      */
     public static class DirentNameComparator implements Comparator<SeafDirent> {
+        private final Locale locale = Locale.getDefault();
+        private final Collator collator = Collator.getInstance(locale);
 
         @Override
         public int compare(SeafDirent itemA, SeafDirent itemB) {
-            // get the first character unicode from each file name
-            int unicodeA = itemA.name.codePointAt(0);
-            int unicodeB = itemB.name.codePointAt(0);
-
-            String strA, strB;
-
-            // both are Chinese words
-            if ((19968 < unicodeA && unicodeA < 40869) && (19968 < unicodeB && unicodeB < 40869)) {
-                strA = PinyinUtils.toPinyin(SeadroidApplication.getAppContext(), itemA.name).toLowerCase();
-                strB = PinyinUtils.toPinyin(SeadroidApplication.getAppContext(), itemB.name).toLowerCase();
-            } else if ((19968 < unicodeA && unicodeA < 40869) && !(19968 < unicodeB && unicodeB < 40869)) {
-                // itemA is Chinese and itemB is English
-                return 1;
-            } else if (!(19968 < unicodeA && unicodeA < 40869) && (19968 < unicodeB && unicodeB < 40869)) {
-                // itemA is English and itemB is Chinese
-                return -1;
-            } else {
-                // both are English words
-                strA = itemA.name.toLowerCase();
-                strB = itemB.name.toLowerCase();
-            }
-
-            return strA.compareTo(strB);
+            itemA.sortKey = NameSortKey.get(itemA.sortKey, itemA.name, collator, locale);
+            itemB.sortKey = NameSortKey.get(itemB.sortKey, itemB.name, collator, locale);
+            return itemA.sortKey.compareTo(itemB.sortKey);
         }
     }
 }
@@ -2,13 +2,13 @@ package com.seafile.seadroid2.data;
 
 import android.util.Log;
 import com.seafile.seadroid2.R;
-import com.seafile.seadroid2.SeadroidApplication;
-import com.seafile.seadroid2.util.PinyinUtils;
 import com.seafile.seadroid2.util.Utils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.text.Collator;
 import java.util.Comparator;
+import java.util.Locale;
 
 /**
  * SeafRepo: A Seafile library
@@ -29,6 +29,8 @@ public class SeafRepo implements SeafItem {
     public long    size;
     public String  root; // the id of root directory
 
+    NameSortKey sortKey;
+
     static SeafRepo fromJson(JSONObject obj) throws JSONException{
         SeafRepo repo = new SeafRepo();
         repo.id = obj.getString("id");
@@ -91,7 +93,7 @@ public class SeafRepo implements SeafItem {
 
         @Override
         public int compare(SeafRepo itemA, SeafRepo itemB) {
-            return (int) (itemA.mtime - itemB.mtime);
+            return NameSortKey.compareMTime(itemA.mtime, itemB.mtime);
         }
     }
 
@@ -99,32 +101,14 @@ public class SeafRepo implements SeafItem {
      * Repository name comparator class
      */
     public static class RepoNameComparator implements Comparator<SeafRepo> {
+        private final Locale locale = Locale.getDefault();
+        private final Collator collator = Collator.getInstance(locale);
 
         @Override
         public int compare(SeafRepo itemA, SeafRepo itemB) {
-            // get the first character unicode from each file name
-            int unicodeA = itemA.name.codePointAt(0);
-            int unicodeB = itemB.name.codePointAt(0);
-
-            String strA, strB;
-
-            // both are Chinese words
-            if ((19968 < unicodeA && unicodeA < 40869) && (19968 < unicodeB && unicodeB < 40869)) {
-                strA = PinyinUtils.toPinyin(SeadroidApplication.getAppContext(), itemA.name).toLowerCase();
-                strB = PinyinUtils.toPinyin(SeadroidApplication.getAppContext(), itemB.name).toLowerCase();
-            } else if ((19968 < unicodeA && unicodeA < 40869) && !(19968 < unicodeB && unicodeB < 40869)) {
-                // itemA is Chinese and itemB is English
-                return 1;
-            } else if (!(19968 < unicodeA && unicodeA < 40869) && (19968 < unicodeB && unicodeB < 40869)) {
-                // itemA is English and itemB is Chinese
-                return -1;
-            } else {
-                // both are English words
-                strA = itemA.name.toLowerCase();
-                strB = itemB.name.toLowerCase();
-            }
-
-            return strA.compareTo(strB);
+            itemA.sortKey = NameSortKey.get(itemA.sortKey, itemA.name, collator, locale);
+            itemB.sortKey = NameSortKey.get(itemB.sortKey, itemB.name, collator, locale);
+            return itemA.sortKey.compareTo(itemB.sortKey);
         }
     }
 }
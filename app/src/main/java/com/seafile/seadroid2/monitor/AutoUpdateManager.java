@@ -1,35 +1,73 @@
 package com.seafile.seadroid2.monitor;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import android.os.Handler;
 import android.util.Log;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.seafile.seadroid2.util.ConcurrentAsyncTask;
 import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.data.SeafCachedFile;
+import com.seafile.seadroid2.transfer.TaskPriority;
 import com.seafile.seadroid2.transfer.TransferService;
 import com.seafile.seadroid2.util.Utils;
 
 /**
  * Update modified files, retry until success
+ * <p/>
+ * A modified file is updated once it has not been written for {@link #QUIET_PERIOD_MILLI},
+ * so a burst of saves results in a single update. A file written again while its update is
+ * queued is updated once more after that update is done.
+ * <p/>
+ * The scheduler thread sleeps until the next file is due, or until something changes:
+ * a file is modified, an update ends, or the network comes back, see {@link #onNetworkChanged()}.
  */
 public class AutoUpdateManager implements Runnable, CachedFileChangedListener {
     private static final String DEBUG_TAG = "AutoUpdateManager";
-    private static final int CHECK_INTERVAL_MILLI = 3000;
 
-    private TransferService txService;
+    /**
+     * a file is updated once it has not been written for this long
+     */
+    private static final long QUIET_PERIOD_MILLI = 3000;
+
+    /**
+     * a failed update is tried again after this long
+     */
+    private static final long RETRY_INTERVAL_MILLI = 30000;
+
+    private volatile TransferService txService;
     private Thread thread;
     private volatile boolean running;
     private final Handler mHandler = new Handler();
 
-    private Set<AutoUpdateInfo> infos = Sets.newHashSet();
+    /**
+     * Guards the sets below. The scheduler thread waits on it.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * files waiting to be updated, with the time from which their update may be scheduled
+     */
+    private final Map<AutoUpdateInfo, Long> pending = Maps.newHashMap();
+
+    /**
+     * files handed over to the transfer service, waiting for the result of the update
+     */
+    private final Set<AutoUpdateInfo> queued = Sets.newHashSet();
+
+    /**
+     * queued files which have been modified again since
+     */
+    private final Set<AutoUpdateInfo> changedWhileQueued = Sets.newHashSet();
+
     private MonitorDBHelper db = MonitorDBHelper.getMonitorDBHelper();
 
     public void onTransferServiceConnected(TransferService txService) {
@@ -41,6 +79,18 @@ public class AutoUpdateManager implements Runnable, CachedFileChangedListener {
 
     public void stop() {
         running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Called when the network connectivity changed. Pending updates are scheduled if the network is on.
+     */
+    public void onNetworkChanged() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
     }
 
     /**
@@ -55,22 +105,22 @@ public class AutoUpdateManager implements Runnable, CachedFileChangedListener {
         AutoUpdateInfo info = new AutoUpdateInfo(account, cachedFile.repoID, cachedFile.repoName,
                 Utils.getParentPath(cachedFile.path), localFile.getPath());
 
-        synchronized (infos) {
-            if (infos.contains(info)) {
+        boolean isNew;
+        synchronized (lock) {
+            if (queued.contains(info)) {
+                // update it again once the queued update is done
+                changedWhileQueued.add(info);
                 return;
             }
-            infos.add(info);
-        }
 
-        db.saveAutoUpdateInfo(info);
-
-        if (!Utils.isNetworkOn() || txService == null) {
-            return;
+            // wait until the file is not written anymore
+            isNew = pending.put(info, Utils.now() + QUIET_PERIOD_MILLI) == null;
+            lock.notifyAll();
         }
 
-        ArrayList<AutoUpdateInfo> infosList = new ArrayList<AutoUpdateInfo>(1);
-        infosList.add(info);
-        addAllUploadTasks(infosList);
+        if (isNew) {
+            db.saveAutoUpdateInfo(info);
+        }
     }
 
     private void addAllUploadTasks(final List<AutoUpdateInfo> infos) {
@@ -79,7 +129,7 @@ public class AutoUpdateManager implements Runnable, CachedFileChangedListener {
             public void run() {
                 for (AutoUpdateInfo info : infos) {
                     txService.addUploadTask(info.account, info.repoID, info.repoName,
-                            info.parentDir, info.localPath, true, true);
+                            info.parentDir, info.localPath, true, true, TaskPriority.AUTO_UPDATE);
                 }
             }
         });
@@ -90,85 +140,144 @@ public class AutoUpdateManager implements Runnable, CachedFileChangedListener {
      */
     public void onFileUpdateSuccess(Account account, String repoID, String repoName,
             String parentDir, String localPath) {
-        // This file has already been updated on server, so we abort auto update task
-        if (removeAutoUpdateInfo(account, repoID, repoName, parentDir, localPath)) {
-            Log.d(DEBUG_TAG, "auto updated " + localPath);
+        final AutoUpdateInfo info = new AutoUpdateInfo(account, repoID, repoName, parentDir, localPath);
+
+        synchronized (lock) {
+            if (!queued.remove(info)) {
+                return;
+            }
+
+            if (changedWhileQueued.remove(info)) {
+                // the update may have read the file before its last modification
+                pending.put(info, Utils.now());
+                lock.notifyAll();
+                return;
+            }
         }
+
+        // This file has already been updated on server, so we abort auto update task
+        removeAutoUpdateInfo(info);
+        Log.d(DEBUG_TAG, "auto updated " + localPath);
     }
 
     public void onFileUpdateFailure(Account account, String repoID, String repoName,
             String parentDir, String localPath, SeafException e) {
-        if (e.getCode() / 100 != 4) {
+        AutoUpdateInfo info = new AutoUpdateInfo(account, repoID, repoName, parentDir, localPath);
+
+        if (e == null || e.getCode() / 100 != 4) {
+            retryLater(info);
             return;
         }
 
         // This file has already been removed on server, so we abort the auto update task
-        if (removeAutoUpdateInfo(account, repoID, repoName, parentDir, localPath)) {
+        boolean exist;
+        synchronized (lock) {
+            exist = queued.remove(info) | (pending.remove(info) != null);
+            changedWhileQueued.remove(info);
+        }
+
+        if (exist) {
+            removeAutoUpdateInfo(info);
             Log.d(DEBUG_TAG, String.format("failed to auto update %s, error %s", localPath, e));
         }
     }
 
-    private boolean removeAutoUpdateInfo(Account account, String repoID, String repoName, String parentDir, String localPath) {
-        final AutoUpdateInfo info = new AutoUpdateInfo(account, repoID, repoName, parentDir, localPath);
-        boolean exist = false;
+    /**
+     * This callback in called in the main thread when an update has been cancelled
+     */
+    public void onFileUpdateCancelled(Account account, String repoID, String repoName,
+            String parentDir, String localPath) {
+        retryLater(new AutoUpdateInfo(account, repoID, repoName, parentDir, localPath));
+    }
 
-        synchronized (infos) {
-            exist = infos.remove(info);
+    private void retryLater(AutoUpdateInfo info) {
+        synchronized (lock) {
+            if (!queued.remove(info)) {
+                return;
+            }
+            changedWhileQueued.remove(info);
+            pending.put(info, Utils.now() + RETRY_INTERVAL_MILLI);
+            lock.notifyAll();
         }
+    }
 
-        if (exist) {
-            ConcurrentAsyncTask.execute(new Runnable() {
-                @Override
-                public void run() {
-                    db.removeAutoUpdateInfo(info);
-                }
-            });
-        }
-        return exist;
+    private void removeAutoUpdateInfo(final AutoUpdateInfo info) {
+        ConcurrentAsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                db.removeAutoUpdateInfo(info);
+            }
+        });
     }
 
     /**
-     * Periodically checks the upload tasks and schedule them to run
-     **/
-    private void scheduleUpdateTasks() {
-        int size = infos.size();
-        if (!Utils.isNetworkOn()) {
-            Log.d(DEBUG_TAG, "network is not available, " + size + " in queue");
-            return;
-        }
+     * Wait until some files are due to be updated, and move them to the queued files
+     *
+     * @return the files to update, empty if the manager has been stopped
+     */
+    private List<AutoUpdateInfo> waitForDueTasks() throws InterruptedException {
+        synchronized (lock) {
+            while (running) {
+                long next = Long.MAX_VALUE;
+                List<AutoUpdateInfo> due = Lists.newArrayList();
 
-        if (txService == null) {
-            return;
-        }
+                if (pending.isEmpty()) {
+                    Log.v(DEBUG_TAG, "no auto update task, sleeping");
+                } else if (!Utils.isNetworkOn()) {
+                    Log.d(DEBUG_TAG, "network is not available, " + pending.size() + " in queue");
+                } else if (txService != null) {
+                    long now = Utils.now();
+                    for (Map.Entry<AutoUpdateInfo, Long> entry : pending.entrySet()) {
+                        if (entry.getValue() <= now) {
+                            due.add(entry.getKey());
+                        } else {
+                            next = Math.min(next, entry.getValue());
+                        }
+                    }
+                }
 
-        Log.v(DEBUG_TAG, String.format("check auto upload tasks, %d in queue", size));
+                if (!due.isEmpty()) {
+                    for (AutoUpdateInfo info : due) {
+                        pending.remove(info);
+                        queued.add(info);
+                    }
+                    Log.v(DEBUG_TAG, String.format("schedule %d auto update tasks, %d in queue", due.size(), pending.size()));
+                    return due;
+                }
 
-        List<AutoUpdateInfo> infosList;
-        synchronized (infos) {
-            if (infos.isEmpty()) {
-                return;
+                if (next == Long.MAX_VALUE) {
+                    // until a file is modified or the network comes back
+                    lock.wait();
+                } else {
+                    lock.wait(Math.max(1, next - Utils.now()));
+                }
             }
-            infosList = ImmutableList.copyOf(infos);
         }
 
-        addAllUploadTasks(infosList);
+        return Collections.emptyList();
     }
 
     public void run() {
-        synchronized (infos) {
-            infos.addAll(db.getAutoUploadInfos());
+        List<AutoUpdateInfo> saved = db.getAutoUploadInfos();
+        synchronized (lock) {
+            for (AutoUpdateInfo info : saved) {
+                if (!pending.containsKey(info) && !queued.contains(info)) {
+                    pending.put(info, Utils.now());
+                }
+            }
         }
 
         while (running) {
-            scheduleUpdateTasks();
-            if (!running) {
-                break;
-            }
+            List<AutoUpdateInfo> due;
             try {
-                Thread.sleep(CHECK_INTERVAL_MILLI);
+                due = waitForDueTasks();
             } catch (final InterruptedException ignored) {
                 break;
             }
+
+            if (!due.isEmpty()) {
+                addAllUploadTasks(due);
+            }
         }
     }
 }
@@ -7,6 +7,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.net.ConnectivityManager;
 import android.os.Binder;
 import android.os.IBinder;
 import android.support.v4.content.LocalBroadcastManager;
@@ -66,6 +67,8 @@ public class FileMonitorService extends Service {
 
         LocalBroadcastManager.getInstance(this).registerReceiver(transferReceiver,
                 new IntentFilter(TransferManager.BROADCAST_ACTION));
+
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
     @Override
@@ -88,6 +91,7 @@ public class FileMonitorService extends Service {
         }
 
         LocalBroadcastManager.getInstance(this).unregisterReceiver(transferReceiver);
+        unregisterReceiver(connectivityReceiver);
     }
 
     public void removeAccount(Account account) {
@@ -141,6 +145,14 @@ public class FileMonitorService extends Service {
                     updateMgr.onFileUpdateSuccess(info.account, info.repoID, info.repoName,
                             info.parentDir, info.localFilePath);
                 }
+            } else if (type.equals(UploadTaskManager.BROADCAST_FILE_UPLOAD_CANCELLED)) {
+                int taskID = intent.getIntExtra("taskID", 0);
+                UploadTaskInfo info = mTransferService.getUploadTaskInfo(taskID);
+
+                if (info != null && info.isUpdate) {
+                    updateMgr.onFileUpdateCancelled(info.account, info.repoID, info.repoName,
+                            info.parentDir, info.localFilePath);
+                }
             } else if (type.equals(UploadTaskManager.BROADCAST_FILE_UPLOAD_FAILED)) {
                 int taskID = intent.getIntExtra("taskID", 0);
                 UploadTaskInfo info = mTransferService.getUploadTaskInfo(taskID);
@@ -154,4 +166,16 @@ public class FileMonitorService extends Service {
         }
 
     };
+
+    /**
+     * Wakes up the auto update manager when the network comes back
+     */
+    private BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateMgr.onNetworkChanged();
+        }
+
+    };
 }
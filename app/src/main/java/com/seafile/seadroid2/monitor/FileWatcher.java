@@ -0,0 +1,26 @@
+package com.seafile.seadroid2.monitor;
+
+import java.io.File;
+
+/**
+ * Backend of a {@link SeafileObserver}, which detects the changes of the watched files and
+ * reports them with {@link SeafileObserver#onFileChange(File)} and {@link SeafileObserver#onFileDelete(File)}.
+ */
+interface FileWatcher {
+
+    /**
+     * Start reporting the changes of a file
+     */
+    void watch(File file);
+
+    /**
+     * Stop reporting the changes of a file
+     */
+    void unwatch(File file);
+
+    void start();
+
+    void stop();
+
+    WatcherStats getStats();
+}
@@ -0,0 +1,183 @@
+package com.seafile.seadroid2.monitor;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets the changes of the watched files from inotify, through {@link FileObserver}.
+ * <p/>
+ * Only the directories which contain a watched file are watched, so nothing is done
+ * until a file is written, however many files are cached.
+ */
+class InotifyFileWatcher implements FileWatcher {
+    private static final String DEBUG_TAG = "InotifyFileWatcher";
+
+    public static final String BACKEND = "inotify";
+
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.DELETE | FileObserver.MOVED_FROM
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    /**
+     * how long {@link #isSupported(File)} waits for the event of its probe file
+     */
+    private static final long PROBE_TIMEOUT = 1000;
+
+    private final SeafileObserver observer;
+    private final WatcherStats stats = new WatcherStats(BACKEND);
+
+    /**
+     * the observers of the watched directories. They must be referenced, an observer
+     * which is garbage collected stops watching.
+     */
+    private final Map<String, DirObserver> dirObservers = Maps.newHashMap();
+    private boolean started;
+
+    public InotifyFileWatcher(SeafileObserver observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * Check that inotify works in a directory. Some file systems, like the FUSE mounted
+     * external storage of some devices, do not report events.
+     */
+    public static boolean isSupported(File dir) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        FileObserver probe = new FileObserver(dir.getAbsolutePath(), FileObserver.CREATE) {
+            @Override
+            public void onEvent(int event, String path) {
+                latch.countDown();
+            }
+        };
+
+        File probeFile = new File(dir, ".inotify-probe");
+        probe.startWatching();
+        try {
+            probeFile.delete();
+            if (!probeFile.createNewFile()) {
+                return false;
+            }
+            return latch.await(PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "failed to create the probe file in " + dir, e);
+            return false;
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            probe.stopWatching();
+            probeFile.delete();
+        }
+    }
+
+    @Override
+    public synchronized void watch(File file) {
+        String dir = file.getParent();
+        if (dir == null) {
+            return;
+        }
+
+        DirObserver dirObserver = dirObservers.get(dir);
+        if (dirObserver == null) {
+            dirObserver = new DirObserver(dir);
+            dirObservers.put(dir, dirObserver);
+            if (started) {
+                dirObserver.startWatching();
+            }
+        }
+        dirObserver.names.add(file.getName());
+    }
+
+    @Override
+    public synchronized void unwatch(File file) {
+        String dir = file.getParent();
+        DirObserver dirObserver = dirObservers.get(dir);
+        if (dirObserver == null) {
+            return;
+        }
+
+        dirObserver.names.remove(file.getName());
+        if (dirObserver.names.isEmpty()) {
+            dirObserver.stopWatching();
+            dirObservers.remove(dir);
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        for (DirObserver dirObserver : dirObservers.values()) {
+            dirObserver.startWatching();
+        }
+        started = true;
+        Log.d(DEBUG_TAG, "watching " + dirObservers.size() + " directories");
+    }
+
+    @Override
+    public synchronized void stop() {
+        for (DirObserver dirObserver : dirObservers.values()) {
+            dirObserver.stopWatching();
+        }
+        started = false;
+    }
+
+    @Override
+    public WatcherStats getStats() {
+        return stats;
+    }
+
+    private void onEvent(DirObserver dirObserver, int event, String name) {
+        stats.onWakeup();
+
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+            // the directory is gone with all its files
+            for (String watched : dirObserver.getNames()) {
+                observer.onFileDelete(new File(dirObserver.dir, watched));
+            }
+            return;
+        }
+
+        if (name == null || !dirObserver.names.contains(name)) {
+            return;
+        }
+
+        File file = new File(dirObserver.dir, name);
+        if ((event & (FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO)) != 0) {
+            stats.onChange(System.currentTimeMillis() - file.lastModified());
+            observer.onFileChange(file);
+        } else if (!file.exists()) {
+            // deleted or moved away, and not replaced in the meantime
+            observer.onFileDelete(file);
+        }
+    }
+
+    private class DirObserver extends FileObserver {
+        final String dir;
+        final Set<String> names = Sets.newConcurrentHashSet();
+
+        DirObserver(String dir) {
+            super(dir, EVENTS);
+            this.dir = dir;
+        }
+
+        Set<String> getNames() {
+            return Sets.newHashSet(names);
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            InotifyFileWatcher.this.onEvent(this, event & FileObserver.ALL_EVENTS, path);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.seafile.seadroid2.monitor;
+
+import android.util.Log;
+
+import org.apache.commons.io.monitor.FileAlterationListener;
+import org.apache.commons.io.monitor.FileAlterationMonitor;
+import org.apache.commons.io.monitor.FileAlterationObserver;
+
+import java.io.File;
+import java.io.FileFilter;
+
+/**
+ * Finds changed files by scanning the account directory periodically.
+ * Only used where inotify is not available, see {@link InotifyFileWatcher#isSupported(File)}.
+ */
+class PollingFileWatcher implements FileWatcher, FileAlterationListener {
+    private static final String DEBUG_TAG = "PollingFileWatcher";
+
+    public static final String BACKEND = "polling";
+
+    private static final long POLL_INTERVAL = 10000;
+
+    private final SeafileObserver observer;
+    private final FileAlterationObserver alterationObserver;
+    private final FileAlterationMonitor alterationMonitor = new FileAlterationMonitor(POLL_INTERVAL);
+    private final WatcherStats stats = new WatcherStats(BACKEND);
+
+    public PollingFileWatcher(final SeafileObserver observer, String dir) {
+        this.observer = observer;
+        // only compare the watched files between scans
+        alterationObserver = new FileAlterationObserver(new File(dir), new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return observer.isWatched(file) || file.isDirectory();
+            }
+        });
+        alterationObserver.addListener(this);
+        alterationMonitor.addObserver(alterationObserver);
+    }
+
+    @Override
+    public void watch(File file) {
+        // picked up by the next scan
+    }
+
+    @Override
+    public void unwatch(File file) {
+    }
+
+    @Override
+    public void start() {
+        try {
+            alterationMonitor.start();
+        } catch (Exception e) {
+            Log.w(DEBUG_TAG, "failed to start polling", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            alterationMonitor.stop();
+        } catch (Exception e) {
+            Log.w(DEBUG_TAG, "failed to stop polling", e);
+        }
+    }
+
+    @Override
+    public WatcherStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void onStart(FileAlterationObserver fao) {
+        stats.onWakeup();
+    }
+
+    @Override
+    public void onDirectoryCreate(File directory) {
+    }
+
+    @Override
+    public void onDirectoryChange(File directory) {
+    }
+
+    @Override
+    public void onDirectoryDelete(File directory) {
+    }
+
+    @Override
+    public void onFileCreate(File file) {
+    }
+
+    @Override
+    public void onFileChange(File file) {
+        stats.onChange(System.currentTimeMillis() - file.lastModified());
+        observer.onFileChange(file);
+    }
+
+    @Override
+    public void onFileDelete(File file) {
+        observer.onFileDelete(file);
+    }
+
+    @Override
+    public void onStop(FileAlterationObserver fao) {
+    }
+}
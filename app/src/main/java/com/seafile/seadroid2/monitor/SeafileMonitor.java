@@ -3,8 +3,6 @@ package com.seafile.seadroid2.monitor;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.io.monitor.FileAlterationMonitor;
-
 import android.util.Log;
 
 import com.google.common.collect.Maps;
@@ -16,7 +14,6 @@ public class SeafileMonitor {
     private static final String DEBUG_TAG = "SeafileMonitor";
 
     private Map<Account, SeafileObserver> observers = Maps.newHashMap();
-    private FileAlterationMonitor alterationMonitor = new FileAlterationMonitor();
     private CachedFileChangedListener listener;
     private boolean started;
 
@@ -46,11 +43,13 @@ public class SeafileMonitor {
     }
 
     private void addObserver(SeafileObserver fileObserver) {
-        alterationMonitor.addObserver(fileObserver.getAlterationObserver());
+        if (started) {
+            fileObserver.startWatching();
+        }
     }
 
     private void removeObserver(SeafileObserver fileObserver) {
-        alterationMonitor.removeObserver(fileObserver.getAlterationObserver());
+        fileObserver.stopWatching();
     }
 
     public synchronized void onFileDownloaded(Account account, String repoID, String repoName,
@@ -63,13 +62,42 @@ public class SeafileMonitor {
 
     private void start() throws Exception {
         if (!started) {
-            alterationMonitor.start();
+            for (SeafileObserver fileObserver : observers.values()) {
+                fileObserver.startWatching();
+            }
             started = true;
         }
     }
 
-    public void stop() throws Exception {
-        alterationMonitor.stop();
+    public synchronized void stop() throws Exception {
+        for (SeafileObserver fileObserver : observers.values()) {
+            fileObserver.stopWatching();
+        }
+        started = false;
+        logStats();
+    }
+
+    /**
+     * Get the counters of the watchers of all accounts, by backend
+     */
+    public synchronized Map<String, WatcherStats> getStats() {
+        Map<String, WatcherStats> stats = Maps.newHashMap();
+        for (SeafileObserver fileObserver : observers.values()) {
+            WatcherStats observerStats = fileObserver.getStats();
+            WatcherStats backendStats = stats.get(observerStats.getBackend());
+            if (backendStats == null) {
+                backendStats = new WatcherStats(observerStats.getBackend());
+                stats.put(observerStats.getBackend(), backendStats);
+            }
+            backendStats.add(observerStats);
+        }
+        return stats;
+    }
+
+    public void logStats() {
+        for (WatcherStats stats : getStats().values()) {
+            Log.d(DEBUG_TAG, stats.toString());
+        }
     }
 
     /**
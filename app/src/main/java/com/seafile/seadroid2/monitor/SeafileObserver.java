@@ -4,25 +4,29 @@ import java.io.File;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.io.monitor.FileAlterationListener;
-import org.apache.commons.io.monitor.FileAlterationObserver;
-
 import android.util.Log;
 
 import com.google.common.collect.Maps;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.data.DataManager;
+import com.seafile.seadroid2.data.DownloadedFiles;
 import com.seafile.seadroid2.data.SeafCachedFile;
 import com.seafile.seadroid2.util.Utils;
 
-public class SeafileObserver implements FileAlterationListener {
+/**
+ * Watches the cached files of an account, and reports their modifications.
+ * <p/>
+ * The changes are detected by inotify where it works, see {@link InotifyFileWatcher},
+ * or else by scanning the account directory, see {@link PollingFileWatcher}.
+ */
+public class SeafileObserver {
     private static final String DEBUG_TAG = "SeafileObserver";
 
     private Account account;
     private DataManager dataManager;
-    private FileAlterationObserver alterationObserver;
+    private FileWatcher watcher;
 
-    private final Map<String, SeafCachedFile> watchedFiles = Maps.newHashMap();
+    private final Map<String, SeafCachedFile> watchedFiles = Maps.newConcurrentMap();
     private final CachedFileChangedListener listener;
     private final RecentDownloadedFilesWorkAround recentDownloadedFiles =
             new RecentDownloadedFilesWorkAround();
@@ -31,8 +35,13 @@ public class SeafileObserver implements FileAlterationListener {
         this.account = account;
         this.dataManager = new DataManager(account);
         this.listener = listener;
-        alterationObserver = new FileAlterationObserver(getAccountDir());
-        alterationObserver.addListener(this);
+        File accountDir = new File(getAccountDir());
+        if (InotifyFileWatcher.isSupported(accountDir)) {
+            watcher = new InotifyFileWatcher(this);
+        } else {
+            Log.i(DEBUG_TAG, "inotify does not work in " + accountDir + ", falling back to polling");
+            watcher = new PollingFileWatcher(this, accountDir.getAbsolutePath());
+        }
         watchAllCachedFiles();
     }
 
@@ -40,16 +49,13 @@ public class SeafileObserver implements FileAlterationListener {
         return dataManager.getAccountDir();
     }
 
-    public FileAlterationObserver getAlterationObserver() {
-        return alterationObserver;
-    }
-
     private void watchAllCachedFiles() {
         List<SeafCachedFile> cachedfiles = dataManager.getCachedFiles();
         for (SeafCachedFile cached : cachedfiles) {
             File file = dataManager.getLocalRepoFile(cached.repoName, cached.repoID, cached.path);
             if (file.exists()) {
                 watchedFiles.put(file.getPath(), cached);
+                watcher.watch(file);
             }
         }
         Log.d(DEBUG_TAG, "watching files, # total watched " + watchedFiles.size());
@@ -64,6 +70,7 @@ public class SeafileObserver implements FileAlterationListener {
         cacheInfo.repoName = repoName;
         cacheInfo.path = pathInRepo;
         watchedFiles.put(localpath, cacheInfo);
+        watcher.watch(new File(localpath));
 
         Log.d(DEBUG_TAG, "start watch downloaded file " + pathInRepo + ", # total watched " + watchedFiles.size());
     }
@@ -77,41 +84,32 @@ public class SeafileObserver implements FileAlterationListener {
     }
 
     public void startWatching() {
-        try {
-            alterationObserver.initialize();
-        } catch (Exception e) {
-
-        }
-        alterationObserver.checkAndNotify();
+        watcher.start();
     }
 
     public void stopWatching() {
-        try {
-            alterationObserver.destroy();
-        } catch (Exception e) {
-
-        }
-    }
-
-    @Override
-    public void onDirectoryChange(File directory) {
-        Log.v(DEBUG_TAG, directory.getPath() + " was modified!");
+        watcher.stop();
     }
 
-    @Override
-    public void onDirectoryCreate(File directory) {
-        Log.v(DEBUG_TAG, directory.getPath() + " was created!");
+    public WatcherStats getStats() {
+        return watcher.getStats();
     }
 
-    @Override
-    public void onDirectoryDelete(File directory) {
-        Log.v(DEBUG_TAG, directory.getPath() + " was deleted!");
+    boolean isWatched(File file) {
+        return watchedFiles.containsKey(file.getPath());
     }
 
-    @Override
-    public void onFileChange(File file) {
+    /**
+     * Called by the watcher when a file was written
+     */
+    void onFileChange(File file) {
         String path = file.getPath();
 
+        if (DownloadedFiles.isReplacedByDownload(path)) {
+            Log.d(DEBUG_TAG, "ignore change signal for file being downloaded " + path);
+            return;
+        }
+
         if (recentDownloadedFiles.isRecentDownloadedFiles(path)) {
             Log.d(DEBUG_TAG, "ignore change signal for recent downloaded file " + path);
             return;
@@ -127,30 +125,18 @@ public class SeafileObserver implements FileAlterationListener {
         }
     }
 
-    @Override
-    public void onFileCreate(File file) {
-        Log.v(DEBUG_TAG, file.getPath() + " was created!");
-    }
-
-    @Override
-    public void onFileDelete(File file) {
+    /**
+     * Called by the watcher when a file was deleted
+     */
+    void onFileDelete(File file) {
         Log.v(DEBUG_TAG, file.getPath() + " was deleted!");
         String path = file.getPath();
         watchedFiles.remove(path);
+        watcher.unwatch(file);
         recentDownloadedFiles.removeRecentDownloadedFile(path);
         Log.d(DEBUG_TAG, "now watching files, # total watched " + watchedFiles.size());
     }
 
-    @Override
-    public void onStart(FileAlterationObserver fao) {
-        Log.v(DEBUG_TAG, fao.toString() + " start checking event!");
-    }
-
-    @Override
-    public void onStop(FileAlterationObserver fao) {
-        Log.v(DEBUG_TAG, fao.toString() + " finished checking event!");
-    }
-
     /**
      * When user downloads a file, the outdated file is replaced, so the onFileChange signal would
      * be triggered, which we should not treat it as a modification. This class provides a workaroud
@@ -0,0 +1,74 @@
+package com.seafile.seadroid2.monitor;
+
+/**
+ * Counters of a {@link FileWatcher} backend.
+ * <p/>
+ * A wakeup is a poll of the file system, or an event delivered by inotify, whether or not it
+ * is about a watched file. The latency of a change is the time from the modification of
+ * the file to its report.
+ */
+public class WatcherStats {
+    private final String backend;
+
+    private long wakeups;
+    private long changes;
+    private long totalLatency;
+    private long maxLatency;
+
+    public WatcherStats(String backend) {
+        this.backend = backend;
+    }
+
+    public String getBackend() {
+        return backend;
+    }
+
+    synchronized void onWakeup() {
+        wakeups++;
+    }
+
+    synchronized void onChange(long latency) {
+        latency = Math.max(0, latency);
+        changes++;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+    }
+
+    /**
+     * Add the counters of another watcher of the same backend
+     */
+    synchronized void add(WatcherStats other) {
+        synchronized (other) {
+            wakeups += other.wakeups;
+            changes += other.changes;
+            totalLatency += other.totalLatency;
+            maxLatency = Math.max(maxLatency, other.maxLatency);
+        }
+    }
+
+    public synchronized long getWakeups() {
+        return wakeups;
+    }
+
+    public synchronized long getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return the average latency of the reported changes in milliseconds, 0 if there was none
+     */
+    public synchronized long getAverageLatency() {
+        return changes == 0 ? 0 : totalLatency / changes;
+    }
+
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return backend + ": wakeups " + wakeups + " changes " + changes
+                + " average latency " + getAverageLatency() + " ms"
+                + " max latency " + maxLatency + " ms";
+    }
+}
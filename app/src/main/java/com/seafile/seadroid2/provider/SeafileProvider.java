@@ -26,7 +26,9 @@ import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Point;
+import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -39,13 +41,16 @@ import android.provider.DocumentsContract.Root;
 import android.provider.DocumentsProvider;
 import android.util.Log;
 
-import com.nostra13.universalimageloader.core.DisplayImageOptions;
+import com.google.common.collect.ImmutableSet;
+import com.nostra13.universalimageloader.cache.disc.DiskCache;
 import com.nostra13.universalimageloader.core.ImageLoader;
+import com.nostra13.universalimageloader.core.download.ImageDownloader;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.account.AccountManager;
+import com.seafile.seadroid2.avatar.AuthImageDownloader;
 import com.seafile.seadroid2.data.DataManager;
 import com.seafile.seadroid2.data.ProgressMonitor;
 import com.seafile.seadroid2.data.SeafDirent;
@@ -53,14 +58,20 @@ import com.seafile.seadroid2.data.SeafRepo;
 import com.seafile.seadroid2.data.SeafStarredFile;
 import com.seafile.seadroid2.util.Utils;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
@@ -69,6 +80,8 @@ import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -112,6 +125,13 @@ public class SeafileProvider extends DocumentsProvider {
 
     private Set<Account> reachableAccounts = new ConcurrentSkipListSet<Account>();
 
+    /**
+     * suffixes of the files which can not be streamed, see {@link #needsRandomAccess(String)}
+     */
+    private static final Set<String> RANDOM_ACCESS_SUFFIXES = ImmutableSet.of(
+            "zip", "jar", "apk", "epub", "7z", "rar", "pdf",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp");
+
     private static final int KEEP_ALIVE_TIME = 1;
     private static final TimeUnit KEEP_ALIVE_TIME_UNIT = TimeUnit.SECONDS;
     private static int NUMBER_OF_CORES =
@@ -119,6 +139,27 @@ public class SeafileProvider extends DocumentsProvider {
     private final BlockingQueue<Runnable> mDecodeWorkQueue = new LinkedBlockingQueue<Runnable>();
     private ThreadPoolExecutor threadPoolExecutor;
 
+    /**
+     * Streamed downloads last as long as the client reads, they get their own threads so they
+     * do not hold up the other requests. More streams wait for a thread.
+     */
+    private static final int MAX_STREAMS = 4;
+    private ThreadPoolExecutor streamingExecutor;
+
+    /**
+     * Thumbnails wait in a bounded queue. When it is full, the oldest request is cancelled:
+     * the client has most likely scrolled past it.
+     */
+    private static final int MAX_QUEUED_THUMBNAILS = 16;
+    private ThreadPoolExecutor thumbnailExecutor;
+    private ImageDownloader thumbnailDownloader;
+
+    /**
+     * a local image is returned as is, unless it is more than this many times the requested size
+     */
+    private static final int MAX_THUMBNAIL_OVERSIZE = 2;
+    private static final int THUMBNAIL_JPEG_QUALITY = 85;
+
     private android.accounts.AccountManager androidAccountManager;
     private AccountManager accountManager;
 
@@ -148,6 +189,35 @@ public class SeafileProvider extends DocumentsProvider {
                 KEEP_ALIVE_TIME_UNIT,
                 mDecodeWorkQueue);
 
+        streamingExecutor = new ThreadPoolExecutor(
+                MAX_STREAMS,
+                MAX_STREAMS,
+                KEEP_ALIVE_TIME,
+                KEEP_ALIVE_TIME_UNIT,
+                new LinkedBlockingQueue<Runnable>());
+
+        thumbnailExecutor = new ThreadPoolExecutor(
+                NUMBER_OF_CORES,
+                NUMBER_OF_CORES,
+                KEEP_ALIVE_TIME,
+                KEEP_ALIVE_TIME_UNIT,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_THUMBNAILS),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException();
+                        }
+                        // cancel the oldest request, its client gets a FileNotFoundException
+                        Runnable oldest = executor.getQueue().poll();
+                        if (oldest instanceof Future) {
+                            ((Future) oldest).cancel(false);
+                        }
+                        executor.execute(r);
+                    }
+                });
+        thumbnailDownloader = new AuthImageDownloader(getContext(), 10000, 10000);
+
         return true;
     }
 
@@ -351,6 +421,13 @@ public class SeafileProvider extends DocumentsProvider {
         if (!Utils.isNetworkOn())
             throw new FileNotFoundException();
 
+        if (mode.equals("r")) {
+            ParcelFileDescriptor pfd = openDocumentStreaming(documentId, signal);
+            if (pfd != null) {
+                return pfd;
+            }
+        }
+
         // open the file. this might involve talking to the seafile server. this will hang until
         // it is done.
         final Future<ParcelFileDescriptor> future = threadPoolExecutor.submit(new Callable<ParcelFileDescriptor>() {
@@ -399,6 +476,80 @@ public class SeafileProvider extends DocumentsProvider {
         }
     }
 
+    /**
+     * Open a file which is not cached yet for reading.
+     *
+     * The file is downloaded into the cache in the background, and its content is written to a pipe
+     * as it arrives, so the client can start reading right away. The download stops if the client
+     * closes the pipe early, what was received is kept and the next download of the file resumes it.
+     *
+     * @return the read end of the pipe, or null if the file is cached and can be opened directly
+     * @throws FileNotFoundException
+     */
+    private ParcelFileDescriptor openDocumentStreaming(String documentId, final CancellationSignal signal)
+            throws FileNotFoundException {
+        final String path = docIdParser.getPathFromId(documentId);
+        final DataManager dm = createDataManager(documentId);
+        String repoId = DocumentIdParser.getRepoIdFromId(documentId);
+
+        // we can assume that the repo is cached because the client has already seen it
+        final SeafRepo repo = dm.getCachedRepoByID(repoId);
+        if (repo == null)
+            throw new FileNotFoundException();
+
+        if (dm.getLocalRepoFile(repo.getName(), repoId, path).exists()) {
+            // most likely up to date. Unlike a pipe, the file can be seeked
+            return null;
+        }
+
+        if (needsRandomAccess(path)) {
+            // readers of these formats seek to the end first, they need a regular file
+            return null;
+        }
+
+        final ParcelFileDescriptor[] pair;
+        try {
+            pair = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException();
+        }
+
+        streamingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PipeFeeder out = new PipeFeeder(pair[1]);
+                try {
+                    File f = getFile(signal, dm, repo, path, out);
+                    if (out.getCount() == 0 && f.length() > 0) {
+                        // the server says the cached version is up to date after all
+                        FileUtils.copyFile(f, out);
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    if (out.isBroken()) {
+                        Log.d(DEBUG_TAG, "reader closed the pipe, stopped downloading " + path);
+                        out.close();
+                    } else {
+                        Log.d(DEBUG_TAG, "could not stream file", e);
+                        out.closeWithError("could not download " + path);
+                    }
+                }
+            }
+        });
+
+        return pair[0];
+    }
+
+    /**
+     * Check if files of this type are read by seeking around, like archives whose directory is
+     * at the end of the file. They can not be read from a pipe.
+     */
+    private static boolean needsRandomAccess(String path) {
+        String name = Utils.fileNameFromPath(path);
+        String suffix = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.US);
+        return RANDOM_ACCESS_SUFFIXES.contains(suffix);
+    }
+
     @Override
     public AssetFileDescriptor openDocumentThumbnail(String documentId,
                                                      Point sizeHint,
@@ -417,48 +568,34 @@ public class SeafileProvider extends DocumentsProvider {
             throw new FileNotFoundException();
         }
 
-        DataManager dm = createDataManager(documentId);
+        final DataManager dm = createDataManager(documentId);
 
         String path = DocumentIdParser.getPathFromId(documentId);
 
-        final DisplayImageOptions options = new DisplayImageOptions.Builder()
-                .extraForDownloader(dm.getAccount())
-                .cacheInMemory(false) // SAF does its own caching
-                .cacheOnDisk(true)
-                .considerExifParams(true)
-                .build();
-
-        final ParcelFileDescriptor[] pair;
-        try {
-            pair = ParcelFileDescriptor.createReliablePipe();
-        } catch (IOException e) {
-            throw new FileNotFoundException();
-        }
-
         final String url = dm.getThumbnailLink(repoId, path, sizeHint.x);
         if (url == null)
             throw new FileNotFoundException();
 
-        // do thumbnail download in another thread to avoid possible network access in UI thread
-        final Future future = threadPoolExecutor.submit(new Runnable() {
-
-            @Override
-            public void run() {
-                try {
-                    FileOutputStream fileStream = new FileOutputStream(pair[1].getFileDescriptor());
+        final int size = Math.max(sizeHint.x, sizeHint.y);
+        final String cacheKey = getThumbnailCacheKey(url, size);
 
-                    // load the file. this might involve talking to the seafile server. this will hang until
-                    // it is done.
-                    Bitmap bmp = ImageLoader.getInstance().loadImageSync(url, options);
+        File cached = cacheKey == null ? null : ImageLoader.getInstance().getDiskCache().get(cacheKey);
+        if (cached != null && cached.exists()) {
+            return openThumbnailFile(cached);
+        }
 
-                    if (bmp != null) {
-                        bmp.compress(Bitmap.CompressFormat.PNG, 100, fileStream);
-                    }
-                } finally {
-                    IOUtils.closeQuietly(pair[1]);
+        // do thumbnail download in another thread to avoid possible network access in UI thread
+        final Future<File> future;
+        try {
+            future = thumbnailExecutor.submit(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    return loadThumbnail(dm, url, cacheKey, size);
                 }
-            }
-        });
+            });
+        } catch (RejectedExecutionException e) {
+            throw new FileNotFoundException();
+        }
 
         if (signal != null) {
             signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
@@ -466,12 +603,133 @@ public class SeafileProvider extends DocumentsProvider {
                 public void onCancel() {
                     Log.d(DEBUG_TAG, "openDocumentThumbnail() cancelling download");
                     future.cancel(true);
-                    IOUtils.closeQuietly(pair[1]);
+                    thumbnailExecutor.remove((Runnable) future);
                 }
             });
         }
 
-        return new AssetFileDescriptor(pair[0], 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+        try {
+            return openThumbnailFile(future.get());
+        } catch (InterruptedException e) {
+            Log.d(DEBUG_TAG, "openDocumentThumbnail cancelled download");
+            throw new FileNotFoundException();
+        } catch (CancellationException e) {
+            Log.d(DEBUG_TAG, "openDocumentThumbnail cancelled download");
+            throw new FileNotFoundException();
+        } catch (ExecutionException e) {
+            Log.d(DEBUG_TAG, "could not load thumbnail", e);
+            throw new FileNotFoundException();
+        }
+    }
+
+    /**
+     * The key of a thumbnail in the disk cache. Thumbnails from the server are cached under their url.
+     * The thumbnail of a local file depends on its version and the requested size.
+     *
+     * @return the key, or null if the local file is gone
+     */
+    private static String getThumbnailCacheKey(String url, int size) {
+        if (!url.startsWith("file://")) {
+            return url;
+        }
+
+        File file = new File(url.substring("file://".length()));
+        if (!file.exists()) {
+            return null;
+        }
+        return url + "?size=" + size + "&mtime=" + file.lastModified();
+    }
+
+    private static AssetFileDescriptor openThumbnailFile(File file) throws FileNotFoundException {
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        return new AssetFileDescriptor(pfd, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Get the thumbnail of an image into the disk cache.
+     *
+     * The thumbnail made by the server is stored as is. A local file is served as is if it is small
+     * enough, and only scaled down and encoded to JPEG otherwise.
+     *
+     * @return the file to return to the client
+     */
+    private File loadThumbnail(DataManager dm, String url, String cacheKey, int size) throws IOException {
+        if (cacheKey == null) {
+            throw new FileNotFoundException();
+        }
+
+        DiskCache diskCache = ImageLoader.getInstance().getDiskCache();
+
+        if (!url.startsWith("file://")) {
+            InputStream in = thumbnailDownloader.getStream(url, dm.getAccount());
+            try {
+                diskCache.save(cacheKey, in, null);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        } else {
+            File file = new File(url.substring("file://".length()));
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getPath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                throw new FileNotFoundException();
+            }
+
+            int longer = Math.max(options.outWidth, options.outHeight);
+            if (longer <= size * MAX_THUMBNAIL_OVERSIZE) {
+                // small enough already
+                return file;
+            }
+
+            int sampleSize = 1;
+            while (longer / (sampleSize * 2) >= size) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+
+            Bitmap bmp = BitmapFactory.decodeFile(file.getPath(), options);
+            if (bmp == null) {
+                throw new FileNotFoundException();
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                bmp.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_JPEG_QUALITY, out);
+            } finally {
+                bmp.recycle();
+            }
+            diskCache.save(cacheKey, new ByteArrayInputStream(out.toByteArray()), null);
+            copyOrientation(file, diskCache.get(cacheKey));
+        }
+
+        File cached = diskCache.get(cacheKey);
+        if (cached == null || !cached.exists()) {
+            throw new FileNotFoundException();
+        }
+        return cached;
+    }
+
+    /**
+     * Keep the EXIF orientation of a scaled down image, so that clients can still rotate it
+     */
+    private static void copyOrientation(File from, File to) {
+        if (to == null)
+            return;
+
+        try {
+            String orientation = new ExifInterface(from.getPath()).getAttribute(ExifInterface.TAG_ORIENTATION);
+            if (orientation == null)
+                return;
+
+            ExifInterface exif = new ExifInterface(to.getPath());
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, orientation);
+            exif.saveAttributes();
+        } catch (IOException e) {
+            Log.d(DEBUG_TAG, "could not copy the orientation of " + from, e);
+        }
     }
 
     @Override
@@ -611,6 +869,21 @@ public class SeafileProvider extends DocumentsProvider {
                                 SeafRepo repo, 
                                 String path)
             throws FileNotFoundException {
+        return getFile(signal, dm, repo, path, null);
+    }
+
+    /**
+     * Load a file from the Seafile server, writing its content to a stream as it arrives.
+     *
+     * @param copyTo receives the content of the file if it is downloaded, may be null
+     * @see #getFile(CancellationSignal, DataManager, SeafRepo, String)
+     */
+    private static File getFile(final CancellationSignal signal,
+                                DataManager dm,
+                                SeafRepo repo,
+                                String path,
+                                OutputStream copyTo)
+            throws FileNotFoundException {
 
         try {
             // fetch the file from the Seafile server.
@@ -627,7 +900,7 @@ public class SeafileProvider extends DocumentsProvider {
                     else
                         return false;
                 }
-            });
+            }, copyTo);
 
             if (f == null) {
                 throw new FileNotFoundException();
@@ -644,6 +917,65 @@ public class SeafileProvider extends DocumentsProvider {
         }
     }
 
+    /**
+     * Writes to the write end of a pipe. Once the reader has closed the pipe, writes fail, so the
+     * download feeding it stops.
+     */
+    private static class PipeFeeder extends OutputStream {
+        private final ParcelFileDescriptor fd;
+        private final FileOutputStream out;
+        private long count;
+        private boolean broken;
+
+        public PipeFeeder(ParcelFileDescriptor fd) {
+            this.fd = fd;
+            this.out = new FileOutputStream(fd.getFileDescriptor());
+        }
+
+        /**
+         * @return the number of bytes written
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return true if a write failed because the reader closed the pipe
+         */
+        public boolean isBroken() {
+            return broken;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+            count += len;
+        }
+
+        @Override
+        public void close() {
+            IOUtils.closeQuietly(fd);
+        }
+
+        public void closeWithError(String msg) {
+            try {
+                fd.closeWithError(msg);
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
     /**
      * Add a cursor entry for the account root.
      *
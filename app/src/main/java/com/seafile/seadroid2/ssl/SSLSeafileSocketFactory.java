@@ -11,7 +11,10 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
@@ -23,6 +26,9 @@ import javax.net.ssl.TrustManager;
  *
  * Used to manually select TLS protocol versions.
  *
+ * It also counts the sockets it creates and how many of their handshakes resumed a cached
+ * SSL session, which tells how well connections and sessions are reused.
+ *
  * based on:
  * https://stackoverflow.com/questions/1037590/which-cipher-suites-to-enable-for-ssl-socket
  */
@@ -32,6 +38,10 @@ public class SSLSeafileSocketFactory extends SSLSocketFactory {
     private String[] allowedCiphers;
     private String[] allowedProtocols;
 
+    private final AtomicInteger socketCount = new AtomicInteger();
+    private final AtomicInteger fullHandshakeCount = new AtomicInteger();
+    private final AtomicInteger resumedHandshakeCount = new AtomicInteger();
+
     public SSLSeafileSocketFactory(KeyManager[] km, TrustManager[] tm, SecureRandom random) throws NoSuchAlgorithmException, KeyManagementException {
         context = SSLContext.getInstance("TLS");
         context.init(km, tm, random);
@@ -54,52 +64,73 @@ public class SSLSeafileSocketFactory extends SSLSocketFactory {
         SSLSocketFactory factory = context.getSocketFactory();
         SSLSocket ss = (SSLSocket)factory.createSocket(s, host, port, autoClose);
 
-        ss.setEnabledProtocols(allowedProtocols);
-        ss.setEnabledCipherSuites(allowedCiphers);
-
-        return ss;
+        return configure(ss);
     }
 
     public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
         SSLSocketFactory factory = context.getSocketFactory();
         SSLSocket ss = (SSLSocket)factory.createSocket(address, port, localAddress, localPort);
 
-        ss.setEnabledProtocols(allowedProtocols);
-        ss.setEnabledCipherSuites(allowedCiphers);
-
-        return ss;
+        return configure(ss);
     }
 
     public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
         SSLSocketFactory factory = context.getSocketFactory();
         SSLSocket ss = (SSLSocket)factory.createSocket(host, port, localHost, localPort);
 
-        ss.setEnabledProtocols(allowedProtocols);
-        ss.setEnabledCipherSuites(allowedCiphers);
-
-        return ss;
+        return configure(ss);
     }
 
     public Socket createSocket(InetAddress host, int port) throws IOException {
         SSLSocketFactory factory = context.getSocketFactory();
         SSLSocket ss = (SSLSocket)factory.createSocket(host, port);
 
-        ss.setEnabledProtocols(allowedProtocols);
-        ss.setEnabledCipherSuites(allowedCiphers);
-
-        return ss;
+        return configure(ss);
     }
 
     public Socket createSocket(String host, int port) throws IOException {
         SSLSocketFactory factory = context.getSocketFactory();
         SSLSocket ss = (SSLSocket)factory.createSocket(host, port);
 
+        return configure(ss);
+    }
+
+    private SSLSocket configure(SSLSocket ss) {
         ss.setEnabledProtocols(allowedProtocols);
         ss.setEnabledCipherSuites(allowedCiphers);
 
+        socketCount.incrementAndGet();
+        final long createdAt = System.currentTimeMillis();
+        ss.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                // a session created before this socket was taken from the session cache
+                if (event.getSession().getCreationTime() < createdAt) {
+                    resumedHandshakeCount.incrementAndGet();
+                } else {
+                    fullHandshakeCount.incrementAndGet();
+                }
+            }
+        });
+
         return ss;
     }
 
+    /**
+     * @return the number of sockets created, i.e. the number of new connections
+     */
+    public int getSocketCount() {
+        return socketCount.get();
+    }
+
+    public int getFullHandshakeCount() {
+        return fullHandshakeCount.get();
+    }
+
+    public int getResumedHandshakeCount() {
+        return resumedHandshakeCount.get();
+    }
+
     protected String[] getProtocolList() {
         // don't offer SSLv2 or SSLv3
         if (Build.VERSION.SDK_INT >= 16) {
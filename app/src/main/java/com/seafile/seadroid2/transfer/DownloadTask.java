@@ -30,7 +30,7 @@ public class DownloadTask extends TransferTask {
     protected void onProgressUpdate(Long... values) {
         if (totalSize == -1) {
             totalSize = values[0];
-            state = TaskState.TRANSFERRING;
+            setState(TaskState.TRANSFERRING);
             return;
         }
         finished = values[0];
@@ -65,11 +65,11 @@ public class DownloadTask extends TransferTask {
     protected void onPostExecute(File file) {
         if (downloadStateListener != null) {
             if (file != null) {
-                state = TaskState.FINISHED;
+                setState(TaskState.FINISHED);
                 localPath = file.getPath();
                 downloadStateListener.onFileDownloaded(taskID);
             } else {
-                state = TaskState.FAILED;
+                setState(TaskState.FAILED);
                 if (err == null)
                     err = SeafException.unknownException;
                 downloadStateListener.onFileDownloadFailed(taskID);
@@ -79,7 +79,7 @@ public class DownloadTask extends TransferTask {
 
     @Override
     protected void onCancelled() {
-        state = TaskState.CANCELLED;
+        setState(TaskState.CANCELLED);
     }
 
     @Override
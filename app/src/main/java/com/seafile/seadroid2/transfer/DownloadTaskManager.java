@@ -4,11 +4,9 @@ import android.content.Intent;
 import android.support.v4.content.LocalBroadcastManager;
 
 import com.google.common.collect.Lists;
-import com.seafile.seadroid2.util.ConcurrentAsyncTask;
 import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.notification.DownloadNotificationProvider;
-import com.seafile.seadroid2.util.Utils;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -29,41 +27,61 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
     /**
      * Add a new download task.
      * call this method to execute a task immediately.
+     * The task is of {@link TaskPriority#INTERACTIVE} priority, so it does not wait for other
+     * transfers. If the same file is already waiting in the queue, that task is moved ahead.
      */
     public int addTask(Account account, String repoName, String repoID, String path) {
-        TransferTask task = new DownloadTask(++notificationID, account,
+        TransferTask task = new DownloadTask(nextTaskID(), account,
                 repoName, repoID, path, this);
-        TransferTask oldTask = null;
-        if (allTaskList.contains(task)) {
-            oldTask = allTaskList.get(allTaskList.indexOf(task));
-        }
+        task.setPriority(TaskPriority.INTERACTIVE);
+        TransferTask oldTask = getTaskByKey(task);
         if (oldTask != null) {
             if (oldTask.getState().equals(TaskState.CANCELLED)
                     || oldTask.getState().equals(TaskState.FAILED)
                     || oldTask.getState().equals(TaskState.FINISHED)) {
-                allTaskList.remove(oldTask);
+                removeInAllTaskList(oldTask.getTaskID());
             } else {
+                // the user is waiting for it now
+                promote(oldTask, TaskPriority.INTERACTIVE);
                 // return taskID of old task
                 return oldTask.getTaskID();
             }
         }
-        allTaskList.add(task);
-        ConcurrentAsyncTask.execute(task);
+        addTaskToQue(task);
         return task.getTaskID();
     }
 
     public void addTaskToQue(Account account, String repoName, String repoID, String path) {
         // create a new one to avoid IllegalStateException
-        DownloadTask downloadTask = new DownloadTask(++notificationID, account, repoName, repoID, path, this);
+        DownloadTask downloadTask = new DownloadTask(nextTaskID(), account, repoName, repoID, path, this);
         addTaskToQue(downloadTask);
     }
 
+    /**
+     * Queue the downloads of several files of a repo, e.g. of a whole folder
+     */
+    public void addTasksToQue(Account account, String repoName, String repoID, List<String> paths) {
+        List<DownloadTask> tasks = Lists.newArrayList();
+        for (String path : paths) {
+            tasks.add(new DownloadTask(nextTaskID(), account, repoName, repoID, path, this));
+        }
+        addTasksToQue(tasks);
+    }
+
+    /**
+     * Queue again a download recorded before the process was killed
+     */
+    public void restore(PendingTransferInfo info) {
+        DownloadTask task = new DownloadTask(info.taskID, info.account, info.repoName, info.repoID, info.path, this);
+        task.setPriority(info.priority);
+        restoreTask(task);
+    }
+
     public int getDownloadingFileCountByPath(String repoID, String dir) {
-        List<DownloadTaskInfo> downloadTaskInfos = getTaskInfoListByPath(repoID, dir);
         int count = 0;
-        for (DownloadTaskInfo downloadTaskInfo : downloadTaskInfos) {
-            if (downloadTaskInfo.state.equals(TaskState.INIT)
-                    || downloadTaskInfo.state.equals(TaskState.TRANSFERRING))
+        for (TransferTask task : getTasksByDir(repoID, dir)) {
+            if (task.getState().equals(TaskState.INIT)
+                    || task.getState().equals(TaskState.TRANSFERRING))
                 count++;
         }
         return count;
@@ -78,13 +96,8 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
      */
     public List<DownloadTaskInfo> getTaskInfoListByPath(String repoID, String dir) {
         ArrayList<DownloadTaskInfo> infos = Lists.newArrayList();
-        for (TransferTask task : allTaskList) {
-            if (!task.getRepoID().equals(repoID))
-                continue;
-
-            String parentDir = Utils.getParentPath(task.getPath());
-            if (parentDir.equals(dir))
-                infos.add(((DownloadTask) task).getTaskInfo());
+        for (TransferTask task : getTasksByDir(repoID, dir)) {
+            infos.add(((DownloadTask) task).getTaskInfo());
         }
 
         return infos;
@@ -98,7 +111,7 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
      */
     public List<DownloadTaskInfo> getTaskInfoListByRepo(String repoID) {
         ArrayList<DownloadTaskInfo> infos = Lists.newArrayList();
-        for (TransferTask task : allTaskList) {
+        for (TransferTask task : getAllTasks()) {
             if (!task.getRepoID().equals(repoID))
                 continue;
 
@@ -147,6 +160,10 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
     // -------------------------- listener method --------------------//
     @Override
     public void onFileDownloadProgress(int taskID) {
+        TransferTask task = getTask(taskID);
+        if (task != null) {
+            onTaskProgress(task);
+        }
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
                 BROADCAST_FILE_DOWNLOAD_PROGRESS).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
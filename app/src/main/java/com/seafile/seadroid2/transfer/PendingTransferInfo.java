@@ -0,0 +1,29 @@
+package com.seafile.seadroid2.transfer;
+
+import com.seafile.seadroid2.account.Account;
+
+/**
+ * A transfer task as persisted by {@link TransferDBHelper}, to be resumed after the process was killed
+ */
+public class PendingTransferInfo {
+
+    public int taskID;
+    public Account account;
+    public String repoID;
+    public String repoName;
+    /**
+     * path in the repo for a download, local path for an upload
+     */
+    public String path;
+    /**
+     * target dir of an upload
+     */
+    public String dir;
+    public boolean isUpdate;
+    public boolean isCopyToLocal;
+    public TaskPriority priority;
+    public TaskState state;
+    public long finished;
+    public long totalSize;
+
+}
@@ -0,0 +1,24 @@
+package com.seafile.seadroid2.transfer;
+
+/**
+ * Priority class of a transfer task, from the highest to the lowest
+ *
+ */
+public enum TaskPriority {
+    /**
+     * the user is waiting for the file to open it
+     */
+    INTERACTIVE,
+    /**
+     * transfers started by the user, like uploading files or downloading a folder
+     */
+    MANUAL,
+    /**
+     * uploads of locally modified files
+     */
+    AUTO_UPDATE,
+    /**
+     * camera uploads
+     */
+    CAMERA_UPLOAD
+}
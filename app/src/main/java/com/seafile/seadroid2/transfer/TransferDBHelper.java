@@ -0,0 +1,380 @@
+package com.seafile.seadroid2.transfer;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.seafile.seadroid2.SeadroidApplication;
+import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.account.AccountManager;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists the state of transfers, so they can be resumed after a failure or an app restart.
+ */
+public class TransferDBHelper extends SQLiteOpenHelper {
+    private static final String DEBUG_TAG = "TransferDBHelper";
+
+    // If you change the database schema, you must increment the database version.
+    public static final int DATABASE_VERSION = 2;
+    public static final String DATABASE_NAME = "transfer.db";
+
+    // UploadProgress table, the committed offset of chunked uploads
+    private static final String UPLOAD_PROGRESS_TABLE_NAME = "UploadProgress";
+
+    private static final String UPLOAD_PROGRESS_COLUMN_ID = "id";
+    private static final String UPLOAD_PROGRESS_COLUMN_ACCOUNT = "account";
+    private static final String UPLOAD_PROGRESS_COLUMN_REPO_ID = "repo_id";
+    private static final String UPLOAD_PROGRESS_COLUMN_PARENT_DIR = "parent_dir";
+    private static final String UPLOAD_PROGRESS_COLUMN_LOCAL_PATH = "local_path";
+    private static final String UPLOAD_PROGRESS_COLUMN_FILE_SIZE = "file_size";
+    private static final String UPLOAD_PROGRESS_COLUMN_LAST_MODIFIED = "last_modified";
+    private static final String UPLOAD_PROGRESS_COLUMN_COMMITTED = "committed";
+
+    private static final String SQL_CREATE_UPLOAD_PROGRESS_TABLE =
+        "CREATE TABLE " + UPLOAD_PROGRESS_TABLE_NAME + " ("
+        + UPLOAD_PROGRESS_COLUMN_ID + " INTEGER PRIMARY KEY, "
+        + UPLOAD_PROGRESS_COLUMN_ACCOUNT + " TEXT NOT NULL, "
+        + UPLOAD_PROGRESS_COLUMN_REPO_ID + " TEXT NOT NULL, "
+        + UPLOAD_PROGRESS_COLUMN_PARENT_DIR + " TEXT NOT NULL, "
+        + UPLOAD_PROGRESS_COLUMN_LOCAL_PATH + " TEXT NOT NULL, "
+        + UPLOAD_PROGRESS_COLUMN_FILE_SIZE + " INTEGER NOT NULL, "
+        + UPLOAD_PROGRESS_COLUMN_LAST_MODIFIED + " INTEGER NOT NULL, "
+        + UPLOAD_PROGRESS_COLUMN_COMMITTED + " INTEGER NOT NULL);";
+
+    private static final String UPLOAD_PROGRESS_WHERE_CLAUSE = String.format(
+            "%s = ? and %s = ? and %s = ? and %s = ?",
+            UPLOAD_PROGRESS_COLUMN_ACCOUNT,
+            UPLOAD_PROGRESS_COLUMN_REPO_ID,
+            UPLOAD_PROGRESS_COLUMN_PARENT_DIR,
+            UPLOAD_PROGRESS_COLUMN_LOCAL_PATH);
+
+    // TransferTask table, the queued and running transfers
+    private static final String TRANSFER_TASK_TABLE_NAME = "TransferTask";
+
+    private static final String TRANSFER_TASK_COLUMN_ID = "id";
+    private static final String TRANSFER_TASK_COLUMN_TYPE = "type";
+    private static final String TRANSFER_TASK_COLUMN_TASK_ID = "task_id";
+    private static final String TRANSFER_TASK_COLUMN_ACCOUNT = "account";
+    private static final String TRANSFER_TASK_COLUMN_REPO_ID = "repo_id";
+    private static final String TRANSFER_TASK_COLUMN_REPO_NAME = "repo_name";
+    private static final String TRANSFER_TASK_COLUMN_PATH = "path";
+    private static final String TRANSFER_TASK_COLUMN_PARENT_DIR = "parent_dir";
+    private static final String TRANSFER_TASK_COLUMN_IS_UPDATE = "is_update";
+    private static final String TRANSFER_TASK_COLUMN_IS_COPY_TO_LOCAL = "is_copy_to_local";
+    private static final String TRANSFER_TASK_COLUMN_PRIORITY = "priority";
+    private static final String TRANSFER_TASK_COLUMN_STATE = "state";
+    private static final String TRANSFER_TASK_COLUMN_FINISHED = "finished";
+    private static final String TRANSFER_TASK_COLUMN_TOTAL_SIZE = "total_size";
+
+    public static final String TRANSFER_TYPE_UPLOAD = "upload";
+    public static final String TRANSFER_TYPE_DOWNLOAD = "download";
+
+    private static final String SQL_CREATE_TRANSFER_TASK_TABLE =
+        "CREATE TABLE " + TRANSFER_TASK_TABLE_NAME + " ("
+        + TRANSFER_TASK_COLUMN_ID + " INTEGER PRIMARY KEY, "
+        + TRANSFER_TASK_COLUMN_TYPE + " TEXT NOT NULL, "
+        + TRANSFER_TASK_COLUMN_TASK_ID + " INTEGER NOT NULL, "
+        + TRANSFER_TASK_COLUMN_ACCOUNT + " TEXT NOT NULL, "
+        + TRANSFER_TASK_COLUMN_REPO_ID + " TEXT NOT NULL, "
+        + TRANSFER_TASK_COLUMN_REPO_NAME + " TEXT NOT NULL, "
+        + TRANSFER_TASK_COLUMN_PATH + " TEXT NOT NULL, "
+        + TRANSFER_TASK_COLUMN_PARENT_DIR + " TEXT NOT NULL, "
+        + TRANSFER_TASK_COLUMN_IS_UPDATE + " INTEGER NOT NULL, "
+        + TRANSFER_TASK_COLUMN_IS_COPY_TO_LOCAL + " INTEGER NOT NULL, "
+        + TRANSFER_TASK_COLUMN_PRIORITY + " TEXT NOT NULL, "
+        + TRANSFER_TASK_COLUMN_STATE + " TEXT NOT NULL, "
+        + TRANSFER_TASK_COLUMN_FINISHED + " INTEGER NOT NULL, "
+        + TRANSFER_TASK_COLUMN_TOTAL_SIZE + " INTEGER NOT NULL);";
+
+    private static final String[] TRANSFER_TASK_PROJECTION = {
+        TRANSFER_TASK_COLUMN_TASK_ID,
+        TRANSFER_TASK_COLUMN_ACCOUNT,
+        TRANSFER_TASK_COLUMN_REPO_ID,
+        TRANSFER_TASK_COLUMN_REPO_NAME,
+        TRANSFER_TASK_COLUMN_PATH,
+        TRANSFER_TASK_COLUMN_PARENT_DIR,
+        TRANSFER_TASK_COLUMN_IS_UPDATE,
+        TRANSFER_TASK_COLUMN_IS_COPY_TO_LOCAL,
+        TRANSFER_TASK_COLUMN_PRIORITY,
+        TRANSFER_TASK_COLUMN_STATE,
+        TRANSFER_TASK_COLUMN_FINISHED,
+        TRANSFER_TASK_COLUMN_TOTAL_SIZE };
+
+    // Use only single dbHelper to prevent multi-thread issue and db is closed exception
+    // Reference http://stackoverflow.com/questions/2493331/what-are-the-best-practices-for-sqlite-on-android
+    private static TransferDBHelper dbHelper = null;
+    private SQLiteDatabase database = null;
+
+    public static synchronized TransferDBHelper getTransferDBHelper() {
+        if (dbHelper != null)
+            return dbHelper;
+        dbHelper = new TransferDBHelper(SeadroidApplication.getAppContext());
+        dbHelper.database = dbHelper.getWritableDatabase();
+        return dbHelper;
+    }
+
+    private TransferDBHelper(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        createUploadProgressTable(db);
+        createTransferTaskTable(db);
+    }
+
+    private void createTransferTaskTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_TRANSFER_TASK_TABLE);
+
+        String sql;
+        sql = String.format("CREATE UNIQUE INDEX type_task_id_index ON %s (%s, %s)",
+                            TRANSFER_TASK_TABLE_NAME,
+                            TRANSFER_TASK_COLUMN_TYPE,
+                            TRANSFER_TASK_COLUMN_TASK_ID);
+        db.execSQL(sql);
+    }
+
+    private void createUploadProgressTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_UPLOAD_PROGRESS_TABLE);
+
+        String sql;
+        sql = String.format("CREATE UNIQUE INDEX upload_progress_index ON %s (%s, %s, %s, %s)",
+                            UPLOAD_PROGRESS_TABLE_NAME,
+                            UPLOAD_PROGRESS_COLUMN_ACCOUNT,
+                            UPLOAD_PROGRESS_COLUMN_REPO_ID,
+                            UPLOAD_PROGRESS_COLUMN_PARENT_DIR,
+                            UPLOAD_PROGRESS_COLUMN_LOCAL_PATH);
+        db.execSQL(sql);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion == 1 && newVersion == 2) {
+            // keep the progress of chunked uploads
+            createTransferTaskTable(db);
+            return;
+        }
+
+        db.execSQL("DROP TABLE IF EXISTS " + UPLOAD_PROGRESS_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + TRANSFER_TASK_TABLE_NAME + ";");
+        onCreate(db);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Return the number of bytes of a chunked upload committed by the server, or 0 if there is no
+     * record of it. A record is ignored (and removed) if the local file has changed since.
+     */
+    public long getUploadProgress(Account account, String repoID, String dir, String localPath) {
+        String[] projection = {
+            UPLOAD_PROGRESS_COLUMN_FILE_SIZE,
+            UPLOAD_PROGRESS_COLUMN_LAST_MODIFIED,
+            UPLOAD_PROGRESS_COLUMN_COMMITTED
+        };
+
+        String[] selectArgs = { account.getSignature(), repoID, dir, localPath };
+
+        Cursor cursor = database.query(
+            UPLOAD_PROGRESS_TABLE_NAME,
+            projection,
+            UPLOAD_PROGRESS_WHERE_CLAUSE,
+            selectArgs,
+            null,   // don't group the rows
+            null,   // don't filter by row groups
+            null);  // The sort order
+
+        if (!cursor.moveToFirst()) {
+            cursor.close();
+            return 0;
+        }
+
+        long fileSize = cursor.getLong(0);
+        long lastModified = cursor.getLong(1);
+        long committed = cursor.getLong(2);
+        cursor.close();
+
+        File file = new File(localPath);
+        if (file.length() != fileSize || file.lastModified() != lastModified) {
+            removeUploadProgress(account, repoID, dir, localPath);
+            return 0;
+        }
+
+        return committed;
+    }
+
+    public void saveUploadProgress(Account account, String repoID, String dir, String localPath,
+                                   long committed) {
+        File file = new File(localPath);
+
+        ContentValues values = new ContentValues();
+        values.put(UPLOAD_PROGRESS_COLUMN_ACCOUNT, account.getSignature());
+        values.put(UPLOAD_PROGRESS_COLUMN_REPO_ID, repoID);
+        values.put(UPLOAD_PROGRESS_COLUMN_PARENT_DIR, dir);
+        values.put(UPLOAD_PROGRESS_COLUMN_LOCAL_PATH, localPath);
+        values.put(UPLOAD_PROGRESS_COLUMN_FILE_SIZE, file.length());
+        values.put(UPLOAD_PROGRESS_COLUMN_LAST_MODIFIED, file.lastModified());
+        values.put(UPLOAD_PROGRESS_COLUMN_COMMITTED, committed);
+
+        database.replace(UPLOAD_PROGRESS_TABLE_NAME, null, values);
+    }
+
+    public void removeUploadProgress(Account account, String repoID, String dir, String localPath) {
+        String[] whereArgs = { account.getSignature(), repoID, dir, localPath };
+        database.delete(UPLOAD_PROGRESS_TABLE_NAME, UPLOAD_PROGRESS_WHERE_CLAUSE, whereArgs);
+    }
+
+    private static String getTransferType(TransferTask task) {
+        return task instanceof UploadTask ? TRANSFER_TYPE_UPLOAD : TRANSFER_TYPE_DOWNLOAD;
+    }
+
+    /**
+     * Insert or update the record of a transfer task
+     */
+    public void saveTransferTask(TransferTask task) {
+        ContentValues values = new ContentValues();
+        values.put(TRANSFER_TASK_COLUMN_TYPE, getTransferType(task));
+        values.put(TRANSFER_TASK_COLUMN_TASK_ID, task.getTaskID());
+        values.put(TRANSFER_TASK_COLUMN_ACCOUNT, task.getAccount().getSignature());
+        values.put(TRANSFER_TASK_COLUMN_REPO_ID, task.getRepoID());
+        values.put(TRANSFER_TASK_COLUMN_REPO_NAME, task.getRepoName());
+        values.put(TRANSFER_TASK_COLUMN_PATH, task.getPath());
+        values.put(TRANSFER_TASK_COLUMN_PARENT_DIR, task.getParentDir());
+        if (task instanceof UploadTask) {
+            UploadTask uploadTask = (UploadTask) task;
+            values.put(TRANSFER_TASK_COLUMN_IS_UPDATE, uploadTask.isUpdate() ? 1 : 0);
+            values.put(TRANSFER_TASK_COLUMN_IS_COPY_TO_LOCAL, uploadTask.isCopyToLocal() ? 1 : 0);
+        } else {
+            values.put(TRANSFER_TASK_COLUMN_IS_UPDATE, 0);
+            values.put(TRANSFER_TASK_COLUMN_IS_COPY_TO_LOCAL, 0);
+        }
+        values.put(TRANSFER_TASK_COLUMN_PRIORITY, task.getPriority().name());
+        values.put(TRANSFER_TASK_COLUMN_STATE, task.getState().name());
+        values.put(TRANSFER_TASK_COLUMN_FINISHED, task.getFinished());
+        values.put(TRANSFER_TASK_COLUMN_TOTAL_SIZE, task.getTotalSize());
+
+        database.replace(TRANSFER_TASK_TABLE_NAME, null, values);
+    }
+
+    /**
+     * Insert or update the records of several transfer tasks in one transaction
+     */
+    public void saveTransferTasks(List<? extends TransferTask> tasks) {
+        database.beginTransaction();
+        try {
+            for (TransferTask task : tasks) {
+                saveTransferTask(task);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Get the highest task id recorded for a type, or 0 if there is none
+     *
+     * @param type {@link #TRANSFER_TYPE_UPLOAD} or {@link #TRANSFER_TYPE_DOWNLOAD}
+     */
+    public int getMaxTaskID(String type) {
+        Cursor c = database.rawQuery(
+                String.format("SELECT MAX(%s) FROM %s WHERE %s = ?",
+                        TRANSFER_TASK_COLUMN_TASK_ID, TRANSFER_TASK_TABLE_NAME, TRANSFER_TASK_COLUMN_TYPE),
+                new String[] { type });
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void removeTransferTask(TransferTask task) {
+        String whereClause = String.format("%s = ? and %s = ?",
+                TRANSFER_TASK_COLUMN_TYPE, TRANSFER_TASK_COLUMN_TASK_ID);
+        String[] whereArgs = { getTransferType(task), String.valueOf(task.getTaskID()) };
+        database.delete(TRANSFER_TASK_TABLE_NAME, whereClause, whereArgs);
+    }
+
+    /**
+     * Get the persisted transfer tasks of a type, ordered by task id.
+     * Records whose account has been removed are deleted.
+     *
+     * @param type {@link #TRANSFER_TYPE_UPLOAD} or {@link #TRANSFER_TYPE_DOWNLOAD}
+     */
+    public List<PendingTransferInfo> getTransferTasks(String type) {
+        List<PendingTransferInfo> infos = Lists.newArrayList();
+        List<Integer> invalidIds = Lists.newArrayList();
+
+        Cursor c = database.query(
+             TRANSFER_TASK_TABLE_NAME,
+             TRANSFER_TASK_PROJECTION,
+             TRANSFER_TASK_COLUMN_TYPE + "=?",
+             new String[] { type },
+             null,   // don't group the rows
+             null,   // don't filter by row groups
+             TRANSFER_TASK_COLUMN_TASK_ID    // The sort order
+        );
+
+        Map<String, Account> accounts = getAllAccounts();
+        c.moveToFirst();
+        while (!c.isAfterLast()) {
+            PendingTransferInfo info = cursorToPendingTransferInfo(c, accounts);
+            if (info.account == null) {
+                invalidIds.add(info.taskID);
+            } else {
+                infos.add(info);
+            }
+            c.moveToNext();
+        }
+        c.close();
+
+        for (int taskID : invalidIds) {
+            database.delete(TRANSFER_TASK_TABLE_NAME,
+                    String.format("%s = ? and %s = ?", TRANSFER_TASK_COLUMN_TYPE, TRANSFER_TASK_COLUMN_TASK_ID),
+                    new String[] { type, String.valueOf(taskID) });
+        }
+
+        Log.d(DEBUG_TAG, String.format("loaded %d %s tasks", infos.size(), type));
+        return infos;
+    }
+
+    private Map<String, Account> getAllAccounts() {
+        AccountManager accountMgr = new AccountManager(SeadroidApplication.getAppContext());
+        Map<String, Account> accounts = Maps.newHashMap();
+        for (Account account : accountMgr.getAccountList()) {
+            accounts.put(account.getSignature(), account);
+        }
+
+        return accounts;
+    }
+
+    private PendingTransferInfo cursorToPendingTransferInfo(Cursor c, Map<String, Account> accounts) {
+        PendingTransferInfo info = new PendingTransferInfo();
+        info.taskID = c.getInt(0);
+        info.account = accounts.get(c.getString(1));
+        info.repoID = c.getString(2);
+        info.repoName = c.getString(3);
+        info.path = c.getString(4);
+        info.dir = c.getString(5);
+        info.isUpdate = c.getInt(6) != 0;
+        info.isCopyToLocal = c.getInt(7) != 0;
+        info.priority = TaskPriority.valueOf(c.getString(8));
+        info.state = TaskState.valueOf(c.getString(9));
+        info.finished = c.getLong(10);
+        info.totalSize = c.getLong(11);
+        return info;
+    }
+}
@@ -2,16 +2,39 @@ package com.seafile.seadroid2.transfer;
 
 import android.util.Log;
 import com.google.common.collect.Lists;
-import com.seafile.seadroid2.util.ConcurrentAsyncTask;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages file downloading and uploading.
  * <p/>
- * Currently use an AsyncTask for an file.
+ * Currently use an AsyncTask for an file. Waiting tasks are started by order of
+ * {@link TaskPriority}, as many at a time as the {@link TransferScheduler} allows.
+ * <p/>
+ * Tasks are indexed by id, by (repoID, parentDir) and by state, so lookups do not scan all tasks.
+ * The indexes are concurrent maps and sets. Only adding a task and starting waiting tasks take
+ * a lock, each its own.
+ * <p/>
+ * Queued tasks are recorded in {@link TransferDBHelper} until they finish or are removed,
+ * so they can be restored with {@link #restoreTask(TransferTask)} after the process was killed.
+ * The records are written in order on a background thread. The progress of a transfer is
+ * written at most every {@link #PROGRESS_SAVE_INTERVAL_MILLI}.
  */
 public abstract class TransferManager {
     private static final String DEBUG_TAG = "TransferManager";
@@ -21,29 +44,90 @@ public abstract class TransferManager {
     /**
      * unique task id
      */
-    protected int notificationID;
+    private final AtomicInteger notificationID = new AtomicInteger();
+
+    protected TransferScheduler scheduler = new TransferScheduler();
+
+    protected TransferDBHelper dbHelper = TransferDBHelper.getTransferDBHelper();
+
+    private static final long PROGRESS_SAVE_INTERVAL_MILLI = 5000;
+
+    /**
+     * writes the task records of all managers, in the order they were changed
+     */
+    private static final ScheduledExecutorService dbWriter = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * tasks whose progress has changed since it was saved
+     */
+    private final Set<TransferTask> progressedTasks = Sets.newConcurrentHashSet();
+    private final AtomicBoolean progressSaveScheduled = new AtomicBoolean();
 
-    protected static final int TRANSFER_MAX_COUNT = 2;
     /**
      * contains all transfer tasks, including failed, cancelled, finished, transferring, waiting tasks.
      */
-    protected List<TransferTask> allTaskList = Lists.newArrayList();
+    private final ConcurrentMap<Integer, TransferTask> allTasks = new ConcurrentHashMap<Integer, TransferTask>();
+    /**
+     * the current task of each (account, repoID, path), see {@link TransferTask#equals(Object)}
+     */
+    private final ConcurrentMap<TransferTask, TransferTask> tasksByKey = new ConcurrentHashMap<TransferTask, TransferTask>();
+    /**
+     * ids of tasks by (repoID, parentDir)
+     */
+    private final ConcurrentMap<String, Set<Integer>> tasksByDir = new ConcurrentHashMap<String, Set<Integer>>();
     /**
-     * contains currently transferring tasks
+     * ids of tasks by state
      */
-    protected List<TransferTask> transferringList = Lists.newArrayList();
+    private final Map<TaskState, Set<Integer>> tasksByState = Maps.newEnumMap(TaskState.class);
     /**
-     * contains waiting tasks
+     * ids of currently transferring tasks
      */
-    protected List<TransferTask> waitingList = Lists.newArrayList();
+    private final Set<Integer> transferringIds = Sets.newConcurrentHashSet();
+    /**
+     * ids of waiting tasks
+     */
+    private final Set<Integer> waitingIds = Sets.newConcurrentHashSet();
+    /**
+     * contains waiting tasks, the head is the task to start next.
+     * Removed tasks are not taken out of it, but skipped when they reach the head.
+     */
+    private final PriorityBlockingQueue<TransferTask> waitingQueue =
+            new PriorityBlockingQueue<TransferTask>(11, TransferScheduler.PRIORITY_COMPARATOR);
+
+    private final Object addLock = new Object();
+    private final Object scheduleLock = new Object();
 
-    protected synchronized TransferTask getTask(int taskID) {
-        for (TransferTask task : allTaskList) {
-            if (task.getTaskID() == taskID) {
-                return task;
+    private static final Comparator<TransferTask> ID_COMPARATOR = new Comparator<TransferTask>() {
+        @Override
+        public int compare(TransferTask lhs, TransferTask rhs) {
+            return lhs.getTaskID() < rhs.getTaskID() ? -1 : (lhs.getTaskID() == rhs.getTaskID() ? 0 : 1);
+        }
+    };
+
+    public TransferManager() {
+        for (TaskState state : TaskState.values()) {
+            tasksByState.put(state, Sets.<Integer>newConcurrentHashSet());
+        }
+    }
+
+    protected int nextTaskID() {
+        return notificationID.incrementAndGet();
+    }
+
+    /**
+     * Make sure new task ids do not collide with the id of a persisted or restored task
+     */
+    void reserveTaskID(int taskID) {
+        while (true) {
+            int current = notificationID.get();
+            if (current >= taskID || notificationID.compareAndSet(current, taskID)) {
+                return;
             }
         }
-        return null;
+    }
+
+    protected TransferTask getTask(int taskID) {
+        return allTasks.get(taskID);
     }
 
     public TransferTaskInfo getTaskInfo(int taskID) {
@@ -55,120 +139,405 @@ public abstract class TransferManager {
         return null;
     }
 
-    private synchronized boolean hasInQue(TransferTask transferTask) {
-        if (waitingList.contains(transferTask)) {
-            // Log.d(DEBUG_TAG, "in  Que  " + taskID + " " + repoName + path + "in waiting list");
-            return true;
+    /**
+     * Get the current task for the same file as the given task, if any
+     */
+    protected TransferTask getTaskByKey(TransferTask task) {
+        return tasksByKey.get(task);
+    }
+
+    /**
+     * @return the task waiting or transferring for the same file as the given task, or null
+     */
+    private TransferTask getTaskInQue(TransferTask transferTask) {
+        TransferTask task = tasksByKey.get(transferTask);
+        if (task == null) {
+            return null;
         }
 
-        if (transferringList.contains(transferTask)) {
-            // Log.d(DEBUG_TAG, "in  Que  " + taskID + " " + repoName + path + " in downloading list");
-            return true;
+        if (waitingIds.contains(task.getTaskID()) || transferringIds.contains(task.getTaskID())) {
+            return task;
         }
-        return false;
+        return null;
     }
 
-    protected void addTaskToQue(TransferTask task) {
-        if (!hasInQue(task)) {
-            // remove the cancelled or failed task if any
-            synchronized (this) {
-                allTaskList.remove(task);
+    private static String dirKey(String repoID, String dir) {
+        return repoID + dir;
+    }
 
-                // add new created task
-                allTaskList.add(task);
+    /**
+     * Add a task to the indexes, replacing the former task for the same file
+     */
+    protected void addTask(TransferTask task) {
+        synchronized (addLock) {
+            TransferTask old = tasksByKey.get(task);
+            if (old != null) {
+                // remove the cancelled or failed task if any
+                removeFromIndexes(old);
+            }
 
-                // Log.d(DEBUG_TAG, "add Que  " + taskID + " " + repoName + path);
-                waitingList.add(task);
+            task.setOwner(this);
+            allTasks.put(task.getTaskID(), task);
+            tasksByKey.put(task, task);
+            tasksByState.get(task.getState()).add(task.getTaskID());
+
+            String key = dirKey(task.getRepoID(), task.getParentDir());
+            Set<Integer> ids = tasksByDir.get(key);
+            if (ids == null) {
+                Set<Integer> newIds = Sets.newConcurrentHashSet();
+                ids = tasksByDir.putIfAbsent(key, newIds);
+                if (ids == null) {
+                    ids = newIds;
+                }
             }
-            doNext();
+            ids.add(task.getTaskID());
+        }
+    }
+
+    private void removeFromIndexes(TransferTask task) {
+        int taskID = task.getTaskID();
+        if (!allTasks.remove(taskID, task)) {
+            return;
+        }
+
+        tasksByKey.remove(task, task);
+        removeTaskRecord(task);
+        for (Set<Integer> ids : tasksByState.values()) {
+            ids.remove(taskID);
+        }
+        waitingIds.remove(taskID);
+        transferringIds.remove(taskID);
+
+        Set<Integer> ids = tasksByDir.get(dirKey(task.getRepoID(), task.getParentDir()));
+        if (ids != null) {
+            ids.remove(taskID);
         }
     }
 
-    public synchronized void doNext() {
-        if (!waitingList.isEmpty()
-                && transferringList.size() < TRANSFER_MAX_COUNT) {
-            Log.d(DEBUG_TAG, "do next!");
+    /**
+     * Called by a task of this manager when its state changes
+     */
+    void onTaskStateChanged(TransferTask task, TaskState oldState, TaskState newState) {
+        int taskID = task.getTaskID();
+        if (allTasks.get(taskID) != task) {
+            // the task has been removed or replaced
+            return;
+        }
 
-            TransferTask task = waitingList.remove(0);
-            transferringList.add(task);
+        tasksByState.get(oldState).remove(taskID);
+        tasksByState.get(newState).add(taskID);
 
-            ConcurrentAsyncTask.execute(task);
+        if (isDone(newState)) {
+            removeTaskRecord(task);
+        } else {
+            saveTaskRecords(Collections.singletonList(task));
+        }
+    }
+
+    private static boolean isDone(TaskState state) {
+        return state == TaskState.FINISHED
+                || state == TaskState.CANCELLED
+                || state == TaskState.FAILED;
+    }
+
+    /**
+     * Called when a task reports its progress. The progress is saved a while later, with that
+     * of the other tasks which progressed in the meantime.
+     */
+    protected void onTaskProgress(TransferTask task) {
+        progressedTasks.add(task);
+        if (progressSaveScheduled.compareAndSet(false, true)) {
+            dbWriter.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    progressSaveScheduled.set(false);
+                    List<TransferTask> tasks = Lists.newArrayList();
+                    Iterator<TransferTask> it = progressedTasks.iterator();
+                    while (it.hasNext()) {
+                        tasks.add(it.next());
+                        it.remove();
+                    }
+                    writeTaskRecords(tasks);
+                }
+            }, PROGRESS_SAVE_INTERVAL_MILLI, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Save the records of tasks on the writer thread
+     */
+    private void saveTaskRecords(final List<? extends TransferTask> tasks) {
+        dbWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeTaskRecords(tasks);
+            }
+        });
+    }
+
+    /**
+     * Save the records of the tasks still queued, in one transaction. Must run on the writer
+     * thread, where a task which is done or removed has had its record removed already.
+     */
+    private void writeTaskRecords(List<? extends TransferTask> tasks) {
+        List<TransferTask> queued = Lists.newArrayList();
+        for (TransferTask task : tasks) {
+            if (allTasks.get(task.getTaskID()) == task && !isDone(task.getState())) {
+                queued.add(task);
+            }
+        }
+        if (!queued.isEmpty()) {
+            dbHelper.saveTransferTasks(queued);
+        }
+    }
+
+    /**
+     * Remove the record of a task on the writer thread
+     */
+    protected void removeTaskRecord(final TransferTask task) {
+        dbWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                dbHelper.removeTransferTask(task);
+            }
+        });
+    }
+
+    /**
+     * @return the id of the queued task, which is the task already waiting or transferring
+     * for the same file if any
+     */
+    protected int addTaskToQue(TransferTask task) {
+        synchronized (addLock) {
+            TransferTask queued = enqueue(task);
+            if (queued != task) {
+                return queued.getTaskID();
+            }
+            saveTaskRecords(Collections.singletonList(task));
+        }
+        doNext();
+        return task.getTaskID();
+    }
+
+    /**
+     * Queue several tasks at once, their records are saved in a single transaction
+     */
+    protected void addTasksToQue(List<? extends TransferTask> tasks) {
+        synchronized (addLock) {
+            List<TransferTask> added = Lists.newArrayList();
+            for (TransferTask task : tasks) {
+                if (enqueue(task) == task) {
+                    added.add(task);
+                }
+            }
+            saveTaskRecords(added);
+        }
+        doNext();
+    }
+
+    /**
+     * Must be called with {@link #addLock} held
+     *
+     * @return the given task, or the task already queued for the same file
+     */
+    private TransferTask enqueue(TransferTask task) {
+        TransferTask queued = getTaskInQue(task);
+        if (queued != null) {
+            return queued;
+        }
+
+        // add new created task
+        addTask(task);
+
+        // Log.d(DEBUG_TAG, "add Que  " + taskID + " " + repoName + path);
+        waitingIds.add(task.getTaskID());
+        waitingQueue.add(task);
+        return task;
+    }
+
+    /**
+     * Queue again a task loaded from {@link TransferDBHelper}, keeping its id
+     */
+    protected void restoreTask(TransferTask task) {
+        reserveTaskID(task.getTaskID());
+        if (getTaskByKey(task) != null) {
+            // queued again by the user in the meantime
+            removeTaskRecord(task);
+            return;
+        }
+        addTaskToQue(task);
+    }
+
+    /**
+     * Move a waiting task ahead by giving it a higher priority
+     *
+     * @return true if the task was waiting
+     */
+    protected boolean promote(TransferTask task, TaskPriority priority) {
+        synchronized (scheduleLock) {
+            if (!waitingIds.contains(task.getTaskID()) || !removeFromWaitingQueue(task)) {
+                return false;
+            }
+            task.setPriority(priority);
+            waitingQueue.add(task);
+            saveTaskRecords(Collections.singletonList(task));
+        }
+        doNext();
+        return true;
+    }
+
+    /**
+     * Remove this very task from {@link #waitingQueue}. {@link PriorityBlockingQueue#remove(Object)}
+     * compares by equals, it could remove a stale task for the same file instead.
+     */
+    private boolean removeFromWaitingQueue(TransferTask task) {
+        Iterator<TransferTask> it = waitingQueue.iterator();
+        while (it.hasNext()) {
+            if (it.next() == task) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void doNext() {
+        synchronized (scheduleLock) {
+            while (true) {
+                TransferTask task = waitingQueue.peek();
+                if (task == null) {
+                    return;
+                }
+
+                if (!waitingIds.contains(task.getTaskID()) || allTasks.get(task.getTaskID()) != task) {
+                    // removed while waiting
+                    waitingQueue.poll();
+                    continue;
+                }
+
+                if (transferringIds.size() >= scheduler.getMaxConcurrency()
+                        && !scheduler.canBypassLimit(task)) {
+                    return;
+                }
+
+                Log.d(DEBUG_TAG, "do next!");
+
+                waitingQueue.poll();
+                waitingIds.remove(task.getTaskID());
+                transferringIds.add(task.getTaskID());
+
+                scheduler.execute(task);
+            }
         }
     }
 
     protected void cancel(int taskID) {
         TransferTask task = getTask(taskID);
+        boolean waiting = waitingIds.contains(taskID);
         if (task != null) {
             task.cancel();
 
         }
 
         remove(taskID);
+
+        if (task != null && waiting && task.getState() == TaskState.CANCELLED) {
+            onWaitingTaskCancelled(task);
+        }
     }
 
-    protected synchronized void remove(int taskID) {
+    /**
+     * Called when a task is cancelled before it was started. AsyncTask does not call the
+     * onCancelled of a task which was never executed, so its listeners are told here.
+     */
+    protected void onWaitingTaskCancelled(TransferTask task) {
+    }
 
+    protected void remove(int taskID) {
         TransferTask toCancel = getTask(taskID);
         if (toCancel == null)
             return;
 
-        if (!waitingList.isEmpty()) {
-            waitingList.remove(toCancel);
-        }
+        waitingIds.remove(taskID);
 
-        if (!transferringList.isEmpty()) {
-            transferringList.remove(toCancel);
+        if (transferringIds.remove(taskID)) {
+            scheduler.onTaskDone(toCancel);
         }
     }
 
     public void removeInAllTaskList(int taskID) {
         TransferTask task = getTask(taskID);
         if (task != null) {
-            synchronized (this) {
-                allTaskList.remove(task);
+            removeFromIndexes(task);
+        }
+    }
+
+    public List<TransferTask> getTasksByState(TaskState taskState) {
+        List<TransferTask> taskList = Lists.newArrayList();
+        for (int taskID : tasksByState.get(taskState)) {
+            TransferTask task = allTasks.get(taskID);
+            if (task != null) {
+                taskList.add(task);
             }
         }
+        Collections.sort(taskList, ID_COMPARATOR);
+        return taskList;
     }
 
-    public synchronized List<TransferTask> getTasksByState(TaskState taskState) {
+    /**
+     * Get all tasks of files in a directory
+     */
+    protected List<TransferTask> getTasksByDir(String repoID, String dir) {
         List<TransferTask> taskList = Lists.newArrayList();
-        Iterator<TransferTask> iter = allTaskList.iterator();
-        while (iter.hasNext()) {
-            TransferTask task = iter.next();
-            if (task.state.equals(taskState)) {
+        Set<Integer> ids = tasksByDir.get(dirKey(repoID, dir));
+        if (ids == null) {
+            return taskList;
+        }
+
+        for (int taskID : ids) {
+            TransferTask task = allTasks.get(taskID);
+            if (task != null) {
                 taskList.add(task);
             }
         }
+        Collections.sort(taskList, ID_COMPARATOR);
         return taskList;
     }
 
     /**
-     * remove tasks from {@link #allTaskList} by comparing the taskState,
+     * Get all tasks, in the order they were created
+     */
+    protected List<TransferTask> getAllTasks() {
+        List<TransferTask> taskList = Lists.newArrayList(allTasks.values());
+        Collections.sort(taskList, ID_COMPARATOR);
+        return taskList;
+    }
+
+    /**
+     * remove tasks from {@link #allTasks} by comparing the taskState,
      * all tasks with the same taskState will be removed.
      *
      * @param taskState
      *          taskState
      */
-    public synchronized void removeByState(TaskState taskState) {
-        Iterator<TransferTask> iter = allTaskList.iterator();
-        while (iter.hasNext()) {
-            TransferTask task = iter.next();
-            if (task.getState().equals(taskState)) {
-                iter.remove();
-            }
+    public void removeByState(TaskState taskState) {
+        for (TransferTask task : getTasksByState(taskState)) {
+            removeFromIndexes(task);
         }
     }
 
     /**
-     * remove tasks from {@link #allTaskList} by traversing the taskId list
+     * remove tasks from {@link #allTasks} by traversing the taskId list
      *
      * @param ids
      *          taskId list
      */
-    public synchronized void removeByIds(List<Integer> ids) {
+    public void removeByIds(List<Integer> ids) {
         for (int taskID : ids) {
             TransferTask transferTask = getTask(taskID);
-            allTaskList.remove(transferTask);
+            if (transferTask != null) {
+                removeFromIndexes(transferTask);
+            }
         }
     }
 
@@ -179,18 +548,12 @@ public abstract class TransferManager {
      *          false, otherwise.
      */
     public boolean isTransferring() {
-        List<? extends TransferTaskInfo> transferTaskInfos = getAllTaskInfoList();
-        for (TransferTaskInfo transferTaskInfo : transferTaskInfos) {
-            if (transferTaskInfo.state.equals(TaskState.TRANSFERRING))
-                return true;
-        }
-        return false;
+        return !tasksByState.get(TaskState.TRANSFERRING).isEmpty();
     }
 
     public void cancelAll() {
-        List<? extends TransferTaskInfo> transferTaskInfos = getAllTaskInfoList();
-        for (TransferTaskInfo transferTaskInfo : transferTaskInfos) {
-            cancel(transferTaskInfo.taskID);
+        for (TransferTask task : getAllTasks()) {
+            cancel(task.getTaskID());
         }
     }
 
@@ -200,9 +563,9 @@ public abstract class TransferManager {
         }
     }
 
-    public synchronized List<? extends TransferTaskInfo> getAllTaskInfoList() {
+    public List<? extends TransferTaskInfo> getAllTaskInfoList() {
         ArrayList<TransferTaskInfo> infos = Lists.newArrayList();
-        for (TransferTask task : allTaskList) {
+        for (TransferTask task : getAllTasks()) {
             infos.add(task.getTaskInfo());
         }
 
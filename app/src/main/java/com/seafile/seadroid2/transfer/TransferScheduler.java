@@ -0,0 +1,147 @@
+package com.seafile.seadroid2.transfer;
+
+import android.util.Log;
+
+import com.google.common.collect.Maps;
+import com.seafile.seadroid2.util.ConcurrentAsyncTask;
+import com.seafile.seadroid2.util.Utils;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides how many transfers of a {@link TransferManager} run at the same time, and runs them.
+ * <p/>
+ * Each {@link TaskPriority} has its own executor, so transfers never take the threads of
+ * the UI AsyncTasks, and a camera upload can not hold up a file the user wants to open.
+ * <p/>
+ * The number of concurrent transfers adapts to the measured throughput: the limit is raised
+ * as long as it makes the total throughput grow, and lowered when it makes it drop.
+ * It is capped lower on metered networks than on Wi-Fi.
+ */
+public class TransferScheduler {
+    private static final String DEBUG_TAG = "TransferScheduler";
+
+    private static final int WIFI_MAX_CONCURRENCY = 4;
+    private static final int METERED_MAX_CONCURRENCY = 2;
+    private static final int MIN_CONCURRENCY = 1;
+
+    /**
+     * throughput is sampled at most this often
+     */
+    private static final long SAMPLE_INTERVAL_MILLI = 5000;
+
+    /**
+     * a throughput change below this ratio is treated as noise
+     */
+    private static final double THROUGHPUT_TOLERANCE = 0.1;
+
+    private static final Map<TaskPriority, ExecutorService> executors = Maps.newEnumMap(TaskPriority.class);
+
+    static {
+        for (TaskPriority priority : TaskPriority.values()) {
+            executors.put(priority, Executors.newCachedThreadPool(new TransferThreadFactory(priority)));
+        }
+    }
+
+    /**
+     * Order tasks by priority, and by creation within the same priority
+     */
+    public static final Comparator<TransferTask> PRIORITY_COMPARATOR = new Comparator<TransferTask>() {
+        @Override
+        public int compare(TransferTask lhs, TransferTask rhs) {
+            int ret = lhs.getPriority().compareTo(rhs.getPriority());
+            if (ret != 0) {
+                return ret;
+            }
+            return lhs.getTaskID() < rhs.getTaskID() ? -1 : (lhs.getTaskID() == rhs.getTaskID() ? 0 : 1);
+        }
+    };
+
+    private int concurrency = METERED_MAX_CONCURRENCY;
+    /**
+     * the direction the limit was moved last time, +1 or -1
+     */
+    private int step = 1;
+    private double lastThroughput = 0;
+    private long bytesSinceSample = 0;
+    private long sampleStart = System.currentTimeMillis();
+
+    /**
+     * @return the number of tasks allowed to transfer at the same time
+     */
+    public synchronized int getMaxConcurrency() {
+        int max = Utils.isWiFiOn() ? WIFI_MAX_CONCURRENCY : METERED_MAX_CONCURRENCY;
+        return Math.max(MIN_CONCURRENCY, Math.min(concurrency, max));
+    }
+
+    /**
+     * Whether a waiting task may be started although the transferring tasks have reached
+     * {@link #getMaxConcurrency()}. A file the user is waiting for is never queued.
+     */
+    public boolean canBypassLimit(TransferTask task) {
+        return task.getPriority() == TaskPriority.INTERACTIVE;
+    }
+
+    public void execute(TransferTask task) {
+        ConcurrentAsyncTask.executeOnExecutor(executors.get(task.getPriority()), task);
+    }
+
+    /**
+     * Called when a transferring task is done, successful or not
+     */
+    public synchronized void onTaskDone(TransferTask task) {
+        if (task.getFinished() > 0) {
+            bytesSinceSample += task.getFinished();
+        }
+
+        long now = System.currentTimeMillis();
+        long elapsed = now - sampleStart;
+        if (elapsed < SAMPLE_INTERVAL_MILLI) {
+            return;
+        }
+
+        double throughput = bytesSinceSample * 1000.0 / elapsed;
+        adapt(throughput);
+
+        bytesSinceSample = 0;
+        sampleStart = now;
+    }
+
+    private void adapt(double throughput) {
+        if (lastThroughput > 0) {
+            if (throughput < lastThroughput * (1 - THROUGHPUT_TOLERANCE)) {
+                // the last move made things worse, go back
+                step = -step;
+            } else if (throughput <= lastThroughput * (1 + THROUGHPUT_TOLERANCE)) {
+                // no significant change, keep the current limit
+                lastThroughput = throughput;
+                return;
+            }
+        }
+
+        int max = Utils.isWiFiOn() ? WIFI_MAX_CONCURRENCY : METERED_MAX_CONCURRENCY;
+        concurrency = Math.max(MIN_CONCURRENCY, Math.min(concurrency + step, max));
+        lastThroughput = throughput;
+
+        Log.d(DEBUG_TAG, String.format("throughput %.0f B/s, concurrency %d", throughput, concurrency));
+    }
+
+    private static class TransferThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+        private final TaskPriority priority;
+
+        public TransferThreadFactory(TaskPriority priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "Transfer-" + priority.name() + " #" + count.getAndIncrement());
+        }
+    }
+}
@@ -3,18 +3,27 @@ package com.seafile.seadroid2.transfer;
 import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.notification.DownloadNotificationProvider;
 import com.seafile.seadroid2.notification.UploadNotificationProvider;
+import com.seafile.seadroid2.util.ConcurrentAsyncTask;
 
 import java.util.List;
 
 public class TransferService extends Service {
     private static final String DEBUG_TAG = "TransferService";
 
+    /**
+     * number of restored tasks queued at a time, so the main thread is not blocked
+     * by a long queue
+     */
+    private static final int RESTORE_BATCH_SIZE = 100;
+
     private final IBinder mBinder = new TransferBinder();
+    private final Handler mHandler = new Handler();
 
     public DownloadTaskManager getDownloadTaskManager() {
         return downloadTaskManager;
@@ -31,6 +40,69 @@ public class TransferService extends Service {
     public void onCreate() {
         downloadTaskManager = new DownloadTaskManager();
         uploadTaskManager = new UploadTaskManager();
+        reserveTaskIDs();
+        restoreTasks();
+    }
+
+    /**
+     * Start the task ids after those of the persisted tasks, before any task can be added.
+     * Otherwise a task added while the records are restored would take the id of a record
+     * and overwrite it.
+     */
+    private void reserveTaskIDs() {
+        TransferDBHelper dbHelper = TransferDBHelper.getTransferDBHelper();
+        downloadTaskManager.reserveTaskID(dbHelper.getMaxTaskID(TransferDBHelper.TRANSFER_TYPE_DOWNLOAD));
+        uploadTaskManager.reserveTaskID(dbHelper.getMaxTaskID(TransferDBHelper.TRANSFER_TYPE_UPLOAD));
+    }
+
+    /**
+     * Queue again the transfers which were pending when the process was killed.
+     * The records are loaded in background, the tasks are created in batches on the main thread.
+     */
+    private void restoreTasks() {
+        ConcurrentAsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                TransferDBHelper dbHelper = TransferDBHelper.getTransferDBHelper();
+                final List<PendingTransferInfo> downloads = dbHelper.getTransferTasks(TransferDBHelper.TRANSFER_TYPE_DOWNLOAD);
+                final List<PendingTransferInfo> uploads = dbHelper.getTransferTasks(TransferDBHelper.TRANSFER_TYPE_UPLOAD);
+                if (downloads.isEmpty() && uploads.isEmpty()) {
+                    return;
+                }
+
+                Log.d(DEBUG_TAG, String.format("restore %d downloads, %d uploads", downloads.size(), uploads.size()));
+                mHandler.post(new RestoreBatch(downloads, uploads, 0));
+            }
+        });
+    }
+
+    private class RestoreBatch implements Runnable {
+        private final List<PendingTransferInfo> downloads;
+        private final List<PendingTransferInfo> uploads;
+        private final int start;
+
+        public RestoreBatch(List<PendingTransferInfo> downloads, List<PendingTransferInfo> uploads, int start) {
+            this.downloads = downloads;
+            this.uploads = uploads;
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            int total = downloads.size() + uploads.size();
+            int end = Math.min(start + RESTORE_BATCH_SIZE, total);
+            for (int i = start; i < end; i++) {
+                if (i < downloads.size()) {
+                    downloadTaskManager.restore(downloads.get(i));
+                } else {
+                    uploadTaskManager.restore(uploads.get(i - downloads.size()));
+                }
+            }
+
+            if (end < total) {
+                mHandler.post(new RestoreBatch(downloads, uploads, end));
+            }
+        }
     }
 
     @Override
@@ -76,7 +148,14 @@ public class TransferService extends Service {
     // -------------------------- upload task --------------------//
     public int addTaskToUploadQue(Account account, String repoID, String repoName, String dir,
                              String filePath, boolean isUpdate, boolean isCopyToLocal) {
-        return uploadTaskManager.addTaskToQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal);
+        // use isCopyToLocal to mark automatic camera upload if false
+        TaskPriority priority = isCopyToLocal ? TaskPriority.MANUAL : TaskPriority.CAMERA_UPLOAD;
+        return addTaskToUploadQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, priority);
+    }
+
+    public int addTaskToUploadQue(Account account, String repoID, String repoName, String dir,
+                             String filePath, boolean isUpdate, boolean isCopyToLocal, TaskPriority priority) {
+        return uploadTaskManager.addTaskToQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, priority);
     }
 
     /**
@@ -97,6 +176,35 @@ public class TransferService extends Service {
         return addTaskToUploadQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal);
     }
 
+    /**
+     * Same as {@link #addUploadTask(Account, String, String, String, String, boolean, boolean)},
+     * with an explicit priority class.
+     */
+    public int addUploadTask(Account account, String repoID, String repoName, String dir,
+            String filePath, boolean isUpdate, boolean isCopyToLocal, TaskPriority priority) {
+        return addTaskToUploadQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, priority);
+    }
+
+    /**
+     * Upload several files to the same folder, their records are saved in a single transaction
+     */
+    public void addUploadTasks(Account account, String repoID, String repoName, String dir,
+            List<String> filePaths, boolean isUpdate, boolean isCopyToLocal) {
+        TaskPriority priority = isCopyToLocal ? TaskPriority.MANUAL : TaskPriority.CAMERA_UPLOAD;
+        uploadTaskManager.addTasksToQue(account, repoID, repoName, dir, filePaths, isUpdate, isCopyToLocal, priority);
+    }
+
+    /**
+     * Be told about the events of all upload tasks, on the main thread
+     */
+    public void addUploadStateListener(UploadStateListener listener) {
+        uploadTaskManager.addUploadStateListener(listener);
+    }
+
+    public void removeUploadStateListener(UploadStateListener listener) {
+        uploadTaskManager.removeUploadStateListener(listener);
+    }
+
     public UploadTaskInfo getUploadTaskInfo(int taskID) {
         return (UploadTaskInfo) uploadTaskManager.getTaskInfo(taskID);
     }
@@ -176,6 +284,13 @@ public class TransferService extends Service {
         downloadTaskManager.addTaskToQue(account, repoName, repoID, path);
     }
 
+    /**
+     * Download several files, e.g. of a whole folder, their records are saved in a single transaction
+     */
+    public void addTasksToDownloadQue(Account account, String repoName, String repoID, List<String> paths) {
+        downloadTaskManager.addTasksToQue(account, repoName, repoID, paths);
+    }
+
     public List<DownloadTaskInfo> getAllDownloadTaskInfos() {
         return (List<DownloadTaskInfo>) downloadTaskManager.getAllTaskInfoList();
     }
@@ -3,6 +3,7 @@ package com.seafile.seadroid2.transfer;
 import android.os.AsyncTask;
 import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.util.Utils;
 
 import java.io.File;
 
@@ -21,7 +22,9 @@ public abstract class TransferTask extends AsyncTask<Void, Long, File> {
     protected String path;
     protected long totalSize, finished;
     protected TaskState state;
+    protected TaskPriority priority = TaskPriority.MANUAL;
     protected SeafException err;
+    private TransferManager owner;
 
     public TransferTask(int taskID, Account account, String repoName, String repoID, String path) {
         this.account = account;
@@ -39,10 +42,25 @@ public abstract class TransferTask extends AsyncTask<Void, Long, File> {
         if (state != TaskState.INIT && state != TaskState.TRANSFERRING) {
             return;
         }
-        state = TaskState.CANCELLED;
+        setState(TaskState.CANCELLED);
         super.cancel(true);
     }
 
+    void setOwner(TransferManager owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Change the state, and tell the manager so it can keep its state index up to date
+     */
+    protected synchronized void setState(TaskState newState) {
+        TaskState oldState = state;
+        state = newState;
+        if (owner != null && oldState != newState) {
+            owner.onTaskStateChanged(this, oldState, newState);
+        }
+    }
+
     protected boolean canRetry() {
         return state == TaskState.CANCELLED || state == TaskState.FAILED;
     }
@@ -57,6 +75,14 @@ public abstract class TransferTask extends AsyncTask<Void, Long, File> {
         return state;
     }
 
+    public TaskPriority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(TaskPriority priority) {
+        this.priority = priority;
+    }
+
     public Account getAccount() {
         return account;
     }
@@ -81,6 +107,13 @@ public abstract class TransferTask extends AsyncTask<Void, Long, File> {
         return path;
     }
 
+    /**
+     * @return the directory in the repo the transferred file belongs to
+     */
+    public String getParentDir() {
+        return Utils.getParentPath(path);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this)
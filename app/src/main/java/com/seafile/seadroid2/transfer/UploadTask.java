@@ -3,6 +3,7 @@ package com.seafile.seadroid2.transfer;
 import android.util.Log;
 import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.data.ChunkedProgressMonitor;
 import com.seafile.seadroid2.data.DataManager;
 import com.seafile.seadroid2.data.ProgressMonitor;
 
@@ -15,9 +16,15 @@ import java.io.File;
 public class UploadTask extends TransferTask {
     public static final String DEBUG_TAG = "UploadTask";
 
+    /**
+     * new files larger than this are uploaded in chunks, so an interrupted upload can be resumed
+     */
+    public static final long CHUNKED_UPLOAD_THRESHOLD = 16 * 1024 * 1024;
+
     private String dir;   // parent dir
     private boolean isUpdate;  // true if update an existing file
     private boolean isCopyToLocal; // false to turn off copy operation
+    private long committed; // bytes committed by the server in chunked upload mode
     private UploadStateListener uploadStateListener;
 
     private DataManager dataManager;
@@ -40,7 +47,7 @@ public class UploadTask extends TransferTask {
     public UploadTaskInfo getTaskInfo() {
         UploadTaskInfo info = new UploadTaskInfo(account, taskID, state, repoID,
                 repoName, dir, path, isUpdate, isCopyToLocal,
-                finished, totalSize, err);
+                finished, totalSize, committed, err);
         return info;
     }
 
@@ -48,13 +55,13 @@ public class UploadTask extends TransferTask {
         if (state != TaskState.INIT && state != TaskState.TRANSFERRING) {
             return;
         }
-        state = TaskState.CANCELLED;
+        setState(TaskState.CANCELLED);
         super.cancel(true);
     }
 
     @Override
     protected void onPreExecute() {
-        state = TaskState.TRANSFERRING;
+        setState(TaskState.TRANSFERRING);
     }
 
     @Override
@@ -81,6 +88,8 @@ public class UploadTask extends TransferTask {
             };
             if (isUpdate) {
                 dataManager.updateFile(repoName, repoID, dir, path, monitor, isCopyToLocal);
+            } else if (totalSize > CHUNKED_UPLOAD_THRESHOLD) {
+                uploadChunked(monitor);
             } else {
                 Log.d(DEBUG_TAG, "Upload path: " + path);
                 dataManager.uploadFile(repoName, repoID, dir, path, monitor, isCopyToLocal);
@@ -93,9 +102,36 @@ public class UploadTask extends TransferTask {
         return null;
     }
 
+    private void uploadChunked(final ProgressMonitor monitor) throws SeafException {
+        final TransferDBHelper dbHelper = TransferDBHelper.getTransferDBHelper();
+        committed = dbHelper.getUploadProgress(account, repoID, dir, path);
+        Log.d(DEBUG_TAG, "Chunked upload of " + path + ", committed " + committed);
+
+        ChunkedProgressMonitor chunkedMonitor = new ChunkedProgressMonitor() {
+            @Override
+            public void onChunkCommitted(long offset) {
+                committed = offset;
+                dbHelper.saveUploadProgress(account, repoID, dir, path, offset);
+            }
+
+            @Override
+            public void onProgressNotify(long uploaded) {
+                monitor.onProgressNotify(uploaded);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return monitor.isCancelled();
+            }
+        };
+
+        dataManager.uploadFileChunked(repoName, repoID, dir, path, committed, chunkedMonitor, isCopyToLocal);
+        dbHelper.removeUploadProgress(account, repoID, dir, path);
+    }
+
     @Override
     protected void onPostExecute(File file) {
-        state = err == null ? TaskState.FINISHED : TaskState.FAILED;
+        setState(err == null ? TaskState.FINISHED : TaskState.FAILED);
         if (uploadStateListener != null) {
             if (err == null) {
                 uploadStateListener.onFileUploaded(taskID);
@@ -118,6 +154,11 @@ public class UploadTask extends TransferTask {
         return dir;
     }
 
+    @Override
+    public String getParentDir() {
+        return dir;
+    }
+
     public boolean isCopyToLocal() {
         return isCopyToLocal;
     }
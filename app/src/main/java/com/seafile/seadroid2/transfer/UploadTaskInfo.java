@@ -9,6 +9,10 @@ public class UploadTaskInfo extends TransferTaskInfo {
 
     public final String parentDir;
     public final long uploadedSize, totalSize;
+    /**
+     * bytes of a chunked upload the server has already committed, 0 for a normal upload
+     */
+    public final long committedSize;
     public final boolean isUpdate, isCopyToLocal;
 
     /**
@@ -25,6 +29,7 @@ public class UploadTaskInfo extends TransferTaskInfo {
      * @param isCopyToLocal Copy files to SD card if true
      * @param uploadedSize File uploaded size
      * @param totalSize File total size
+     * @param committedSize Bytes committed by the server in chunked upload mode
      * @param err Exception instance of {@link SeafException}
      */
     public UploadTaskInfo(Account account,
@@ -38,6 +43,7 @@ public class UploadTaskInfo extends TransferTaskInfo {
                           boolean isCopyToLocal,
                           long uploadedSize,
                           long totalSize,
+                          long committedSize,
                           SeafException err) {
 
         super(account, taskID, state, repoID, repoName, localPath, err);
@@ -45,6 +51,7 @@ public class UploadTaskInfo extends TransferTaskInfo {
         this.parentDir = parentDir;
         this.uploadedSize = uploadedSize;
         this.totalSize = totalSize;
+        this.committedSize = committedSize;
         this.isUpdate = isUpdate;
         this.isCopyToLocal = isCopyToLocal;
     }
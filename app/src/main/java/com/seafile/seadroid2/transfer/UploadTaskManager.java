@@ -8,7 +8,9 @@ import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.notification.UploadNotificationProvider;
 
+import java.io.File;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Upload task manager
@@ -24,14 +26,63 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
 
     private static UploadNotificationProvider mNotifyProvider;
 
-    public int addTaskToQue(Account account, String repoID, String repoName, String dir, String filePath, boolean isUpdate, boolean isCopyToLocal) {
+    /**
+     * told about the upload events of all tasks, on the main thread
+     */
+    private final List<UploadStateListener> listeners = new CopyOnWriteArrayList<UploadStateListener>();
+
+    public void addUploadStateListener(UploadStateListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeUploadStateListener(UploadStateListener listener) {
+        listeners.remove(listener);
+    }
+
+    public int addTaskToQue(Account account, String repoID, String repoName, String dir, String filePath,
+                            boolean isUpdate, boolean isCopyToLocal, TaskPriority priority) {
         if (repoID == null || repoName == null)
             return 0;
 
         // create a new one to avoid IllegalStateException
-        UploadTask task = new UploadTask(++notificationID, account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, this);
-        addTaskToQue(task);
-        return task.getTaskID();
+        UploadTask task = new UploadTask(nextTaskID(), account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, this);
+        task.setPriority(priority);
+        // the id of the task already queued for the file if any, so the caller can follow it
+        return addTaskToQue(task);
+    }
+
+    /**
+     * Queue the uploads of several files to the same folder
+     */
+    public void addTasksToQue(Account account, String repoID, String repoName, String dir, List<String> filePaths,
+                              boolean isUpdate, boolean isCopyToLocal, TaskPriority priority) {
+        if (repoID == null || repoName == null)
+            return;
+
+        List<UploadTask> tasks = Lists.newArrayList();
+        for (String filePath : filePaths) {
+            UploadTask task = new UploadTask(nextTaskID(), account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, this);
+            task.setPriority(priority);
+            tasks.add(task);
+        }
+        addTasksToQue(tasks);
+    }
+
+    /**
+     * Queue again an upload recorded before the process was killed.
+     * It is dropped if the local file is gone.
+     */
+    public void restore(PendingTransferInfo info) {
+        UploadTask task = new UploadTask(info.taskID, info.account, info.repoID, info.repoName,
+                info.dir, info.path, info.isUpdate, info.isCopyToLocal, this);
+        if (!new File(info.path).exists()) {
+            Log.d(DEBUG_TAG, "local file removed, drop upload " + info.path);
+            removeTaskRecord(task);
+            return;
+        }
+
+        task.setPriority(info.priority);
+        restoreTask(task);
     }
 
     public List<UploadTaskInfo> getNoneCameraUploadTaskInfos() {
@@ -53,7 +104,8 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
         UploadTask task = (UploadTask) getTask(taskID);
         if (task == null || !task.canRetry())
             return;
-        addTaskToQue(task.getAccount(), task.getRepoID(), task.getRepoName(), task.getDir(), task.getPath(), task.isUpdate(), task.isCopyToLocal());
+        addTaskToQue(task.getAccount(), task.getRepoID(), task.getRepoName(), task.getDir(), task.getPath(),
+                task.isUpdate(), task.isCopyToLocal(), task.getPriority());
     }
 
     private void notifyProgress(int taskID) {
@@ -96,10 +148,17 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
     // -------------------------- listener method --------------------//
     @Override
     public void onFileUploadProgress(int taskID) {
+        TransferTask task = getTask(taskID);
+        if (task != null) {
+            onTaskProgress(task);
+        }
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
                 BROADCAST_FILE_UPLOAD_PROGRESS).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
         notifyProgress(taskID);
+        for (UploadStateListener listener : listeners) {
+            listener.onFileUploadProgress(taskID);
+        }
     }
 
     @Override
@@ -110,6 +169,9 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
                 BROADCAST_FILE_UPLOAD_SUCCESS).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
         notifyProgress(taskID);
+        for (UploadStateListener listener : listeners) {
+            listener.onFileUploaded(taskID);
+        }
     }
 
     @Override
@@ -118,6 +180,14 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
                 BROADCAST_FILE_UPLOAD_CANCELLED).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
         notifyProgress(taskID);
+        for (UploadStateListener listener : listeners) {
+            listener.onFileUploadCancelled(taskID);
+        }
+    }
+
+    @Override
+    protected void onWaitingTaskCancelled(TransferTask task) {
+        onFileUploadCancelled(task.getTaskID());
     }
 
     @Override
@@ -128,6 +198,9 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
                 BROADCAST_FILE_UPLOAD_FAILED).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
         notifyProgress(taskID);
+        for (UploadStateListener listener : listeners) {
+            listener.onFileUploadFailed(taskID);
+        }
     }
 
 }
@@ -100,6 +100,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -170,6 +171,16 @@ public class BrowserActivity extends BaseActivity
         }
     }
 
+    private void addUploadTasks(String repoID, String repoName, String targetDir, List<String> localFilePaths) {
+        if (txService != null) {
+            txService.addUploadTasks(account, repoID, repoName, targetDir, localFilePaths, false, true);
+        } else {
+            for (String localFilePath : localFilePaths) {
+                addUploadTask(repoID, repoName, targetDir, localFilePath);
+            }
+        }
+    }
+
     private int addUploadTask(String repoID, String repoName, String targetDir, String localFilePath) {
         if (txService != null) {
             return txService.addTaskToUploadQue(account, repoID, repoName, targetDir, localFilePath, false, true);
@@ -1072,9 +1083,7 @@ public class BrowserActivity extends BaseActivity
                 if (paths == null)
                     return;
                 ToastUtils.show(this, getString(R.string.added_to_upload_tasks));
-                for (String path : paths) {
-                    addUploadTask(navContext.getRepoID(), navContext.getRepoName(), navContext.getDirPath(), path);
-                }
+                addUploadTasks(navContext.getRepoID(), navContext.getRepoName(), navContext.getDirPath(), Arrays.asList(paths));
             }
             break;
         case PICK_PHOTOS_VIDEOS_REQUEST:
@@ -1083,9 +1092,7 @@ public class BrowserActivity extends BaseActivity
                 if (paths == null)
                     return;
                 ToastUtils.show(this, getString(R.string.added_to_upload_tasks));
-                for (String path : paths) {
-                    addUploadTask(navContext.getRepoID(), navContext.getRepoName(), navContext.getDirPath(), path);
-                }
+                addUploadTasks(navContext.getRepoID(), navContext.getRepoName(), navContext.getDirPath(), paths);
             }
             break;
         case PICK_FILE_REQUEST:
@@ -1290,114 +1297,13 @@ public class BrowserActivity extends BaseActivity
             return;
         }
 
-        ConcurrentAsyncTask.execute(new DownloadDirTask(),
+        DownloadDirTask task = new DownloadDirTask(navContext.getRepoID(),
                 navContext.getRepoName(),
-                navContext.getRepoID(),
                 dirPath,
-                String.valueOf(recurse),
-                fileName);
-    }
-
-    private class DownloadDirTask extends AsyncTask<String, Void, List<SeafDirent> > {
-
-        private String repoName;
-        private String repoID;
-        private String fileName;
-        private String dirPath;
-        private int fileCount;
-        private boolean recurse;
-        private ArrayList<String> dirPaths = Lists.newArrayList();
-        private SeafException err = null;
-
-        @Override
-        protected List<SeafDirent> doInBackground(String... params) {
-            if (params.length != 5) {
-                Log.d(DEBUG_TAG, "Wrong params to LoadDirTask");
-                return null;
-            }
-
-            repoName = params[0];
-            repoID = params[1];
-            dirPath = params[2];
-            recurse = Boolean.valueOf(params[3]);
-            fileName = params[4];
-
-
-            ArrayList<SeafDirent> dirents = Lists.newArrayList();
-
-            dirPaths.add(Utils.pathJoin(dirPath, fileName));
-
-            // don`t use for each loop here
-            for (int i = 0; i < dirPaths.size(); i++) {
-
-                List<SeafDirent> currentDirents;
-                try {
-                    currentDirents = dataManager.getDirentsFromServer(repoID, dirPaths.get(i));
-                } catch (SeafException e) {
-                    err = e;
-                    e.printStackTrace();
-                    return null;
-                }
-
-                if (currentDirents == null)
-                    continue;
-
-                for (SeafDirent seafDirent : currentDirents) {
-                    if (seafDirent.isDir()) {
-                        if (recurse) {
-                            dirPaths.add(Utils.pathJoin(dirPaths.get(i), seafDirent.name));
-                        }
-                    } else {
-                        File localCachedFile = dataManager.getLocalCachedFile(repoName,
-                                repoID,
-                                Utils.pathJoin(dirPaths.get(i),
-                                        seafDirent.name),
-                                seafDirent.id);
-                        if (localCachedFile != null) {
-                            continue;
-                        }
-
-                        // txService maybe null if layout orientation has changed
-                        // e.g. landscape and portrait switch
-                        if (txService == null)
-                            return null;
-
-                        txService.addTaskToDownloadQue(account,
-                                repoName,
-                                repoID,
-                                Utils.pathJoin(dirPaths.get(i),
-                                        seafDirent.name));
-                        fileCount++;
-                    }
-                }
-            }
-
-            return dirents;
-        }
-
-        @Override
-        protected void onPostExecute(List<SeafDirent> dirents) {
-            if (dirents == null) {
-                if (err != null) {
-                    ToastUtils.show(BrowserActivity.this, R.string.transfer_list_network_error);
-                }
-                return;
-            }
-
-            if (fileCount == 0)
-                ToastUtils.show(BrowserActivity.this, R.string.transfer_download_no_task);
-            else {
-                ToastUtils.show(BrowserActivity.this, getResources().getQuantityString(R.plurals.transfer_download_started, fileCount, fileCount));
-                if (!txService.hasDownloadNotifProvider()) {
-                    DownloadNotificationProvider provider = new DownloadNotificationProvider(txService.getDownloadTaskManager(),
-                            txService);
-                    txService.saveDownloadNotifProvider(provider);
-                }
-            }
-
-            // set download tasks info to adapter in order to update download progress in UI thread
-            getReposFragment().getAdapter().setDownloadTaskList(txService.getDownloadTaskInfosByPath(repoID, dirPath));
-        }
+                Utils.pathJoin(dirPath, fileName),
+                null,
+                recurse);
+        ConcurrentAsyncTask.execute(task);
     }
 
     private void startFileActivity(String repoName, String repoID, String filePath) {
@@ -1855,91 +1761,120 @@ public class BrowserActivity extends BaseActivity
             return;
         }
 
-        DownloadFilesTask task = new DownloadFilesTask(repoID, repoName, dirPath, dirents);
+        DownloadDirTask task = new DownloadDirTask(repoID, repoName, dirPath, dirPath, dirents, true);
         ConcurrentAsyncTask.execute(task);
     }
 
     /**
-     * Task for asynchronously downloading selected files (folders),
-     * files wont be added to downloading queue if they have already been cached locally.
+     * Task for asynchronously downloading files and folders.
+     * Folders are crawled by a {@link DirCrawler}, the files of each listed directory are added to
+     * the downloading queue together, unless they have already been cached locally.
      */
-    class DownloadFilesTask extends AsyncTask<Void, Void, Void> {
-        private String repoID, repoName, dirPath;
+    class DownloadDirTask extends AsyncTask<Void, Void, Void> implements DirCrawler.CrawlListener {
+        private String repoID, repoName, dirPath, crawlPath;
         private List<SeafDirent> dirents;
+        private boolean recurse;
+        private DirCrawler crawler;
         private SeafException err;
         private int fileCount;
-
-        public DownloadFilesTask(String repoID, String repoName, String dirPath, List<SeafDirent> dirents) {
+        private final List<String> foundPaths = Lists.newArrayList();
+
+        /**
+         * @param dirPath the folder being shown
+         * @param crawlPath the folder to download
+         * @param dirents the selected dirents of crawlPath, or null to download all of it
+         * @param recurse
+         */
+        public DownloadDirTask(String repoID, String repoName, String dirPath, String crawlPath,
+                               List<SeafDirent> dirents, boolean recurse) {
             this.repoID = repoID;
             this.repoName = repoName;
             this.dirPath = dirPath;
+            this.crawlPath = crawlPath;
             this.dirents = dirents;
+            this.recurse = recurse;
         }
 
         @Override
         protected void onPreExecute() {
-            getReposFragment().showLoading(true);
+            // only downloading the selected items hides the list, a folder download leaves it usable
+            if (dirents != null) {
+                getReposFragment().showLoading(true);
+            }
         }
 
         @Override
         protected Void doInBackground(Void... params) {
-            ArrayList<String> dirPaths = Lists.newArrayList(dirPath);
-            for (int i = 0; i < dirPaths.size(); i++) {
-                if (i > 0) {
-                    try {
-                        dirents = getDataManager().getDirentsFromServer(repoID, dirPaths.get(i));
-                    } catch (SeafException e) {
-                        err = e;
-                        Log.e(DEBUG_TAG, e.getMessage() + e.getCode());
-                    }
-                }
+            crawler = new DirCrawler(getDataManager(), repoID, this);
+            try {
+                crawler.crawl(crawlPath, dirents, recurse);
+                queueFoundFiles();
+            } catch (SeafException e) {
+                err = e;
+                Log.e(DEBUG_TAG, e.getMessage() + e.getCode());
+            }
 
-                if (dirents == null)
-                    continue;
+            return null;
+        }
 
-                for (SeafDirent seafDirent : dirents) {
-                    if (seafDirent.isDir()) {
-                        // download files recursively
-                        dirPaths.add(Utils.pathJoin(dirPaths.get(i), seafDirent.name));
-                    } else {
-                        File localCachedFile = getDataManager().getLocalCachedFile(repoName,
-                                repoID,
-                                Utils.pathJoin(dirPaths.get(i),
-                                        seafDirent.name),
-                                seafDirent.id);
-                        if (localCachedFile != null) {
-                            continue;
-                        }
+        @Override
+        public void onFileFound(String dir, SeafDirent dirent) {
+            String filePath = Utils.pathJoin(dir, dirent.name);
+            File localCachedFile = getDataManager().getLocalCachedFile(repoName, repoID, filePath, dirent.id);
+            if (localCachedFile != null) {
+                return;
+            }
 
-                        // txService maybe null if layout orientation has changed
-                        // e.g. landscape and portrait switch
-                        if (txService == null)
-                            return null;
-
-                        txService.addTaskToDownloadQue(account,
-                                repoName,
-                                repoID,
-                                Utils.pathJoin(dirPaths.get(i),
-                                        seafDirent.name));
-                        fileCount++;
-                    }
+            // txService maybe null if layout orientation has changed
+            // e.g. landscape and portrait switch
+            if (txService == null) {
+                crawler.cancel();
+                return;
+            }
 
-                }
+            foundPaths.add(filePath);
+        }
+
+        @Override
+        public void onProgress(int listedDirs, int foundDirs, int foundFiles) {
+            Log.d(DEBUG_TAG, String.format("listed %d/%d dirs, %d files", listedDirs, foundDirs, foundFiles));
+            queueFoundFiles();
+            publishProgress();
+        }
+
+        private void queueFoundFiles() {
+            if (foundPaths.isEmpty() || txService == null) {
+                return;
             }
 
-            return null;
+            txService.addTasksToDownloadQue(account, repoName, repoID, foundPaths);
+            fileCount += foundPaths.size();
+            foundPaths.clear();
+        }
+
+        @Override
+        protected void onProgressUpdate(Void... values) {
+            // show the progress of the downloads started so far
+            if (txService != null) {
+                getReposFragment().getAdapter().setDownloadTaskList(txService.getDownloadTaskInfosByPath(repoID, dirPath));
+            }
         }
 
         @Override
         protected void onPostExecute(Void aVoid) {
             // update ui
-            getReposFragment().showLoading(false);
+            if (dirents != null) {
+                getReposFragment().showLoading(false);
+            }
 
             if (err != null) {
                 ToastUtils.show(BrowserActivity.this, R.string.transfer_list_network_error);
                 return;
             }
 
+            if (txService == null)
+                return;
+
             if (fileCount == 0)
                 ToastUtils.show(BrowserActivity.this, R.string.transfer_download_no_task);
             else {
@@ -1957,6 +1892,8 @@ public class BrowserActivity extends BaseActivity
 
             }
 
+            // set download tasks info to adapter in order to update download progress in UI thread
+            getReposFragment().getAdapter().setDownloadTaskList(txService.getDownloadTaskInfosByPath(repoID, dirPath));
         }
     }
 
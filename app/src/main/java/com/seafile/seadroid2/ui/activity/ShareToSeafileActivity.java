@@ -209,11 +209,9 @@ public class ShareToSeafileActivity extends BaseActivity {
             public void onServiceConnected(ComponentName className, IBinder service) {
                 TransferBinder binder = (TransferBinder) service;
                 mTxService = binder.getService();
-                for (String path : localPaths) {
-                    mTxService.addUploadTask(account, repoID, repoName, targetDir,
-                            path, update, false);
-                    Log.d(DEBUG_TAG, path + (update ? " updated" : " uploaded"));
-                }
+                mTxService.addUploadTasks(account, repoID, repoName, targetDir,
+                        localPaths, update, false);
+                Log.d(DEBUG_TAG, localPaths.size() + (update ? " files updated" : " files uploaded"));
                 ToastUtils.show(ShareToSeafileActivity.this, R.string.upload_started);
                 finish();
             }
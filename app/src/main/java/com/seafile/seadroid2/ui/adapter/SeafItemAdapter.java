@@ -10,13 +10,17 @@ import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.nostra13.universalimageloader.core.DisplayImageOptions;
 import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.listener.ImageLoadingListener;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.data.DataManager;
+import com.seafile.seadroid2.data.DatabaseHelper;
+import com.seafile.seadroid2.data.PagedDirents;
 import com.seafile.seadroid2.data.SeafCachedFile;
 import com.seafile.seadroid2.data.SeafDirent;
 import com.seafile.seadroid2.data.SeafGroup;
@@ -33,10 +37,15 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public class SeafItemAdapter extends BaseAdapter {
 
     private ArrayList<SeafItem> items;
+    /**
+     * the dirents of a huge directory, read page by page. Replaces items when set.
+     */
+    private PagedDirents pagedDirents;
     private BrowserActivity mActivity;
     private boolean repoIsEncrypted;
     private boolean actionModeOn;
@@ -65,12 +74,14 @@ public class SeafItemAdapter extends BaseAdapter {
 
     @Override
     public int getCount() {
+        if (pagedDirents != null)
+            return pagedDirents.size();
         return items.size();
     }
 
     @Override
     public boolean isEmpty() {
-        return items.isEmpty();
+        return getCount() == 0;
     }
 
     /**
@@ -125,10 +136,13 @@ public class SeafItemAdapter extends BaseAdapter {
 
     @Override
     public SeafItem getItem(int position) {
+        if (pagedDirents != null)
+            return pagedDirents.get(position);
         return items.get(position);
     }
 
     public void setItems(List<SeafDirent> dirents) {
+        pagedDirents = null;
         items.clear();
         items.addAll(dirents);
         this.mSelectedItemsIds.clear();
@@ -136,6 +150,68 @@ public class SeafItemAdapter extends BaseAdapter {
         this.mSelectedItemsValues.clear();
     }
 
+    /**
+     * Show the dirents of a directory without loading them all, they are read as the list scrolls
+     */
+    public void setPagedDirents(PagedDirents dirents) {
+        items.clear();
+        pagedDirents = dirents;
+        this.mSelectedItemsIds.clear();
+        this.mSelectedItemsPositions.clear();
+        this.mSelectedItemsValues.clear();
+    }
+
+    public boolean isPaged() {
+        return pagedDirents != null;
+    }
+
+    /**
+     * Replace the dirents shown by a new listing of the same directory. The dirents which have not
+     * changed are kept, with their sort keys. The items must be sorted again if anything changed.
+     *
+     * @return false if the listing is the same
+     */
+    public boolean updateDirents(List<SeafDirent> dirents) {
+        Map<String, SeafDirent> shown = Maps.newHashMap();
+        for (SeafItem item : items) {
+            if (item instanceof SeafDirent) {
+                shown.put(((SeafDirent) item).name, (SeafDirent) item);
+            }
+        }
+
+        boolean changed = pagedDirents != null || shown.size() != items.size() || shown.size() != dirents.size();
+        List<SeafItem> updated = Lists.newArrayListWithCapacity(dirents.size());
+        for (SeafDirent dirent : dirents) {
+            SeafDirent old = shown.get(dirent.name);
+            if (old != null && isSameDirent(old, dirent)) {
+                updated.add(old);
+            } else {
+                updated.add(dirent);
+                changed = true;
+            }
+        }
+
+        if (!changed) {
+            return false;
+        }
+
+        pagedDirents = null;
+        items.clear();
+        items.addAll(updated);
+        // positions have moved
+        this.mSelectedItemsIds.clear();
+        this.mSelectedItemsPositions.clear();
+        this.mSelectedItemsValues.clear();
+        return true;
+    }
+
+    private static boolean isSameDirent(SeafDirent a, SeafDirent b) {
+        return a.type == b.type
+                && a.mtime == b.mtime
+                && a.size == b.size
+                && Objects.equal(a.id, b.id);
+    }
+
     public void deselectAllItems() {
         mSelectedItemsIds.clear();
         mSelectedItemsPositions.clear();
@@ -147,10 +223,21 @@ public class SeafItemAdapter extends BaseAdapter {
         mSelectedItemsIds.clear();
         mSelectedItemsPositions.clear();
         mSelectedItemsValues.clear();
-        for (int i = 0; i < items.size(); i++) {
+        if (pagedDirents != null) {
+            // the pages not loaded would be selected as placeholders
+            List<SeafDirent> dirents = pagedDirents.loadAll();
+            for (int i = 0; i < dirents.size(); i++) {
+                mSelectedItemsIds.put(i, true);
+                mSelectedItemsPositions.add(i);
+            }
+            mSelectedItemsValues.addAll(dirents);
+            notifyDataSetChanged();
+            return;
+        }
+        for (int i = 0; i < getCount(); i++) {
             mSelectedItemsIds.put(i, true);
             mSelectedItemsPositions.add(i);
-            mSelectedItemsValues.add((SeafDirent) items.get(i));
+            mSelectedItemsValues.add((SeafDirent) getItem(i));
         }
         notifyDataSetChanged();
     }
@@ -161,6 +248,7 @@ public class SeafItemAdapter extends BaseAdapter {
     }
 
     public void clear() {
+        pagedDirents = null;
         items.clear();
     }
 
@@ -168,13 +256,26 @@ public class SeafItemAdapter extends BaseAdapter {
         return false;
     }
 
+    @Override
+    public boolean areAllItemsEnabled() {
+        return pagedDirents == null;
+    }
+
+    /**
+     * Placeholders of paged dirents can not be clicked until their page is loaded
+     */
+    @Override
+    public boolean isEnabled(int position) {
+        return pagedDirents == null || !pagedDirents.isPlaceholder(pagedDirents.get(position));
+    }
+
     public boolean isEnable(int position) {
-        SeafItem item = items.get(position);
+        SeafItem item = getItem(position);
         return !(item instanceof SeafGroup);
     }
 
     public boolean isClickable(int position) {
-        SeafItem item = items.get(position);
+        SeafItem item = getItem(position);
         return !(item instanceof SeafGroup);
     }
 
@@ -183,7 +284,7 @@ public class SeafItemAdapter extends BaseAdapter {
     }
 
     public int getItemViewType(int position) {
-        SeafItem item = items.get(position);
+        SeafItem item = getItem(position);
         if (item instanceof SeafGroup)
             return 0;
         else
@@ -244,6 +345,18 @@ public class SeafItemAdapter extends BaseAdapter {
             viewHolder = (Viewholder) convertView.getTag();
         }
 
+        if (pagedDirents != null && pagedDirents.isPlaceholder(dirent)) {
+            // its page is being read
+            viewHolder.title.setText("");
+            viewHolder.subtitle.setText(R.string.list_item_loading);
+            viewHolder.multiSelect.setVisibility(View.GONE);
+            viewHolder.action.setVisibility(View.INVISIBLE);
+            viewHolder.downloadStatusIcon.setVisibility(View.GONE);
+            viewHolder.progressBar.setVisibility(View.GONE);
+            ImageLoader.getInstance().displayImage("drawable://" + dirent.getIcon(), viewHolder.icon, WidgetUtils.iconOptions);
+            return view;
+        }
+
         viewHolder.action.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -441,7 +554,7 @@ public class SeafItemAdapter extends BaseAdapter {
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
-        SeafItem item = items.get(position);
+        SeafItem item = getItem(position);
         if (item instanceof SeafRepo) {
             return getRepoView((SeafRepo)item, convertView, parent);
         } else if (item instanceof SeafGroup) {
@@ -462,11 +575,11 @@ public class SeafItemAdapter extends BaseAdapter {
             // unselected
             mSelectedItemsIds.delete(position);
             mSelectedItemsPositions.remove(Integer.valueOf(position));
-            mSelectedItemsValues.remove(items.get(position));
+            mSelectedItemsValues.remove(getItem(position));
         } else {
             mSelectedItemsIds.put(position, true);
             mSelectedItemsPositions.add(position);
-            mSelectedItemsValues.add((SeafDirent) items.get(position));
+            mSelectedItemsValues.add((SeafDirent) getItem(position));
         }
 
         mActivity.onItemSelected();
@@ -519,6 +632,12 @@ public class SeafItemAdapter extends BaseAdapter {
      * and by order of {@link #SORT_ORDER_ASCENDING} or {@link #SORT_ORDER_DESCENDING}
      */
     public void sortFiles(int type, int order) {
+        if (pagedDirents != null) {
+            // let the database sort, only the pages shown are read
+            pagedDirents = pagedDirents.sortedBy(getDirentOrderBy(type, order));
+            return;
+        }
+
         List<SeafGroup> groups = Lists.newArrayList();
         List<SeafCachedFile> cachedFiles = Lists.newArrayList();
         List<SeafDirent> folders = Lists.newArrayList();
@@ -554,9 +673,10 @@ public class SeafItemAdapter extends BaseAdapter {
 
         // sort SeafDirents
         if (type == SORT_BY_NAME) {
-            // sort by name, in ascending order
-            Collections.sort(folders, new SeafDirent.DirentNameComparator());
-            Collections.sort(files,   new SeafDirent.DirentNameComparator());
+            // sort by name, in ascending order. The sort keys are computed once per dirent
+            SeafDirent.DirentNameComparator comparator = new SeafDirent.DirentNameComparator();
+            Collections.sort(folders, comparator);
+            Collections.sort(files,   comparator);
             if (order == SORT_ORDER_DESCENDING) {
                 Collections.reverse(folders);
                 Collections.reverse(files);
@@ -575,5 +695,15 @@ public class SeafItemAdapter extends BaseAdapter {
         items.addAll(folders);
         items.addAll(files);
     }
-}
 
+    /**
+     * @return the order of the database matching a sort type and order
+     */
+    public static String getDirentOrderBy(int type, int order) {
+        boolean descending = order == SORT_ORDER_DESCENDING;
+        if (type == SORT_BY_LAST_MODIFIED_TIME) {
+            return descending ? DatabaseHelper.DIRENT_ORDER_BY_MTIME : DatabaseHelper.DIRENT_ORDER_BY_MTIME_ASC;
+        }
+        return descending ? DatabaseHelper.DIRENT_ORDER_BY_NAME_DESC : DatabaseHelper.DIRENT_ORDER_BY_NAME;
+    }
+}
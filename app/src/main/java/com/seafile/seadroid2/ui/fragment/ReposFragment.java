@@ -30,6 +30,8 @@ import com.seafile.seadroid2.SettingsManager;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.account.AccountManager;
 import com.seafile.seadroid2.data.DataManager;
+import com.seafile.seadroid2.data.DirentsPrefetcher;
+import com.seafile.seadroid2.data.PagedDirents;
 import com.seafile.seadroid2.data.SeafCachedFile;
 import com.seafile.seadroid2.data.SeafDirent;
 import com.seafile.seadroid2.data.SeafGroup;
@@ -65,6 +67,12 @@ public class ReposFragment extends ListFragment {
     /** flag to stop refreshing when nav to other directory  */
     private static int mPullToRefreshStopRefreshing = 0;
 
+    /**
+     * directories with at least this many entries are read page by page as the list scrolls,
+     * instead of being loaded and sorted at once
+     */
+    private static final int PAGED_LISTING_MIN_DIRENTS = 1000;
+
     private SeafItemAdapter adapter;
     private BrowserActivity mActivity = null;
     private ActionMode mActionMode;
@@ -126,6 +134,10 @@ public class ReposFragment extends ListFragment {
         mListView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
             @Override
             public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+                if (adapter != null && !adapter.isEnabled(position)) {
+                    // a dirent still being loaded
+                    return true;
+                }
                 startContextualActionMode(position);
                 return true;
             }
@@ -296,6 +308,7 @@ public class ReposFragment extends ListFragment {
     public void onStop() {
         // Log.d(DEBUG_TAG, "ReposFragment onStop");
         super.onStop();
+        DirentsPrefetcher.instance().cancel();
         stopTimer();
     }
 
@@ -351,6 +364,7 @@ public class ReposFragment extends ListFragment {
 
     public void navToReposView(boolean forceRefresh) {
         //stopTimer();
+        DirentsPrefetcher.instance().cancel();
 
         mPullToRefreshStopRefreshing ++;
 
@@ -378,6 +392,8 @@ public class ReposFragment extends ListFragment {
 
     public void navToDirectory(boolean forceRefresh) {
         startTimer();
+        // the listing of this directory goes first
+        DirentsPrefetcher.instance().cancel();
 
         mPullToRefreshStopRefreshing ++;
 
@@ -401,26 +417,47 @@ public class ReposFragment extends ListFragment {
         }
 
         forceRefresh = forceRefresh || isDirentsRefreshTimeOut(nav.getRepoID(), nav.getDirPath());
-        if (!Utils.isNetworkOn() || !forceRefresh) {
-            List<SeafDirent> dirents = dataManager.getCachedDirents(
-                    nav.getRepoID(), nav.getDirPath());
-            if (dirents != null) {
-                if (mRefreshType == REFRESH_ON_PULL) {
-                    refreshLayout.setRefreshing(false);
-                    mPullToRefreshStopRefreshing = 0;
-                }
+        boolean revalidate = Utils.isNetworkOn() && forceRefresh;
 
-                updateAdapterWithDirents(dirents);
-                return;
+        // show the cached dirents right away, even if they may be out of date
+        boolean cached = showCachedDirents(dataManager, nav.getRepoID(), nav.getDirPath());
+        if (cached && !revalidate) {
+            if (mRefreshType == REFRESH_ON_PULL) {
+                refreshLayout.setRefreshing(false);
+                mPullToRefreshStopRefreshing = 0;
             }
+
+            DirentsPrefetcher.instance().prefetch(dataManager, nav.getRepoID(), nav.getDirPath());
+            return;
         }
 
-        ConcurrentAsyncTask.execute(new LoadDirTask(getDataManager()),
+        // with cached dirents shown, check them in the background. The server only sends
+        // the dirents if the dir id has changed
+        ConcurrentAsyncTask.execute(new LoadDirTask(getDataManager(), cached),
                 nav.getRepoName(),
                 nav.getRepoID(),
                 nav.getDirPath());
     }
 
+    /**
+     * @return false if the directory is not cached
+     */
+    private boolean showCachedDirents(DataManager dataManager, String repoID, String path) {
+        if (dataManager.hasCachedDirents(repoID, path)
+                && dataManager.getCachedDirentCount(repoID, path) >= PAGED_LISTING_MIN_DIRENTS) {
+            updateAdapterWithPagedDirents(repoID, path);
+            return true;
+        }
+
+        List<SeafDirent> dirents = dataManager.getCachedDirents(repoID, path);
+        if (dirents == null) {
+            return false;
+        }
+
+        updateAdapterWithDirents(dirents);
+        return true;
+    }
+
     // refresh list by mTimer
     public void startTimer() {
         if (isTimerStarted)
@@ -527,6 +564,64 @@ public class ReposFragment extends ListFragment {
         //mListView.collapse();
     }
 
+    /**
+     * Show a huge directory from the dirents cache. Only the rows on screen are read.
+     */
+    private void updateAdapterWithPagedDirents(final String repoID, final String path) {
+        PagedDirents dirents = new PagedDirents(getDataManager(), repoID, path,
+                SeafItemAdapter.getDirentOrderBy(SettingsManager.instance().getSortFilesTypePref(),
+                        SettingsManager.instance().getSortFilesOrderPref()));
+        dirents.setListener(new PagedDirents.Listener() {
+            @Override
+            public void onPagesLoaded() {
+                adapter.notifyChanged();
+            }
+
+            @Override
+            public void onListingChanged() {
+                // called while the list is laid out, count the dirents again once it is done
+                mListView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        NavContext nav = getNavContext();
+                        if (adapter.isPaged() && repoID.equals(nav.getRepoID()) && path.equals(nav.getDirPath())) {
+                            updateAdapterWithPagedDirents(repoID, path);
+                        }
+                    }
+                });
+            }
+        });
+        adapter.setPagedDirents(dirents);
+        adapter.notifyChanged();
+        if (dirents.size() > 0) {
+            mListView.setVisibility(View.VISIBLE);
+            mEmptyView.setVisibility(View.GONE);
+        } else {
+            mListView.setVisibility(View.GONE);
+            mEmptyView.setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * Show a new listing of the directory shown. Nothing is redrawn if it has not changed.
+     */
+    private void updateAdapterWithChangedDirents(List<SeafDirent> dirents) {
+        if (dirents.isEmpty() || adapter.isPaged()) {
+            updateAdapterWithDirents(dirents);
+            return;
+        }
+
+        if (!adapter.updateDirents(dirents)) {
+            return;
+        }
+
+        adapter.sortFiles(SettingsManager.instance().getSortFilesTypePref(),
+                SettingsManager.instance().getSortFilesOrderPref());
+        adapter.notifyChanged();
+        mListView.setVisibility(View.VISIBLE);
+        mEmptyView.setVisibility(View.GONE);
+    }
+
     /**
      *  update state of contextual action bar (CAB)
      */
@@ -595,6 +690,7 @@ public class ReposFragment extends ListFragment {
                     String newPath = currentPath.endsWith("/") ?
                             currentPath + dirent.name : currentPath + "/" + dirent.name;
                     nav.setDir(newPath, dirent.id);
+                    DirentsPrefetcher.instance().onDirOpened(nav.getRepoID(), newPath);
                     refreshView();
                     mActivity.setUpButtonTitle(dirent.name);
                 } else {
@@ -810,12 +906,28 @@ public class ReposFragment extends ListFragment {
 
         DataManager dataManager;
 
+        /**
+         * the cached dirents are shown, only update them if they are out of date
+         */
+        boolean revalidate;
+        boolean unchanged;
+
         public LoadDirTask(DataManager dataManager) {
+            this(dataManager, false);
+        }
+
+        public LoadDirTask(DataManager dataManager, boolean revalidate) {
             this.dataManager = dataManager;
+            this.revalidate = revalidate;
         }
         
         @Override
         protected void onPreExecute() {
+            if (revalidate) {
+                // keep the cached dirents on screen
+                return;
+            }
+
             if (mRefreshType == REFRESH_ON_CLICK
                     || mRefreshType == REFRESH_ON_OVERFLOW_MENU
                     || mRefreshType == REFRESH_ON_RESUME) {
@@ -836,6 +948,12 @@ public class ReposFragment extends ListFragment {
             myRepoID = params[1];
             myPath = params[2];
             try {
+                if (revalidate) {
+                    // the cached dirents are not read again if they are up to date
+                    List<SeafDirent> dirents = dataManager.revalidateDirents(myRepoID, myPath);
+                    unchanged = dirents == null;
+                    return dirents;
+                }
                 return dataManager.getDirentsFromServer(myRepoID, myPath);
             } catch (SeafException e) {
                 err = e;
@@ -852,7 +970,7 @@ public class ReposFragment extends ListFragment {
                 return;
             }
 
-            ConcurrentAsyncTask.execute(new LoadDirTask(dataManager), myRepoName, myRepoID, myPath);
+            ConcurrentAsyncTask.execute(new LoadDirTask(dataManager, revalidate), myRepoName, myRepoID, myPath);
         }
 
         private void displaySSLError() {
@@ -873,9 +991,9 @@ public class ReposFragment extends ListFragment {
                 // this occurs if user navigation to another activity
                 return;
 
-            if (mRefreshType == REFRESH_ON_CLICK
+            if (!revalidate && (mRefreshType == REFRESH_ON_CLICK
                     || mRefreshType == REFRESH_ON_OVERFLOW_MENU
-                    || mRefreshType == REFRESH_ON_RESUME) {
+                    || mRefreshType == REFRESH_ON_RESUME)) {
                 showLoading(false);
             } else if (mRefreshType == REFRESH_ON_PULL) {
                 String lastUpdate = getDataManager().getLastPullToRefreshTime(DataManager.PULL_TO_REFRESH_LAST_TIME_FOR_REPOS_FRAGMENT);
@@ -918,6 +1036,9 @@ public class ReposFragment extends ListFragment {
                     logoutWhenTokenExpired();
                 } else if (err.getCode() == HttpURLConnection.HTTP_NOT_FOUND) {
                     ToastUtils.show(mActivity, String.format("The folder \"%s\" was deleted", myPath));
+                } else if (revalidate) {
+                    // keep showing the cached dirents
+                    Log.d(DEBUG_TAG, "failed to revalidate dirents: " + err.getMessage());
                 } else {
                     Log.d(DEBUG_TAG, "failed to load dirents: " + err.getMessage());
                     err.printStackTrace();
@@ -926,13 +1047,23 @@ public class ReposFragment extends ListFragment {
                 return;
             }
 
-            if (dirents == null) {
+            if (dirents == null && !unchanged) {
                 showError(R.string.error_when_load_dirents);
                 Log.i(DEBUG_TAG, "failed to load dir");
                 return;
             }
             getDataManager().setDirsRefreshTimeStamp(myRepoID, myPath);
-            updateAdapterWithDirents(dirents);
+            if (revalidate && unchanged) {
+                // the cached dirents shown are up to date
+            } else if (dirents.size() >= PAGED_LISTING_MIN_DIRENTS) {
+                // the dirents have been saved to the cache, page through them from there
+                updateAdapterWithPagedDirents(myRepoID, myPath);
+            } else if (revalidate) {
+                updateAdapterWithChangedDirents(dirents);
+            } else {
+                updateAdapterWithDirents(dirents);
+            }
+            DirentsPrefetcher.instance().prefetch(dataManager, myRepoID, myPath);
         }
     }
 
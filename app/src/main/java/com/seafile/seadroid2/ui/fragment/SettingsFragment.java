@@ -8,6 +8,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceCategory;
@@ -242,6 +243,19 @@ public class SettingsFragment extends CustomPreferenceFragment {
             }
         });
 
+        // transcoded photo resolution and quality, the summary shows the chosen entry
+        Preference.OnPreferenceChangeListener listSummaryListener = new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                ListPreference list = (ListPreference) preference;
+                int index = list.findIndexOfValue((String) newValue);
+                list.setSummary(index >= 0 ? list.getEntries()[index] : null);
+                return true;
+            }
+        };
+        findPreference(SettingsManager.CAMERA_UPLOAD_TRANSCODE_DIMENSION_KEY).setOnPreferenceChangeListener(listSummaryListener);
+        findPreference(SettingsManager.CAMERA_UPLOAD_TRANSCODE_QUALITY_KEY).setOnPreferenceChangeListener(listSummaryListener);
+
         // change local folder Preference
         cLocalDirectoriesPref = findPreference(SettingsManager.CAMERA_UPLOAD_BUCKETS_KEY);
         cLocalDirectoriesPref.setOnPreferenceClickListener(new OnPreferenceClickListener() {
@@ -292,6 +306,11 @@ public class SettingsFragment extends CustomPreferenceFragment {
             }
         });
 
+        // Folder prefetch
+        CheckBoxPreference cbPrefetch = ((CheckBoxPreference) findPreference(SettingsManager.FOLDER_PREFETCH_SWITCH_KEY));
+        if (cbPrefetch != null)
+            cbPrefetch.setChecked(settingsMgr.isFolderPrefetchEnabled());
+
     }
 
     private void refreshCameraUpladView() {
@@ -321,6 +340,24 @@ public class SettingsFragment extends CustomPreferenceFragment {
         if (cbVideoAllowed != null)
             cbVideoAllowed.setChecked(settingsMgr.isVideosUploadAllowed());
 
+        // content deduplication
+        CheckBoxPreference cbDedup = ((CheckBoxPreference) findPreference(SettingsManager.CAMERA_UPLOAD_DEDUP_SWITCH_KEY));
+        if (cbDedup != null)
+            cbDedup.setChecked(settingsMgr.isCameraUploadDedupEnabled());
+
+        // photo transcoding
+        CheckBoxPreference cbTranscode = ((CheckBoxPreference) findPreference(SettingsManager.CAMERA_UPLOAD_TRANSCODE_SWITCH_KEY));
+        if (cbTranscode != null)
+            cbTranscode.setChecked(settingsMgr.isCameraUploadTranscodeEnabled());
+
+        ListPreference lpDimension = (ListPreference) findPreference(SettingsManager.CAMERA_UPLOAD_TRANSCODE_DIMENSION_KEY);
+        if (lpDimension != null)
+            lpDimension.setSummary(lpDimension.getEntry());
+
+        ListPreference lpQuality = (ListPreference) findPreference(SettingsManager.CAMERA_UPLOAD_TRANSCODE_QUALITY_KEY);
+        if (lpQuality != null)
+            lpQuality.setSummary(lpQuality.getEntry());
+
         List<String> bucketNames = new ArrayList<>();
         List<String> bucketIds = settingsMgr.getCameraUploadBucketList();
         List<GalleryBucketUtils.Bucket> allBuckets = GalleryBucketUtils.getMediaBuckets(getActivity().getApplicationContext());
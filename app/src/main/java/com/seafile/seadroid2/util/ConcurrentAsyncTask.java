@@ -3,6 +3,8 @@ package com.seafile.seadroid2.util;
 import android.os.AsyncTask;
 import android.os.Build;
 
+import java.util.concurrent.Executor;
+
 /**
  * Make sure an AsyncTask is executed in parallel across different version of
  * Android
@@ -17,6 +19,18 @@ public class ConcurrentAsyncTask {
         }
     }
 
+    /**
+     * Execute an AsyncTask on the given executor. On old Android versions, where
+     * AsyncTasks can not be given an executor, it is executed like {@link #execute(AsyncTask, Object[])}.
+     */
+    public static <T> void executeOnExecutor(Executor executor, AsyncTask<T, ?, ?> task, T...args) {
+        if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            task.execute(args);
+        } else {
+            task.executeOnExecutor(executor, args);
+        }
+    }
+
     public static void execute(Runnable runnable) {
         execute(new SimpleAsyncTask(runnable));
     }
@@ -17,9 +17,12 @@
 package com.seafile.seadroid2.util;
 
 import android.content.Context;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
 
 /**
  * This class is pinyin4android main interface .
@@ -27,11 +30,77 @@ import java.io.RandomAccessFile;
  * PinyinUtil.toPinyin(Context context,char c);
  * PinyinUtil.toPinyin(Context context,String hanzi);
  * <p/>
+ * The table is parsed once per process into a syllable index per character,
+ * lookups do not touch the disk and do not allocate.
+ * <p/>
  * User: Ryan
  * Date: 11-5-29
  * Time: 21:13
  */
 public abstract class PinyinUtils {
+    private static final char FIRST_HANZI = 0x4E00;
+    private static final char LAST_HANZI = 0x9FA5;
+    private static final char HANZI_ZERO = 0x3007;
+
+    /**
+     * width of an entry in {@link PinyinSource#getSource()}
+     */
+    private static final int ENTRY_LENGTH = 6;
+
+    private static class Table {
+        /**
+         * the distinct syllables, shared by all the characters which read the same
+         */
+        static final String[] SYLLABLES;
+
+        /**
+         * index in {@link #SYLLABLES} of each character from {@link #FIRST_HANZI}, -1 if unknown
+         */
+        static final short[] INDEX;
+
+        static {
+            String source = PinyinSource.getSource();
+            int count = Math.min(source.length() / ENTRY_LENGTH, LAST_HANZI - FIRST_HANZI + 1);
+
+            List<String> syllables = Lists.newArrayList();
+            Map<String, Short> ids = Maps.newHashMap();
+            short[] index = new short[LAST_HANZI - FIRST_HANZI + 1];
+            for (int i = 0; i < index.length; i++) {
+                index[i] = -1;
+            }
+
+            for (int i = 0; i < count; i++) {
+                String syllable = source.substring(i * ENTRY_LENGTH, (i + 1) * ENTRY_LENGTH).trim();
+                if (syllable.length() == 0) {
+                    continue;
+                }
+                Short id = ids.get(syllable);
+                if (id == null) {
+                    id = (short) syllables.size();
+                    ids.put(syllable, id);
+                    syllables.add(syllable);
+                }
+                index[i] = id;
+            }
+
+            SYLLABLES = syllables.toArray(new String[syllables.size()]);
+            INDEX = index;
+        }
+    }
+
+    /**
+     * @return the pinyin of a chinese character, or null if it is not one.
+     * The string is shared, nothing is allocated.
+     */
+    public static String getSyllable(char c) {
+        if (c == HANZI_ZERO) return "ling";
+        if (c < FIRST_HANZI || c > LAST_HANZI) {
+            return null;
+        }
+        short id = Table.INDEX[c - FIRST_HANZI];
+        return id < 0 ? null : Table.SYLLABLES[id];
+    }
+
     /**
      * to convert chinese to pinyin
      *
@@ -46,30 +115,30 @@ public abstract class PinyinUtils {
         if (c >= 'a' && c <= 'z') {
             return String.valueOf(c);
         }
-        if (c == 0x3007) return "ling";
-        if (c < 4E00 || c > 0x9FA5) {
-            return null;
-        }
-        RandomAccessFile is = null;
-        try {
-            is = new RandomAccessFile(PinyinSource.getFile(context), "r");
-            long sp = (c - 0x4E00) * 6;
-            is.seek(sp);
-            byte[] buf = new byte[6];
-            is.read(buf);
-            return new String(buf).trim();
-        } catch (FileNotFoundException e) {
-            //
-        } catch (IOException e) {
-            //
-        } finally {
-            try {
-                if (null != is) is.close();
-            } catch (IOException e) {
-                //
+        return getSyllable(c);
+    }
+
+    /**
+     * Append the pinyin of a string to a buffer, without allocating anything else.
+     * Letters are lower cased, chinese characters are followed by a space, other characters are kept.
+     *
+     * @param hanzi the chinese string
+     * @param sb    receives the pinyin
+     */
+    public static void appendPinyin(CharSequence hanzi, StringBuilder sb) {
+        for (int i = 0; i < hanzi.length(); i++) {
+            char ch = hanzi.charAt(i);
+            if (ch >= 'A' && ch <= 'Z') {
+                sb.append((char) (ch + 32));
+                continue;
+            }
+            String syllable = getSyllable(ch);
+            if (syllable != null) {
+                sb.append(syllable).append(' ');
+            } else {
+                sb.append(ch);
             }
         }
-        return null;
     }
 
     /**
@@ -80,39 +149,8 @@ public abstract class PinyinUtils {
      * @return pinyin
      */
     public static String toPinyin(Context context, String hanzi) {
-        StringBuffer sb = new StringBuffer("");
-        RandomAccessFile is = null;
-        try {
-            is = new RandomAccessFile(PinyinSource.getFile(context), "r");
-            for (int i = 0; i < hanzi.length(); i++) {
-                char ch = hanzi.charAt(i);
-                if (ch >= 'A' && ch <= 'Z') {
-                    sb.append((char) (ch + 32));
-                    continue;
-                }
-                if (ch >= 'a' && ch <= 'z') {
-                    sb.append(ch);
-                    continue;
-                }
-                if (ch == 0x3007) {
-                    sb.append("ling").append(' ');
-                } else if (ch >= 0x4E00 || ch <= 0x9FA5) {
-                    long sp = (ch - 0x4E00) * 6;
-                    is.seek(sp);
-                    byte[] buf = new byte[6];
-                    is.read(buf);
-                    sb.append(new String(buf).trim()).append(' ');
-                }
-            }
-        } catch (IOException e) {
-            //
-        } finally {
-            try {
-                if (null != is) is.close();
-            } catch (IOException e) {
-                //
-            }
-        }
+        StringBuilder sb = new StringBuilder(hanzi.length() * ENTRY_LENGTH);
+        appendPinyin(hanzi, sb);
         return sb.toString().trim();
     }
 }
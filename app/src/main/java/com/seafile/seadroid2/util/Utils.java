@@ -349,6 +349,19 @@ public class Utils {
 
         return false;
     }
+
+    /**
+     * @return true if the active network may be charged by the amount of data, or if there is none
+     */
+    public static boolean isActiveNetworkMetered() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return UtilsJellyBean.isActiveNetworkMetered();
+        }
+
+        // only Wi-Fi is assumed to be unmetered
+        return !isWiFiOn();
+    }
+
     public static String pathJoin (String first, String... rest) {
         StringBuilder result = new StringBuilder(first);
         for (String b: rest) {
@@ -2,10 +2,15 @@ package com.seafile.seadroid2.util;
 
 import android.annotation.TargetApi;
 import android.content.ClipData;
+import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Build;
 
+import com.seafile.seadroid2.SeadroidApplication;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -35,4 +40,16 @@ public class UtilsJellyBean {
         return list;
     }
 
+    public static boolean isActiveNetworkMetered() {
+        ConnectivityManager connMgr = (ConnectivityManager)
+                SeadroidApplication.getAppContext().getSystemService(
+                        Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo active = connMgr.getActiveNetworkInfo();
+        if (active == null || !active.isConnected()) {
+            return true;
+        }
+        return connMgr.isActiveNetworkMetered();
+    }
+
 }
@@ -0,0 +1,105 @@
+package com.seafile.seadroid2;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A minimal harness for the micro-benchmarks of the unit tests.
+ * <p/>
+ * A task is run a few times to warm up the JIT, then measured a number of times. The median time
+ * per run is reported, with the bytes allocated per run when the JVM can tell.
+ * The numbers are those of the JVM running the tests, not of a device: compare them with each
+ * other, not with the ones of another machine.
+ * <p/>
+ * Benchmarks are skipped by a plain test run. Run them with {@code ./gradlew test -Pbenchmark},
+ * which sets the {@value #ENABLED_PROPERTY} system property and shows their output.
+ */
+public final class Benchmark {
+
+    public interface Task {
+        /**
+         * @return the result of the run, so the work is not optimized away
+         */
+        Object run() throws Exception;
+    }
+
+    public static class Result {
+        public final String name;
+        public final long medianNanos;
+        /**
+         * -1 if unknown
+         */
+        public final long allocatedBytes;
+
+        Result(String name, long medianNanos, long allocatedBytes) {
+            this.name = name;
+            this.medianNanos = medianNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            String time = String.format(Locale.US, "%-48s %10.3f ms/op", name, medianNanos / 1e6);
+            if (allocatedBytes < 0) {
+                return time;
+            }
+            return time + String.format(Locale.US, " %10d KB/op", allocatedBytes / 1024);
+        }
+    }
+
+    public static final String ENABLED_PROPERTY = "benchmark";
+
+    private static volatile Object sink;
+
+    private Benchmark() {
+    }
+
+    /**
+     * Skip the tests of a benchmark class unless benchmarks were asked for. Call it from a
+     * {@code @BeforeClass} method.
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("benchmarks run with -Pbenchmark", Boolean.getBoolean(ENABLED_PROPERTY));
+    }
+
+    public static Result run(String name, int warmups, int iterations, Task task) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            sink = task.run();
+        }
+
+        long[] nanos = new long[iterations];
+        long allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            sink = task.run();
+            nanos[i] = System.nanoTime() - start;
+            allocated = bytes < 0 ? -1 : allocatedBytes() - bytes;
+        }
+        sink = null;
+
+        Arrays.sort(nanos);
+        Result result = new Result(name, nanos[iterations / 2], allocated);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, -1 if the JVM does not tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,47 @@
+package com.seafile.seadroid2.cameraupload;
+
+import com.google.common.collect.Sets;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongHashSetTest {
+
+    @Test
+    public void zeroIsAValue() {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertTrue(set.contains(0));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void matchesHashSet() {
+        Random random = new Random(42);
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = Sets.newHashSet();
+
+        for (int i = 0; i < 100000; i++) {
+            // few distinct values, so some are added twice
+            long value = random.nextInt(50000) * 0x100000001L;
+            assertEquals(expected.add(value), set.add(value));
+        }
+        assertEquals(expected.size(), set.size());
+
+        for (long value : expected) {
+            assertTrue(set.contains(value));
+        }
+        for (int i = 0; i < 1000; i++) {
+            long value = 50000 + random.nextInt(50000) * 0x100000001L;
+            assertEquals(expected.contains(value), set.contains(value));
+        }
+    }
+}
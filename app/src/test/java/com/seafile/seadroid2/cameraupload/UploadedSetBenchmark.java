@@ -0,0 +1,135 @@
+package com.seafile.seadroid2.cameraupload;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.seafile.seadroid2.Benchmark;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Checking the media of a camera upload scan against {@link UploadedSet}, loaded a directory at a
+ * time, against a set of the path and modification time strings of all the uploaded media.
+ * <p/>
+ * The database is replaced by a mock which lists the uploaded media of a directory from memory,
+ * so the cost of the queries is not measured, only that of the index. Half of the files checked
+ * have been uploaded. The files do not exist, their modification time is 0.
+ */
+public class UploadedSetBenchmark {
+
+    @BeforeClass
+    public static void checkEnabled() {
+        Benchmark.assumeEnabled();
+    }
+    private static final int DIRS = 100;
+
+    private static List<File> files(int count, String prefix) {
+        List<File> files = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            files.add(new File("/storage/emulated/0/DCIM/bucket" + (i % DIRS) + "/" + prefix + i + ".jpg"));
+        }
+        return files;
+    }
+
+    private static String key(File file) {
+        return file.getAbsolutePath() + ":" + file.lastModified();
+    }
+
+    /**
+     * @return a database helper which lists the given files as uploaded
+     */
+    private static CameraUploadDBHelper mockDBHelper(List<File> uploaded) {
+        final Map<String, List<Long>> hashesByDir = Maps.newHashMap();
+        for (File file : uploaded) {
+            List<Long> hashes = hashesByDir.get(file.getParent());
+            if (hashes == null) {
+                hashes = Lists.newArrayList();
+                hashesByDir.put(file.getParent(), hashes);
+            }
+            hashes.add(UploadedSet.hash(file.getAbsolutePath(), 0));
+        }
+
+        CameraUploadDBHelper dbHelper = mock(CameraUploadDBHelper.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                List<Long> hashes = hashesByDir.get((String) invocation.getArguments()[0]);
+                LongHashSet set = (LongHashSet) invocation.getArguments()[1];
+                if (hashes != null) {
+                    for (long hash : hashes) {
+                        set.add(hash);
+                    }
+                }
+                return null;
+            }
+        }).when(dbHelper).loadUploaded(anyString(), any(LongHashSet.class));
+        return dbHelper;
+    }
+
+    private void compare(int count, int iterations) throws Exception {
+        List<File> uploaded = files(count / 2, "uploaded_");
+        final List<File> checked = Lists.newArrayList(uploaded);
+        checked.addAll(files(count - uploaded.size(), "new_"));
+
+        final CameraUploadDBHelper dbHelper = mockDBHelper(uploaded);
+        final Set<String> keys = Sets.newHashSet();
+        for (File file : uploaded) {
+            keys.add(key(file));
+        }
+
+        assertEquals(uploaded.size(), countUploaded(new UploadedSet(dbHelper), checked));
+
+        Benchmark.run("UploadedSet, " + count + " files", 3, iterations, new Benchmark.Task() {
+            @Override
+            public Object run() throws Exception {
+                return countUploaded(new UploadedSet(dbHelper), checked);
+            }
+        });
+        Benchmark.run("HashSet<String>, " + count + " files", 3, iterations, new Benchmark.Task() {
+            @Override
+            public Object run() throws Exception {
+                int found = 0;
+                for (File file : checked) {
+                    if (keys.contains(key(file))) {
+                        found++;
+                    }
+                }
+                return found;
+            }
+        });
+    }
+
+    private static int countUploaded(UploadedSet uploadedSet, List<File> files) {
+        int found = 0;
+        for (File file : files) {
+            if (uploadedSet.contains(file)) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void check10kFiles() throws Exception {
+        compare(10000, 20);
+    }
+
+    @Test
+    public void check100kFiles() throws Exception {
+        compare(100000, 5);
+    }
+}
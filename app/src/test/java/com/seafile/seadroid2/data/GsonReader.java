@@ -0,0 +1,80 @@
+package com.seafile.seadroid2.data;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Runs {@link JsonStreamParser} on the JVM, where android.util.JsonReader is not available.
+ * The Gson JsonReader has the same API and implementation.
+ */
+class GsonReader implements JsonStreamParser.Reader {
+    private final JsonReader reader;
+
+    GsonReader(InputStream in) throws IOException {
+        reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        reader.beginArray();
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        reader.endArray();
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        reader.beginObject();
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        reader.endObject();
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        return reader.hasNext();
+    }
+
+    @Override
+    public String nextName() throws IOException {
+        return reader.nextName();
+    }
+
+    @Override
+    public boolean nextIsNull() throws IOException {
+        return reader.peek() == JsonToken.NULL;
+    }
+
+    @Override
+    public String nextString() throws IOException {
+        return reader.nextString();
+    }
+
+    @Override
+    public long nextLong() throws IOException {
+        return reader.nextLong();
+    }
+
+    @Override
+    public boolean nextBoolean() throws IOException {
+        return reader.nextBoolean();
+    }
+
+    @Override
+    public void skipValue() throws IOException {
+        reader.skipValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,91 @@
+package com.seafile.seadroid2.data;
+
+import com.seafile.seadroid2.Benchmark;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parsing a directory listing with the org.json DOM, as {@link DataManager} does on old devices,
+ * against parsing it while it is read, as {@link JsonStreamParser} does.
+ * <p/>
+ * android.util.JsonReader is not available in unit tests. The streaming side runs
+ * {@link JsonStreamParser} on the Gson JsonReader, see {@link GsonReader}.
+ */
+public class JsonParsingBenchmark {
+
+    @BeforeClass
+    public static void checkEnabled() {
+        Benchmark.assumeEnabled();
+    }
+
+    private static byte[] listing(int count) {
+        StringBuilder sb = new StringBuilder(count * 160);
+        sb.append('[');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            boolean dir = i % 10 == 0;
+            sb.append("{\"id\":\"").append(String.format("%040x", i)).append('"')
+                    .append(",\"type\":\"").append(dir ? "dir" : "file").append('"')
+                    .append(",\"name\":\"").append(dir ? "folder " : "photo_").append(i).append(dir ? "" : ".jpg").append('"')
+                    .append(",\"mtime\":").append(1450000000L + i)
+                    .append(",\"permission\":\"rw\"");
+            if (!dir) {
+                sb.append(",\"size\":").append(1024L * i);
+            }
+            sb.append('}');
+        }
+        sb.append(']');
+        try {
+            return sb.toString().getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static List<SeafDirent> parseWithJSONArray(byte[] body) throws IOException {
+        return DataManager.parseDirents(new String(body, "UTF-8"));
+    }
+
+    private static List<SeafDirent> parseWithJsonReader(byte[] body) throws IOException {
+        return JsonStreamParser.parseDirents(new GsonReader(new ByteArrayInputStream(body)));
+    }
+
+    private void compare(final int count, int iterations) throws Exception {
+        final byte[] body = listing(count);
+
+        assertEquals(count, parseWithJSONArray(body).size());
+        assertEquals(count, parseWithJsonReader(body).size());
+
+        Benchmark.run("JSONArray, " + count + " dirents", 3, iterations, new Benchmark.Task() {
+            @Override
+            public Object run() throws Exception {
+                return parseWithJSONArray(body);
+            }
+        });
+        Benchmark.run("JsonReader, " + count + " dirents", 3, iterations, new Benchmark.Task() {
+            @Override
+            public Object run() throws Exception {
+                return parseWithJsonReader(body);
+            }
+        });
+    }
+
+    @Test
+    public void parse10kDirents() throws Exception {
+        compare(10000, 20);
+    }
+
+    @Test
+    public void parse100kDirents() throws Exception {
+        compare(100000, 5);
+    }
+}
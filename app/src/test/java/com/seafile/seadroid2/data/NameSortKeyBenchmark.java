@@ -0,0 +1,169 @@
+package com.seafile.seadroid2.data;
+
+import com.google.common.collect.Lists;
+import com.seafile.seadroid2.Benchmark;
+import com.seafile.seadroid2.util.PinyinUtils;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.text.Collator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sorting dirents by name with {@link SeafDirent.DirentNameComparator}, whose keys are computed
+ * once per dirent, against the comparator it replaced, which converted both names at each
+ * comparison. That one compared the names by code point, so it is also run with the collator
+ * of the locale, for the cost of the same order without the keys.
+ * <p/>
+ * A quarter of the names start with a chinese character. Each run sorts new dirents, so the keys
+ * are computed in the run, except in the re-sort runs, which shuffle and sort dirents sorted
+ * before.
+ */
+public class NameSortKeyBenchmark {
+
+    @BeforeClass
+    public static void checkEnabled() {
+        Benchmark.assumeEnabled();
+    }
+
+    /**
+     * the comparator before the sort keys, with a null context
+     */
+    private static class PerCompareNameComparator implements Comparator<SeafDirent> {
+        private final Collator collator;
+
+        /**
+         * @param collator compares the converted names, null to compare them by code point
+         */
+        PerCompareNameComparator(Collator collator) {
+            this.collator = collator;
+        }
+
+        @Override
+        public int compare(SeafDirent itemA, SeafDirent itemB) {
+            boolean chineseA = NameSortKey.isChinese(itemA.name);
+            boolean chineseB = NameSortKey.isChinese(itemB.name);
+
+            String strA, strB;
+            if (chineseA && chineseB) {
+                strA = PinyinUtils.toPinyin(null, itemA.name).toLowerCase();
+                strB = PinyinUtils.toPinyin(null, itemB.name).toLowerCase();
+            } else if (chineseA) {
+                return 1;
+            } else if (chineseB) {
+                return -1;
+            } else {
+                strA = itemA.name.toLowerCase();
+                strB = itemB.name.toLowerCase();
+            }
+            return collator == null ? strA.compareTo(strB) : collator.compare(strA, strB);
+        }
+    }
+
+    private static List<String> names(int count) {
+        Random random = new Random(count);
+        List<String> names = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 4 + random.nextInt(12);
+            boolean chinese = i % 4 == 0;
+            for (int j = 0; j < length; j++) {
+                if (chinese) {
+                    sb.append((char) (0x4E01 + random.nextInt(0x9FA5 - 0x4E01)));
+                } else {
+                    sb.append((char) ((random.nextBoolean() ? 'a' : 'A') + random.nextInt(26)));
+                }
+            }
+            names.add(sb.append('_').append(i).toString());
+        }
+        return names;
+    }
+
+    private static List<SeafDirent> dirents(List<String> names) {
+        List<SeafDirent> dirents = Lists.newArrayListWithCapacity(names.size());
+        for (String name : names) {
+            SeafDirent dirent = new SeafDirent();
+            dirent.name = name;
+            dirent.type = SeafDirent.DirentType.FILE;
+            dirents.add(dirent);
+        }
+        return dirents;
+    }
+
+    private static void assertSorted(List<SeafDirent> dirents, Comparator<SeafDirent> comparator) {
+        for (int i = 1; i < dirents.size(); i++) {
+            assertTrue(dirents.get(i - 1).name + " > " + dirents.get(i).name,
+                    comparator.compare(dirents.get(i - 1), dirents.get(i)) <= 0);
+        }
+    }
+
+    private void compare(final int count, int iterations) throws Exception {
+        final List<String> names = names(count);
+
+        List<SeafDirent> sorted = dirents(names);
+        Collections.sort(sorted, new SeafDirent.DirentNameComparator());
+        assertSorted(sorted, new SeafDirent.DirentNameComparator());
+
+        List<SeafDirent> sortedPerCompare = dirents(names);
+        Collections.sort(sortedPerCompare, new PerCompareNameComparator(null));
+        assertSorted(sortedPerCompare, new PerCompareNameComparator(null));
+
+        Benchmark.run("per compare, " + count + " names", 2, iterations, new Benchmark.Task() {
+            @Override
+            public Object run() throws Exception {
+                List<SeafDirent> dirents = dirents(names);
+                Collections.sort(dirents, new PerCompareNameComparator(null));
+                return dirents;
+            }
+        });
+        Benchmark.run("per compare, collator, " + count + " names", 2, iterations, new Benchmark.Task() {
+            @Override
+            public Object run() throws Exception {
+                List<SeafDirent> dirents = dirents(names);
+                Collections.sort(dirents, new PerCompareNameComparator(Collator.getInstance(Locale.getDefault())));
+                return dirents;
+            }
+        });
+        Benchmark.run("sort keys, " + count + " names", 2, iterations, new Benchmark.Task() {
+            @Override
+            public Object run() throws Exception {
+                List<SeafDirent> dirents = dirents(names);
+                Collections.sort(dirents, new SeafDirent.DirentNameComparator());
+                return dirents;
+            }
+        });
+
+        final List<SeafDirent> resorted = dirents(names);
+        Collections.sort(resorted, new SeafDirent.DirentNameComparator());
+        Benchmark.run("sort keys, re-sort, " + count + " names", 2, iterations, new Benchmark.Task() {
+            @Override
+            public Object run() throws Exception {
+                Collections.shuffle(resorted, new Random(count));
+                Collections.sort(resorted, new SeafDirent.DirentNameComparator());
+                return resorted;
+            }
+        });
+    }
+
+    @Test
+    public void sort1kNames() throws Exception {
+        compare(1000, 50);
+    }
+
+    @Test
+    public void sort10kNames() throws Exception {
+        compare(10000, 10);
+    }
+
+    @Test
+    public void sort100kNames() throws Exception {
+        compare(100000, 3);
+    }
+}